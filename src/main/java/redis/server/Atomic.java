@@ -0,0 +1,17 @@
+package redis.server;
+
+/**
+ * A server whose background work, like commits, must only ever see whole
+ * commands. Every command runs between {@link #enter()} and {@link #leave()}.
+ */
+public interface Atomic {
+    /**
+     * Called before a command runs, on the thread running it.
+     */
+    void enter();
+
+    /**
+     * Called once it has run, even if it failed.
+     */
+    void leave();
+}
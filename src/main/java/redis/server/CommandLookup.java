@@ -0,0 +1,101 @@
+package redis.server;
+
+import com.google.common.base.Charsets;
+
+import java.util.Collection;
+
+/**
+ * Case-insensitive command lookup that doesn't allocate or touch the request.
+ * <p/>
+ * The command set is fixed, so at construction we search for a hash seed that
+ * puts every name in its own slot. A lookup is then one hash of the lower-cased
+ * bytes, one slot and one comparison.
+ */
+public class CommandLookup {
+    private static final int FNV_PRIME = 0x01000193;
+    private static final int MAX_SEEDS = 4096;
+
+    private final RedisCommand[] commands;
+    private final byte[][] names;
+    private final int mask;
+    private final int seed;
+
+    public CommandLookup(Collection<RedisCommand> values) {
+        int size = Integer.highestOneBit(Math.max(values.size(), 1) * 4 - 1) << 1;
+        while (true) {
+            for (int seed = 1; seed <= MAX_SEEDS; seed++) {
+                RedisCommand[] commands = new RedisCommand[size];
+                if (fill(values, commands, seed, size - 1)) {
+                    this.commands = commands;
+                    this.names = new byte[size][];
+                    for (int i = 0; i < size; i++) {
+                        if (commands[i] != null) {
+                            names[i] = commands[i].getName().getBytes(Charsets.US_ASCII);
+                        }
+                    }
+                    this.mask = size - 1;
+                    this.seed = seed;
+                    return;
+                }
+            }
+            size <<= 1;
+        }
+    }
+
+    private static boolean fill(Collection<RedisCommand> values, RedisCommand[] commands, int seed, int mask) {
+        for (RedisCommand command : values) {
+            byte[] name = command.getName().getBytes(Charsets.US_ASCII);
+            int slot = slot(hash(seed, name, 0, name.length), mask);
+            if (commands[slot] != null) {
+                return false;
+            }
+            commands[slot] = command;
+        }
+        return true;
+    }
+
+    /**
+     * @param name a byte[] as decoded, or anything else with a meaningful toString
+     * @return the command or null if there is none by that name
+     */
+    public RedisCommand get(Object name) {
+        if (name instanceof byte[]) {
+            byte[] bytes = (byte[]) name;
+            return get(bytes, 0, bytes.length);
+        } else if (name == null) {
+            return null;
+        }
+        byte[] bytes = name.toString().getBytes(Charsets.UTF_8);
+        return get(bytes, 0, bytes.length);
+    }
+
+    public RedisCommand get(byte[] bytes, int offset, int length) {
+        int slot = slot(hash(seed, bytes, offset, length), mask);
+        byte[] candidate = names[slot];
+        if (candidate == null || candidate.length != length) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            if (lower(bytes[offset + i]) != candidate[i]) {
+                return null;
+            }
+        }
+        return commands[slot];
+    }
+
+    private static int hash(int seed, byte[] bytes, int offset, int length) {
+        int hash = seed;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ lower(bytes[offset + i])) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static int slot(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -0,0 +1,15 @@
+package redis.server;
+
+import io.netty.util.concurrent.Future;
+
+/**
+ * A server that makes its writes durable in the background. Replies to writes
+ * are held back until the writes are durable.
+ */
+public interface Durable {
+    /**
+     * @return a future completed once every write made so far is durable, or null
+     * if writes already are when they return
+     */
+    Future<?> durable();
+}
@@ -7,15 +7,30 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import org.mapdb.DB;
+import redis.server.backend.mapdb.MapDBGroupCommit;
 import redis.server.backend.mapdb.MapDBRedisBuilder;
 import redis.server.backend.mapdb.MapDBRedisServer;
+import redis.server.backend.simple.ConcurrentRedisServer;
 import redis.server.backend.simple.SimpleRedisServer;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Redis server
  */
@@ -37,6 +52,22 @@ public class Main {
     @Argument(alias = "c")
     private static Boolean dbCommit = false;
 
+    // group commit: milliseconds between commits, 0 commits per write (-c)
+    @Argument(alias = "commitInterval")
+    private static Integer commitInterval = 0;
+
+    // group commit: writes that trigger a commit before the interval is up
+    @Argument(alias = "commitBatch")
+    private static Integer commitBatch = 1024;
+
+    // write-behind for string values: max milliseconds before they reach mapdb, 0 is off
+    @Argument(alias = "writeBehindLag")
+    private static Integer writeBehindLag = 0;
+
+    // write-behind: writes waiting before writers block
+    @Argument(alias = "writeBehindQueue")
+    private static Integer writeBehindQueue = 64 * 1024;
+
     //
     @Argument(alias = "backend")
     private static String backend = "mapdb";
@@ -44,6 +75,53 @@ public class Main {
     @Argument(alias = "threads")
     private static Integer threads = 1;
 
+    // concurrent backend
+    @Argument(alias = "stripes")
+    private static Integer stripes = 64;
+
+    // active expiry cycles per second, 0 only expires lazily
+    @Argument(alias = "expireHz")
+    private static Integer expireHz = 10;
+
+    // simple backend: file written by SAVE and BGSAVE and loaded at startup, none by default
+    @Argument(alias = "snapshot")
+    private static String snapshot;
+
+    // threads decoding the snapshot at startup
+    @Argument(alias = "loadThreads")
+    private static Integer loadThreads = Runtime.getRuntime().availableProcessors();
+
+    // route commands to threads by key instead of by connection
+    @Argument(alias = "sharded")
+    private static Boolean sharded = false;
+
+    // network
+    @Argument(alias = "transport")
+    private static String transport = "nio";
+
+    @Argument(alias = "bossThreads")
+    private static Integer bossThreads = 1;
+
+    // 0 lets netty pick (2 * cores)
+    @Argument(alias = "workerThreads")
+    private static Integer workerThreads = 0;
+
+    @Argument(alias = "backlog")
+    private static Integer backlog = 100;
+
+    // protocol
+    @Argument(alias = "maxArguments")
+    private static Integer maxArguments = RedisCommandDecoder.DEFAULT_MAX_ARGUMENTS;
+
+    @Argument(alias = "maxBulkLength")
+    private static Integer maxBulkLength = RedisCommandDecoder.DEFAULT_MAX_BULK_LENGTH;
+
+    @Argument(alias = "pooledReplies")
+    private static Boolean pooledReplies = false;
+
+    @Argument(alias = "compositeThreshold")
+    private static Integer compositeThreshold = RedisReplyEncoder.DEFAULT_COMPOSITE_THRESHOLD;
+
     public static void main(String[] args) throws InterruptedException {
         try {
             Args.parse(Main.class, args);
@@ -58,22 +136,88 @@ public class Main {
             System.out.println(" -- " + dbMemory + " -- " + dbCommit + " -- " + dbTransactions);
             DB db = MapDBRedisBuilder.generateDB(location, dbMemory, dbTransactions);
 
-            redisServer = new MapDBRedisServer(db, dbCommit);
+            MapDBGroupCommit groupCommit = commitInterval > 0 ?
+                    new MapDBGroupCommit(db, commitInterval, commitBatch) : null;
+            MapDBRedisServer mapDBRedisServer = new MapDBRedisServer(db, dbCommit, groupCommit);
+            if (writeBehindLag > 0) {
+                mapDBRedisServer.enableWriteBehind(writeBehindLag, writeBehindQueue);
+            }
+            redisServer = mapDBRedisServer;
+        } else if(backend.equals("concurrent")) {
+            redisServer = new ConcurrentRedisServer(stripes);
         } else {
             // Only execute the command handler in a single thread
             threads = 1;
-            redisServer = new SimpleRedisServer();
+            SimpleRedisServer simpleRedisServer = new SimpleRedisServer();
+            File file = snapshot == null ? null : new File(snapshot);
+            if (file != null && file.exists()) {
+                long start = System.currentTimeMillis();
+                try {
+                    long loaded = simpleRedisServer.load(file, loadThreads);
+                    System.out.println("Loaded " + loaded + " keys from " + file + " in " +
+                            (System.currentTimeMillis() - start) + "ms");
+                } catch (IOException e) {
+                    System.err.println("Can't load " + file + ": " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            redisServer = simpleRedisServer;
         }
 
-        final RedisCommandHandler commandHandler = new RedisCommandHandler(redisServer);
+        final ShardedExecutor shards = sharded ? new ShardedExecutor(threads) : null;
+        final RedisCommandHandler commandHandler = sharded ?
+                new ShardedCommandHandler(redisServer, shards) : new RedisCommandHandler(redisServer);
 
         // Configure the server.
         ServerBootstrap b = new ServerBootstrap();
-        final DefaultEventExecutorGroup group = new DefaultEventExecutorGroup(threads);
+        EventLoopGroup bossGroup;
+        EventLoopGroup workerGroup;
+        // Number of server sockets bound to the port, each accepting on its own boss loop
+        int acceptors;
+        if (transport.equals("epoll")) {
+            if (!Epoll.isAvailable()) {
+                System.err.println("epoll transport is not available: " + Epoll.unavailabilityCause());
+                System.exit(1);
+            }
+            bossGroup = new EpollEventLoopGroup(bossThreads);
+            workerGroup = new EpollEventLoopGroup(workerThreads);
+            // SO_REUSEPORT lets every boss loop bind its own socket to the same port
+            // and the kernel spreads incoming connections across them
+            b.channel(EpollServerSocketChannel.class)
+                    .option(EpollChannelOption.SO_REUSEPORT, true);
+            acceptors = bossThreads;
+        } else if (transport.equals("nio")) {
+            bossGroup = new NioEventLoopGroup(bossThreads);
+            workerGroup = new NioEventLoopGroup(workerThreads);
+            b.channel(NioServerSocketChannel.class);
+            acceptors = 1;
+        } else {
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+        final DefaultEventExecutorGroup group = sharded ? null : new DefaultEventExecutorGroup(threads);
+        final Runnable expireCycle = expireCycle(redisServer);
+        if (expireCycle != null) {
+            // on a command thread, which is the only one for the simple backend, and never during an EXEC
+            long period = Math.max(1000 / expireHz, 1);
+            if (sharded) {
+                shards.scheduleAtFixedRate(0, expireCycle, period, TimeUnit.MILLISECONDS);
+            } else {
+                group.next().scheduleAtFixedRate(commandHandler.gated(expireCycle), period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (redisServer instanceof SimpleRedisServer && snapshot != null) {
+            // the steps of BGSAVE run on the command thread too
+            Executor commands = sharded ? new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    shards.execute(0, task);
+                }
+            } : group.next();
+            ((SimpleRedisServer) redisServer).enableSnapshots(new File(snapshot), commands);
+        }
         try {
-            b.group(new NioEventLoopGroup(), new NioEventLoopGroup())
-                    .channel(NioServerSocketChannel.class)
-                    .option(ChannelOption.SO_BACKLOG, 100)
+            b.group(bossGroup, workerGroup)
+                    .option(ChannelOption.SO_BACKLOG, backlog)
                     .localAddress(port)
                     .childOption(ChannelOption.TCP_NODELAY, true)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
@@ -81,20 +225,72 @@ public class Main {
                         public void initChannel(SocketChannel ch) throws Exception {
                             ChannelPipeline p = ch.pipeline();
 //             p.addLast(new ByteLoggingHandler(LogLevel.INFO));
-                            p.addLast(new RedisCommandDecoder());
-                            p.addLast(new RedisReplyEncoder());
-                            p.addLast(group, commandHandler);
+                            p.addLast(new RedisCommandDecoder(maxArguments, maxBulkLength));
+                            // writes chunked replies as the socket takes them
+                            p.addLast(new ChunkedWriteHandler());
+                            p.addLast(new RedisReplyEncoder(pooledReplies, compositeThreshold));
+                            if (sharded) {
+                                // dispatches to the shards itself
+                                p.addLast(commandHandler);
+                            } else {
+                                p.addLast(group, commandHandler);
+                            }
                         }
                     });
 
             // Start the server.
-            ChannelFuture f = b.bind().sync();
+            List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+            for (int i = 0; i < acceptors; i++) {
+                futures.add(b.bind().sync());
+            }
 
-            // Wait until the server socket is closed.
-            f.channel().closeFuture().sync();
+            // Wait until the server sockets are closed.
+            for (ChannelFuture f : futures) {
+                f.channel().closeFuture().sync();
+            }
         } finally {
             // Shut down all event loops to terminate all threads.
-            group.shutdownGracefully();
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+            if (sharded) {
+                shards.shutdownGracefully();
+            } else {
+                group.shutdownGracefully();
+            }
+        }
+    }
+
+    /**
+     * @return null if the backend doesn't expire keys actively
+     */
+    private static Runnable expireCycle(final RedisServer redisServer) {
+        if (expireHz <= 0) {
+            return null;
+        }
+        // a quarter of each period at most, like redis
+        final long budget = TimeUnit.MILLISECONDS.toNanos(Math.max(1000 / expireHz, 1)) / 4;
+        if (redisServer instanceof SimpleRedisServer) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    ((SimpleRedisServer) redisServer).activeExpireCycle(budget);
+                }
+            };
+        } else if (redisServer instanceof ConcurrentRedisServer) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    ((ConcurrentRedisServer) redisServer).activeExpireCycle(budget);
+                }
+            };
+        } else if (redisServer instanceof MapDBRedisServer) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    ((MapDBRedisServer) redisServer).activeExpireCycle(budget);
+                }
+            };
         }
+        return null;
     }
 }
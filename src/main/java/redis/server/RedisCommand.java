@@ -0,0 +1,157 @@
+package redis.server;
+
+import redis.server.reply.Command;
+import redis.server.reply.ErrorReply;
+import redis.server.reply.Reply;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * A command bound to the {@link RedisServer} method implementing it.
+ * <p/>
+ * The method is looked up once and adapted into a (Command)Reply method handle
+ * that pulls every parameter straight out of the command, so executing it is a
+ * single invokeExact: no Method.invoke and no Object[] of arguments.
+ */
+public class RedisCommand {
+    // Flags, as in the redis command table
+    public static final int WRITE = 1;
+    public static final int READONLY = 1 << 1;
+    public static final int ADMIN = 1 << 2;
+    public static final int PUBSUB = 1 << 3;
+    // Doesn't touch the keyspace at all
+    public static final int LOCAL = 1 << 4;
+    // MULTI, EXEC and the like, run by the command handler rather than the server
+    public static final int TRANSACTION = 1 << 5;
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Reply.class, Command.class);
+    private static final MethodHandle GET_ARGUMENT;
+    private static final MethodHandle GET_ARGUMENTS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            GET_ARGUMENT = lookup.findVirtual(Command.class, "getArgument",
+                    MethodType.methodType(byte[].class, int.class));
+            GET_ARGUMENTS = lookup.findVirtual(Command.class, "getArguments",
+                    MethodType.methodType(byte[][].class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String name;
+    private final int arity;
+    private final int flags;
+    private final int firstKey;
+    private final int lastKey;
+    private final int step;
+    private final MethodHandle invoker;
+
+    /**
+     * @param method   the server method implementing it, null for a transaction command
+     * @param arity    number of arguments including the name, negative for "at least"
+     * @param firstKey position of the first key, 0 if there are no keys
+     * @param lastKey  position of the last key, negative counts from the end
+     * @param step     distance between keys
+     */
+    public RedisCommand(String name, int arity, int flags, int firstKey, int lastKey, int step,
+                        RedisServer rs, Method method) {
+        this.name = name;
+        this.arity = arity;
+        this.flags = flags;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+        this.step = step;
+        this.invoker = method == null ? null : invoker(rs, method);
+    }
+
+    private static MethodHandle invoker(RedisServer rs, Method method) {
+        MethodHandle target;
+        try {
+            target = MethodHandles.publicLookup().unreflect(method).bindTo(rs);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Invalid server implementation: " + method, e);
+        }
+        Class<?>[] types = method.getParameterTypes();
+        MethodHandle[] getters = new MethodHandle[types.length];
+        for (int i = 0; i < types.length; i++) {
+            // argument 0 is the command name
+            if (types[i] == byte[].class) {
+                getters[i] = MethodHandles.insertArguments(GET_ARGUMENT, 1, i + 1);
+            } else if (types[i] == byte[][].class) {
+                getters[i] = MethodHandles.insertArguments(GET_ARGUMENTS, 1, i + 1);
+            } else {
+                throw new IllegalArgumentException("Invalid server implementation: " + method);
+            }
+        }
+        // (byte[], ...)XReply -> (Command, ...)Reply -> (Command)Reply
+        target = target.asType(target.type().changeReturnType(Reply.class));
+        target = MethodHandles.filterArguments(target, 0, getters);
+        return MethodHandles.permuteArguments(target, INVOKER_TYPE, new int[types.length]);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getArity() {
+        return arity;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isWrite() {
+        return (flags & WRITE) != 0;
+    }
+
+    public boolean isReadOnly() {
+        return (flags & READONLY) != 0;
+    }
+
+    public boolean isLocal() {
+        return (flags & LOCAL) != 0;
+    }
+
+    public boolean isTransaction() {
+        return (flags & TRANSACTION) != 0;
+    }
+
+    public int getFirstKey() {
+        return firstKey;
+    }
+
+    /**
+     * @return position of the last key in a command with argc arguments
+     */
+    public int getLastKey(int argc) {
+        return lastKey < 0 ? argc + lastKey : lastKey;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    public boolean checkArity(int argc) {
+        return arity > 0 ? argc == arity : argc >= -arity;
+    }
+
+    public Reply execute(Command command) {
+        if (!checkArity(command.argc())) {
+            return new ErrorReply("ERR wrong number of arguments for '" + name + "' command");
+        }
+        try {
+            return (Reply) invoker.invokeExact(command);
+        } catch (Throwable te) {
+            if (!(te instanceof RedisException)) {
+                te.printStackTrace();
+            }
+            return new ErrorReply("ERR " + te.getMessage());
+        }
+    }
+}
@@ -2,72 +2,216 @@ package redis.server;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import redis.server.reply.Command;
+import redis.server.reply.CommandBatch;
 
 import java.io.IOException;
 import java.util.List;
 
-import static redis.server.reply.RedisReplyDecoder.readLong;
-
 /**
  * Decode commands.
+ * <p/>
+ * Explicit state machine over the cumulated input, so a partial read resumes
+ * exactly where the previous one stopped (even in the middle of an argument)
+ * instead of replaying the whole command. All the commands completed by one
+ * read are emitted together as a {@link CommandBatch}.
  */
-public class RedisCommandDecoder extends ReplayingDecoder<Void> {
+public class RedisCommandDecoder extends ByteToMessageDecoder {
+    public static final int DEFAULT_MAX_ARGUMENTS = 1024 * 1024;
+    public static final int DEFAULT_MAX_BULK_LENGTH = 512 * 1024 * 1024;
+
+    // Longest "*<count>\r\n" / "$<length>\r\n" header we will wait for
+    private static final int MAX_HEADER_LENGTH = 32;
+    // Longest inline command we will wait for
+    private static final int MAX_INLINE_LENGTH = 64 * 1024;
+
+    private static final long INCOMPLETE = Long.MIN_VALUE;
+
+    enum State {
+        TYPE,
+        ARGUMENT_LENGTH,
+        ARGUMENT,
+        ARGUMENT_END
+    }
 
-    private byte[][] bytes;
-    private int arguments = 0;
+    private final int maxArguments;
+    private final int maxBulkLength;
+
+    private State state = State.TYPE;
+    private Object[] arguments;
+    private int argument;
+    // The argument being filled and how far we got
+    private byte[] bytes;
+    private int offset;
+    private int length;
+
+    public RedisCommandDecoder() {
+        this(DEFAULT_MAX_ARGUMENTS, DEFAULT_MAX_BULK_LENGTH);
+    }
+
+    /**
+     * @param maxArguments  largest multibulk count accepted
+     * @param maxBulkLength largest single argument accepted
+     */
+    public RedisCommandDecoder(int maxArguments, int maxBulkLength) {
+        this.maxArguments = maxArguments;
+        this.maxBulkLength = maxBulkLength;
+    }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-        if (bytes != null) {
-            int numArgs = bytes.length;
-            for (int i = arguments; i < numArgs; i++) {
-                if (in.readByte() == '$') {
-                    long l = readLong(in);
-                    if (l > Integer.MAX_VALUE) {
-                        throw new IllegalArgumentException("Java only supports arrays up to " + Integer.MAX_VALUE + " in size");
-                    }
-                    int size = (int) l;
-                    bytes[i] = new byte[size];
-                    in.readBytes(bytes[i]);
-                    if (in.bytesBefore((byte) '\r') != 0) {
-                        throw new RedisException("Argument doesn't end in CRLF");
-                    }
-                    in.skipBytes(2);
-                    arguments++;
-                    checkpoint();
-                } else {
+        // Everything that is complete in this read goes out as one batch
+        CommandBatch batch = null;
+        while (in.isReadable()) {
+            int readerIndex = in.readerIndex();
+            Command command = decodeCommand(in);
+            if (command == null) {
+                if (in.readerIndex() == readerIndex || state != State.TYPE) {
+                    // need more input
+                    return;
+                }
+                // an empty multibulk, keep going
+                continue;
+            }
+            if (batch == null) {
+                batch = new CommandBatch();
+                out.add(batch);
+            }
+            batch.add(command);
+        }
+    }
+
+    /**
+     * @return the next command or null if it hasn't fully arrived
+     */
+    private Command decodeCommand(ByteBuf in) throws IOException, RedisException {
+        if (state == State.TYPE) {
+            if (in.getByte(in.readerIndex()) != '*') {
+                return decodeInline(in);
+            }
+            long numArgs = readHeader(in, maxArguments, "Protocol error: invalid multibulk length");
+            if (numArgs == INCOMPLETE) {
+                return null;
+            }
+            if (numArgs <= 0) {
+                // Nothing to execute
+                return null;
+            }
+            arguments = new Object[(int) numArgs];
+            argument = 0;
+            state = State.ARGUMENT_LENGTH;
+        }
+        while (argument < arguments.length) {
+            if (state == State.ARGUMENT_LENGTH) {
+                if (!in.isReadable()) {
+                    return null;
+                }
+                if (in.getByte(in.readerIndex()) != '$') {
                     throw new IOException("Unexpected character");
                 }
+                long size = readHeader(in, maxBulkLength, "Protocol error: invalid bulk length");
+                if (size == INCOMPLETE) {
+                    return null;
+                }
+                if (size < 0) {
+                    throw new RedisException("Protocol error: invalid bulk length");
+                }
+                length = (int) size;
+                offset = 0;
+                bytes = new byte[length];
+                state = State.ARGUMENT;
             }
-            try {
-                out.add(new Command(bytes));
-            } finally {
+            if (state == State.ARGUMENT) {
+                // Copy whatever has arrived and resume from offset on the next read
+                int available = Math.min(in.readableBytes(), length - offset);
+                in.readBytes(bytes, offset, available);
+                offset += available;
+                if (offset < length) {
+                    return null;
+                }
+                arguments[argument] = bytes;
                 bytes = null;
-                arguments = 0;
+                state = State.ARGUMENT_END;
+            }
+            if (in.readableBytes() < 2) {
+                return null;
             }
-        } else if (in.readByte() == '*') {
-            long l = readLong(in);
-            if (l > Integer.MAX_VALUE) {
-                throw new IllegalArgumentException("Java only supports arrays up to " + Integer.MAX_VALUE + " in size");
+            if (in.readByte() != '\r' || in.readByte() != '\n') {
+                throw new RedisException("Argument doesn't end in CRLF");
             }
-            int numArgs = (int) l;
-            if (numArgs < 0) {
-                throw new RedisException("Invalid size: " + numArgs);
+            argument++;
+            state = State.ARGUMENT_LENGTH;
+        }
+        Command command = new Command(arguments);
+        arguments = null;
+        state = State.TYPE;
+        return command;
+    }
+
+    private Command decodeInline(ByteBuf in) throws RedisException {
+        int cr = in.bytesBefore((byte) '\r');
+        if (cr == -1 || in.readableBytes() < cr + 2) {
+            if (in.readableBytes() > MAX_INLINE_LENGTH) {
+                throw new RedisException("Protocol error: too big inline request");
             }
-            bytes = new byte[numArgs][];
-            checkpoint();
-            decode(ctx, in, out);
-        } else {
-            // Go backwards one
-            in.readerIndex(in.readerIndex() - 1);
-            // Read command -- can't be interupted
-            byte[][] b = new byte[1][];
-            b[0] = in.readBytes(in.bytesBefore((byte) '\r')).array();
-            in.skipBytes(2);
-            out.add(new Command(b, true));
+            return null;
         }
+        // Read command -- can't be interupted
+        byte[] b = new byte[cr];
+        in.readBytes(b);
+        in.skipBytes(2);
+        return new Command(new Object[]{b}, true);
     }
 
+    /**
+     * Reads a "<marker><number>\r\n" header, failing with tooLarge as soon as the
+     * digits add up to more than max either way.
+     *
+     * @return the number, or {@link #INCOMPLETE} if the header hasn't fully arrived
+     */
+    private static long readHeader(ByteBuf in, int max, String tooLarge) throws IOException, RedisException {
+        // skip the marker
+        int start = in.readerIndex() + 1;
+        int end = in.writerIndex();
+        int limit = Math.min(end, start + MAX_HEADER_LENGTH);
+        int i = start;
+        while (i < limit && in.getByte(i) != '\r') {
+            i++;
+        }
+        if (i == limit) {
+            if (limit < end) {
+                throw new IOException("Invalid character in integer");
+            }
+            return INCOMPLETE;
+        }
+        if (i + 1 == end) {
+            return INCOMPLETE;
+        }
+        if (in.getByte(i + 1) != '\n') {
+            throw new IOException("Invalid character in integer");
+        }
+        long value = 0;
+        int sign = 1;
+        int position = start;
+        if (position < i && in.getByte(position) == '-') {
+            sign = -1;
+            position++;
+        }
+        if (position == i) {
+            throw new IOException("Invalid character in integer");
+        }
+        for (; position < i; position++) {
+            int digit = in.getByte(position) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Invalid character in integer");
+            }
+            value = value * 10 + digit;
+            if (value > max) {
+                throw new RedisException(tooLarge);
+            }
+        }
+        in.readerIndex(i + 2);
+        return value * sign;
+    }
 }
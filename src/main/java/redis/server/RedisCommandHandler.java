@@ -1,61 +1,84 @@
 package redis.server;
 
 import com.google.common.base.Charsets;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import redis.server.reply.Command;
 import redis.server.reply.ErrorReply;
 import redis.server.reply.InlineReply;
 import redis.server.reply.Reply;
 import redis.server.reply.*;
-import redis.util.BytesKey;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * Handle decoded commands
+ * Handle decoded commands. Each pipelined batch runs as a single task on the
+ * handler's executor and its replies are written as one message.
+ * <p/>
+ * MULTI, EXEC, DISCARD, WATCH and UNWATCH are handled here as they are state of
+ * the connection. Batches run side by side on the executor's threads while EXEC
+ * runs alone, so the commands of a transaction run without anything in between.
+ * Batches only take a lock for that while some connection is in MULTI.
  */
 @ChannelHandler.Sharable
-public class RedisCommandHandler extends SimpleChannelInboundHandler<Command> {
+public class RedisCommandHandler extends SimpleChannelInboundHandler<CommandBatch> {
 
-    private Map<BytesKey, Wrapper> methods = new HashMap<BytesKey, Wrapper>();
+    private static final AttributeKey<Held> HELD = AttributeKey.valueOf("redis.held");
+    private static final AttributeKey<Transaction> TRANSACTION = AttributeKey.valueOf("redis.transaction");
 
-    interface Wrapper {
-        Reply execute(Command command) throws RedisException;
-    }
+    private final CommandLookup commands;
+    private final Durable durable;
+    private final Transactional transactional;
+    private final Atomic atomic;
+    private final WatchedKeys watchedKeys = new WatchedKeys();
+    // Shared by batches while there are transactions, held alone by EXEC
+    private final ReentrantReadWriteLock exclusive = new ReentrantReadWriteLock();
+    // Connections in MULTI
+    private final AtomicInteger transactions = new AtomicInteger();
+    // Batches running without the lock, and what EXEC waits on for them to end
+    private final AtomicInteger unlocked = new AtomicInteger();
+    private final Object drained = new Object();
+    private final RedisCommand multi;
+    private final RedisCommand exec;
+    private final RedisCommand discard;
+    private final RedisCommand watch;
+    private final RedisCommand unwatch;
+    private final RedisCommand quit;
 
     public RedisCommandHandler(final RedisServer rs) {
-        Class<? extends RedisServer> aClass = rs.getClass();
-        for (final Method method : aClass.getMethods()) {
-            final Class<?>[] types = method.getParameterTypes();
-            methods.put(new BytesKey(method.getName().getBytes()), new Wrapper() {
-                @Override
-                public Reply execute(Command command) throws RedisException {
-                    Object[] objects = new Object[types.length];
-                    try {
-                        command.toArguments(objects, types);
-                        return (Reply) method.invoke(rs, objects);
-                    } catch (IllegalAccessException e) {
-                        throw new RedisException("Invalid server implementation");
-                    } catch (InvocationTargetException e) {
-                        Throwable te = e.getTargetException();
-                        if (!(te instanceof RedisException)) {
-                            te.printStackTrace();
-                        }
-                        return new ErrorReply("ERR " + te.getMessage());
-                    } catch (Exception e) {
-                        return new ErrorReply("ERR " + e.getMessage());
-                    }
-                }
-            });
-        }
+        Map<String, RedisCommand> bound = RedisCommandTable.bind(rs);
+        commands = new CommandLookup(bound.values());
+        durable = rs instanceof Durable ? (Durable) rs : null;
+        transactional = rs instanceof Transactional ? (Transactional) rs : null;
+        atomic = rs instanceof Atomic ? (Atomic) rs : null;
+        multi = bound.get("multi");
+        exec = bound.get("exec");
+        discard = bound.get("discard");
+        watch = bound.get("watch");
+        unwatch = bound.get("unwatch");
+        quit = bound.get("quit");
     }
 
-    private static final byte LOWER_DIFF = 'a' - 'A';
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Transaction transaction = ctx.attr(TRANSACTION).get();
+        if (transaction != null) {
+            end(transaction);
+            watchedKeys.unwatch(transaction);
+        }
+        super.channelInactive(ctx);
+    }
 
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
@@ -63,35 +86,393 @@ public class RedisCommandHandler extends SimpleChannelInboundHandler<Command> {
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, Command msg) throws Exception {
-        byte[] name = msg.getName();
-        for (int i = 0; i < name.length; i++) {
-            byte b = name[i];
-            if (b >= 'A' && b <= 'Z') {
-                name[i] = (byte) (b + LOWER_DIFF);
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        if (cause instanceof DecoderException) {
+            // The stream can't be resynchronized after a protocol error
+            Throwable te = cause.getCause() == null ? cause : cause.getCause();
+            ctx.writeAndFlush(new ErrorReply("ERR " + te.getMessage())).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            super.exceptionCaught(ctx, cause);
+        }
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, CommandBatch batch) throws Exception {
+        ReplyBatch replies = new ReplyBatch(batch.size());
+        boolean quit = false;
+        boolean written = false;
+        Lock shared = enter();
+        try {
+            for (Command msg : batch) {
+                RedisCommand command = lookup(msg);
+                Reply reply = queue(ctx, msg, command);
+                if (reply == null && isExec(command)) {
+                    Transaction transaction = take(ctx);
+                    written |= transaction != null && transaction.isWrite();
+                    leave(shared);
+                    exclusive.writeLock().lock();
+                    try {
+                        drain();
+                        reply = exec(transaction, msg);
+                    } finally {
+                        exclusive.writeLock().unlock();
+                        shared = enter();
+                    }
+                } else if (reply == null) {
+                    reply = execute(msg, command);
+                    if (reply == StatusReply.QUIT) {
+                        quit = true;
+                        break;
+                    }
+                    written |= command != null && command.isWrite();
+                    touched(msg, command);
+                }
+                replies.add(reply);
             }
+        } finally {
+            leave(shared);
         }
-        Wrapper wrapper = methods.get(new BytesKey(name));
-        Reply reply;
-        if (wrapper == null) {
-            reply = new ErrorReply("unknown command '" + new String(name, Charsets.US_ASCII) + "'");
-        } else {
-            reply = wrapper.execute(msg);
+        write(ctx, replies.size() == 1 ? replies.get(0) : replies, written, quit);
+    }
+
+    /**
+     * Wraps task, like an active expiry cycle, so that it runs like a batch: next to
+     * other batches but never during an EXEC.
+     */
+    public Runnable gated(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Lock shared = enter();
+                try {
+                    task.run();
+                } finally {
+                    leave(shared);
+                }
+            }
+        };
+    }
+
+    /**
+     * Lets a batch run next to other batches but not during an EXEC. Without
+     * transactions it is only counted as unlocked, which EXEC waits to see drop to
+     * zero: each side writes its own counter before reading the other's, so at
+     * least one of them sees the other.
+     *
+     * @return the shared lock if it was taken, or null
+     */
+    private Lock enter() {
+        if (transactions.get() == 0) {
+            unlocked.incrementAndGet();
+            if (transactions.get() == 0) {
+                return null;
+            }
+            leave(null);
         }
-        if (reply == StatusReply.QUIT) {
-            ctx.close();
-        } else {
-            if (msg.isInline()) {
-                if (reply == null) {
-                    reply = new InlineReply(null);
+        Lock shared = exclusive.readLock();
+        shared.lock();
+        return shared;
+    }
+
+    private void leave(Lock shared) {
+        if (shared != null) {
+            shared.unlock();
+        } else if (unlocked.decrementAndGet() == 0 && transactions.get() > 0) {
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        }
+    }
+
+    // Waits out the batches that started without the lock, before any MULTI
+    private void drain() throws InterruptedException {
+        synchronized (drained) {
+            while (unlocked.get() > 0) {
+                drained.wait();
+            }
+        }
+    }
+
+    /**
+     * Writes reply once the writes it acknowledges are durable and the replies held
+     * before it have been written. If close is set, answers and hangs up.
+     */
+    protected void write(final ChannelHandlerContext ctx, final Reply reply, boolean written, final boolean close) {
+        Held held = ctx.attr(HELD).get();
+        Future<?> sync = written && durable != null ? durable.durable() : null;
+        if (sync == null) {
+            if (held == null || held.outstanding.get() == 0) {
+                if (close) {
+                    ctx.writeAndFlush(reply).addListener(ChannelFutureListener.CLOSE);
                 } else {
-                    reply = new InlineReply(reply.data());
+                    ctx.write(reply);
+                }
+                return;
+            }
+            // wait behind the replies already held
+            sync = held.future;
+        }
+        if (held == null) {
+            held = new Held();
+            ctx.attr(HELD).set(held);
+        }
+        final Held h = held;
+        h.future = sync;
+        h.outstanding.incrementAndGet();
+        sync.addListener(new GenericFutureListener<Future<Object>>() {
+            @Override
+            public void operationComplete(Future<Object> future) throws Exception {
+                ChannelFuture write = ctx.writeAndFlush(future.isSuccess() ? reply : failed(reply, future.cause()));
+                if (close) {
+                    write.addListener(ChannelFutureListener.CLOSE);
                 }
+                h.outstanding.decrementAndGet();
             }
+        });
+    }
+
+    private static Reply failed(Reply reply, Throwable cause) {
+        ErrorReply error = new ErrorReply("ERR commit failed: " + cause.getMessage());
+        if (reply instanceof ReplyBatch) {
+            ReplyBatch errors = new ReplyBatch(((ReplyBatch) reply).size());
+            for (int i = 0; i < ((ReplyBatch) reply).size(); i++) {
+                errors.add(error);
+            }
+            return errors;
+        }
+        return error;
+    }
+
+    /**
+     * Replies of a channel waiting for a commit. Commits complete in order, so
+     * waiting on the latest one keeps the replies in order.
+     */
+    private static class Held {
+        private volatile Future<?> future;
+        private final AtomicInteger outstanding = new AtomicInteger();
+    }
+
+    protected RedisCommand lookup(Command msg) {
+        return commands.get(msg.getNameObject());
+    }
+
+    /**
+     * Runs MULTI, DISCARD, WATCH and UNWATCH and queues every other command while
+     * the connection is in MULTI, except QUIT and EXEC. UNWATCH is queued too then.
+     *
+     * @return the reply, or null if msg has to be executed or is an EXEC
+     */
+    protected Reply queue(ChannelHandlerContext ctx, Command msg, RedisCommand command) {
+        Transaction transaction = ctx.attr(TRANSACTION).get();
+        boolean queuing = transaction != null && transaction.isQueuing();
+        if (command == null || !command.isTransaction()) {
+            if (!queuing || command == quit) {
+                return null;
+            }
+            if (command == null || !command.checkArity(msg.argc())) {
+                transaction.refuse();
+                return execute(msg, command);
+            }
+            transaction.queue(msg, command);
+            return reply(msg, StatusReply.QUEUED);
+        }
+        if (!command.checkArity(msg.argc())) {
+            if (queuing) {
+                transaction.refuse();
+            }
+            return execute(msg, command);
+        }
+        if (queuing && command == unwatch) {
+            // like redis, only once the transaction runs
+            transaction.queue(msg, command);
+            return reply(msg, StatusReply.QUEUED);
+        }
+        if (command == exec) {
+            return null;
+        }
+        if (transaction == null) {
+            transaction = new Transaction();
+            ctx.attr(TRANSACTION).set(transaction);
+        }
+        if (command == multi) {
+            if (queuing) {
+                return reply(msg, new ErrorReply("ERR MULTI calls can not be nested"));
+            }
+            transactions.incrementAndGet();
+            transaction.begin();
+        } else if (command == discard) {
+            if (!queuing) {
+                return reply(msg, new ErrorReply("ERR DISCARD without MULTI"));
+            }
+            end(transaction);
+            watchedKeys.unwatch(transaction);
+        } else if (command == watch) {
+            if (queuing) {
+                return reply(msg, new ErrorReply("ERR WATCH inside MULTI is not allowed"));
+            }
+            for (byte[] key : msg.getArguments(1)) {
+                watchedKeys.watch(transaction, key);
+            }
+        } else {
+            watchedKeys.unwatch(transaction);
+        }
+        return reply(msg, StatusReply.OK);
+    }
+
+    protected boolean isExec(RedisCommand command) {
+        return command != null && command == exec;
+    }
+
+    /**
+     * A WATCH outside of MULTI that is to run after the commands sent before it,
+     * on another thread. Its keys aren't watched if the connection unwatches first.
+     *
+     * @return null if msg isn't such a WATCH, queue handles it then
+     */
+    protected DeferredWatch defer(ChannelHandlerContext ctx, Command msg, RedisCommand command) {
+        if (command == null || command != watch || !command.checkArity(msg.argc())) {
+            return null;
+        }
+        Transaction transaction = ctx.attr(TRANSACTION).get();
+        if (transaction == null) {
+            transaction = new Transaction();
+            ctx.attr(TRANSACTION).set(transaction);
+        } else if (transaction.isQueuing()) {
+            return null;
+        }
+        return new DeferredWatch(transaction, msg, watchedKeys.generation(transaction));
+    }
+
+    protected class DeferredWatch {
+        private final Transaction transaction;
+        private final Command msg;
+        private final int generation;
+
+        DeferredWatch(Transaction transaction, Command msg, int generation) {
+            this.transaction = transaction;
+            this.msg = msg;
+            this.generation = generation;
+        }
+
+        public Reply run() {
+            watchedKeys.watch(transaction, msg.getArguments(1), generation);
+            return reply(msg, StatusReply.OK);
+        }
+    }
+
+    /**
+     * Takes the transaction an EXEC is about to run off the connection, so the
+     * connection can carry on with a new one before it has run.
+     *
+     * @return null if the connection isn't in MULTI
+     */
+    protected Transaction take(ChannelHandlerContext ctx) {
+        Transaction transaction = ctx.attr(TRANSACTION).get();
+        if (transaction == null || !transaction.isQueuing()) {
+            return null;
+        }
+        ctx.attr(TRANSACTION).set(null);
+        return transaction;
+    }
+
+    /**
+     * Runs the commands queued by transaction, unless a key it watches was written
+     * meanwhile. Nothing else may run until it returns.
+     */
+    protected Reply exec(Transaction transaction, Command msg) {
+        if (transaction == null) {
+            return reply(msg, new ErrorReply("ERR EXEC without MULTI"));
+        }
+        try {
+            if (transaction.isRefused()) {
+                return reply(msg, new ErrorReply("EXECABORT Transaction discarded because of previous errors."));
+            }
+            if (transaction.dirty) {
+                return reply(msg, MultiBulkReply.NIL_REPLY);
+            }
+            List<Command> queued = transaction.queued();
+            List<RedisCommand> commands = transaction.commands();
+            Reply[] replies = new Reply[queued.size()];
+            if (transactional != null) {
+                transactional.begin();
+            }
+            try {
+                for (int i = 0; i < replies.length; i++) {
+                    if (commands.get(i) == unwatch) {
+                        // EXEC unwatches everything anyway
+                        replies[i] = reply(queued.get(i), StatusReply.OK);
+                        continue;
+                    }
+                    replies[i] = execute(queued.get(i), commands.get(i));
+                    touched(queued.get(i), commands.get(i));
+                }
+            } finally {
+                if (transactional != null) {
+                    transactional.end();
+                }
+            }
+            return reply(msg, new MultiBulkReply(replies));
+        } finally {
+            end(transaction);
+            watchedKeys.unwatch(transaction);
+        }
+    }
+
+    // Leaves MULTI, if transaction is in it
+    private void end(Transaction transaction) {
+        if (transaction.isQueuing()) {
+            transactions.decrementAndGet();
+        }
+        transaction.end();
+    }
+
+    /**
+     * Fails the transactions watching the keys msg wrote.
+     */
+    protected void touched(Command msg, RedisCommand command) {
+        if (command != null && command.isWrite()) {
+            watchedKeys.touched(msg, command);
+        }
+    }
+
+    /**
+     * Runs msg, turning a missing command or reply into an error and converting
+     * the reply for inline requests.
+     */
+    protected Reply execute(Command msg, RedisCommand command) {
+        Reply reply;
+        if (command == null) {
+            reply = new ErrorReply("unknown command '" + new String(msg.getName(), Charsets.US_ASCII) + "'");
+        } else if (atomic == null) {
+            reply = command.execute(msg);
+        } else {
+            atomic.enter();
+            try {
+                reply = command.execute(msg);
+            } finally {
+                atomic.leave();
+            }
+        }
+        if (reply == StatusReply.QUIT) {
+            return reply;
+        }
+        return reply(msg, reply);
+    }
+
+    /**
+     * Converts reply for inline requests and turns a missing one into an error.
+     */
+    private static Reply reply(Command msg, Reply reply) {
+        if (msg.isInline()) {
             if (reply == null) {
-                reply = ErrorReply.NYI_REPLY;
+                reply = new InlineReply(null);
+            } else {
+                reply = new InlineReply(reply.data());
             }
-            ctx.write(reply);
         }
+        if (reply == null) {
+            reply = ErrorReply.NYI_REPLY;
+        }
+        return reply;
     }
 }
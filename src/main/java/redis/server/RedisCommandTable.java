@@ -0,0 +1,206 @@
+package redis.server;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static redis.server.RedisCommand.*;
+
+/**
+ * Arity, flags and key positions of every command, following the redis command
+ * table. Arity counts the command name and is negative when it is a minimum. Keys
+ * are the arguments from firstKey to lastKey (negative counts from the end) every
+ * step; commands whose keys can't be found that way (EVAL, ZUNIONSTORE, SORT ...
+ * STORE) have none and are treated as touching the whole keyspace.
+ * <p/>
+ * Commands are implemented by the {@link RedisServer} method of the same name,
+ * except for transaction commands which are connection state and run by the
+ * {@link RedisCommandHandler}.
+ */
+public class RedisCommandTable {
+    private static final Map<String, int[]> SPECS = new LinkedHashMap<String, int[]>();
+
+    static {
+        // String
+        add("append", 3, WRITE, 1, 1, 1);
+        add("bitcount", -2, READONLY, 1, 1, 1);
+        add("bitop", -4, WRITE, 2, -1, 1);
+        add("decr", 2, WRITE, 1, 1, 1);
+        add("decrby", 3, WRITE, 1, 1, 1);
+        add("get", 2, READONLY, 1, 1, 1);
+        add("getbit", 3, READONLY, 1, 1, 1);
+        add("getrange", 4, READONLY, 1, 1, 1);
+        add("getset", 3, WRITE, 1, 1, 1);
+        add("incr", 2, WRITE, 1, 1, 1);
+        add("incrby", 3, WRITE, 1, 1, 1);
+        add("incrbyfloat", 3, WRITE, 1, 1, 1);
+        add("mget", -2, READONLY, 1, -1, 1);
+        add("mset", -3, WRITE, 1, -1, 2);
+        add("msetnx", -3, WRITE, 1, -1, 2);
+        add("psetex", 4, WRITE, 1, 1, 1);
+        add("set", 3, WRITE, 1, 1, 1);
+        add("setbit", 4, WRITE, 1, 1, 1);
+        add("setex", 4, WRITE, 1, 1, 1);
+        add("setnx", 3, WRITE, 1, 1, 1);
+        add("setrange", 4, WRITE, 1, 1, 1);
+        add("strlen", 2, READONLY, 1, 1, 1);
+        // Connection
+        add("auth", 2, READONLY | LOCAL, 0, 0, 0);
+        add("echo", 2, READONLY | LOCAL, 0, 0, 0);
+        add("ping", 1, READONLY | LOCAL, 0, 0, 0);
+        add("quit", 1, READONLY | LOCAL, 0, 0, 0);
+        add("select", 2, READONLY | LOCAL, 0, 0, 0);
+        // Server
+        add("bgrewriteaof", 1, ADMIN, 0, 0, 0);
+        add("bgsave", 1, ADMIN, 0, 0, 0);
+        add("client_kill", 2, ADMIN | LOCAL, 0, 0, 0);
+        add("client_list", 1, ADMIN | LOCAL, 0, 0, 0);
+        add("client_getname", 1, ADMIN | LOCAL, 0, 0, 0);
+        add("client_setname", 2, ADMIN | LOCAL, 0, 0, 0);
+        add("config_get", 2, ADMIN | LOCAL, 0, 0, 0);
+        add("config_set", 3, ADMIN | LOCAL, 0, 0, 0);
+        add("config_resetstat", 1, ADMIN | LOCAL, 0, 0, 0);
+        add("dbsize", 1, READONLY, 0, 0, 0);
+        add("debug_object", 2, ADMIN, 1, 1, 1);
+        add("debug_segfault", 1, ADMIN, 0, 0, 0);
+        add("flushall", 1, WRITE, 0, 0, 0);
+        add("flushdb", 1, WRITE, 0, 0, 0);
+        add("info", -1, READONLY, 0, 0, 0);
+        add("lastsave", 1, READONLY | LOCAL, 0, 0, 0);
+        add("monitor", 1, ADMIN, 0, 0, 0);
+        add("save", 1, ADMIN, 0, 0, 0);
+        add("shutdown", -1, ADMIN, 0, 0, 0);
+        add("slaveof", 3, ADMIN, 0, 0, 0);
+        add("slowlog", -2, ADMIN | LOCAL, 0, 0, 0);
+        add("sync", 1, ADMIN, 0, 0, 0);
+        add("time", 1, READONLY | LOCAL, 0, 0, 0);
+        // List
+        add("blpop", -3, WRITE, 1, -2, 1);
+        add("brpop", -3, WRITE, 1, -2, 1);
+        add("brpoplpush", 4, WRITE, 1, 2, 1);
+        add("lindex", 3, READONLY, 1, 1, 1);
+        add("linsert", 5, WRITE, 1, 1, 1);
+        add("llen", 2, READONLY, 1, 1, 1);
+        add("lpop", 2, WRITE, 1, 1, 1);
+        add("lpush", -3, WRITE, 1, 1, 1);
+        add("lpushx", 3, WRITE, 1, 1, 1);
+        add("lrange", 4, READONLY, 1, 1, 1);
+        add("lrem", 4, WRITE, 1, 1, 1);
+        add("lset", 4, WRITE, 1, 1, 1);
+        add("ltrim", 4, WRITE, 1, 1, 1);
+        add("rpop", 2, WRITE, 1, 1, 1);
+        add("rpoplpush", 3, WRITE, 1, 2, 1);
+        add("rpush", -3, WRITE, 1, 1, 1);
+        add("rpushx", 3, WRITE, 1, 1, 1);
+        // Keys
+        add("del", -2, WRITE, 1, -1, 1);
+        add("dump", 2, READONLY, 1, 1, 1);
+        add("exists", 2, READONLY, 1, 1, 1);
+        add("expire", 3, WRITE, 1, 1, 1);
+        add("expireat", 3, WRITE, 1, 1, 1);
+        add("keys", 2, READONLY, 0, 0, 0);
+        add("migrate", 6, WRITE, 3, 3, 1);
+        add("move", 3, WRITE, 1, 1, 1);
+        add("object", -2, READONLY, 2, 2, 1);
+        add("persist", 2, WRITE, 1, 1, 1);
+        add("pexpire", 3, WRITE, 1, 1, 1);
+        add("pexpireat", 3, WRITE, 1, 1, 1);
+        add("pttl", 2, READONLY, 1, 1, 1);
+        add("randomkey", 1, READONLY, 0, 0, 0);
+        add("rename", 3, WRITE, 1, 2, 1);
+        add("renamenx", 3, WRITE, 1, 2, 1);
+        add("scan", -2, READONLY, 0, 0, 0);
+        add("restore", 4, WRITE, 1, 1, 1);
+        add("sort", -2, WRITE, 0, 0, 0);
+        add("ttl", 2, READONLY, 1, 1, 1);
+        add("type", 2, READONLY, 1, 1, 1);
+        // Transactions
+        add("discard", 1, READONLY | LOCAL | TRANSACTION, 0, 0, 0);
+        add("exec", 1, TRANSACTION, 0, 0, 0);
+        add("multi", 1, READONLY | LOCAL | TRANSACTION, 0, 0, 0);
+        add("unwatch", 1, READONLY | LOCAL | TRANSACTION, 0, 0, 0);
+        add("watch", -2, READONLY | TRANSACTION, 1, -1, 1);
+        // Scripting
+        add("eval", -3, 0, 0, 0, 0);
+        add("evalsha", -3, 0, 0, 0, 0);
+        add("script_exists", -2, 0, 0, 0, 0);
+        add("script_flush", 1, 0, 0, 0, 0);
+        add("script_kill", 1, 0, 0, 0, 0);
+        add("script_load", 2, 0, 0, 0, 0);
+        // Hash
+        add("hdel", -3, WRITE, 1, 1, 1);
+        add("hexists", 3, READONLY, 1, 1, 1);
+        add("hget", 3, READONLY, 1, 1, 1);
+        add("hgetall", 2, READONLY, 1, 1, 1);
+        add("hincrby", 4, WRITE, 1, 1, 1);
+        add("hincrbyfloat", 4, WRITE, 1, 1, 1);
+        add("hkeys", 2, READONLY, 1, 1, 1);
+        add("hlen", 2, READONLY, 1, 1, 1);
+        add("hmget", -3, READONLY, 1, 1, 1);
+        add("hmset", -4, WRITE, 1, 1, 1);
+        add("hscan", -3, READONLY, 1, 1, 1);
+        add("hset", 4, WRITE, 1, 1, 1);
+        add("hsetnx", 4, WRITE, 1, 1, 1);
+        add("hvals", 2, READONLY, 1, 1, 1);
+        // Pub/Sub
+        add("publish", 3, PUBSUB | LOCAL, 0, 0, 0);
+        // Set
+        add("sadd", -3, WRITE, 1, 1, 1);
+        add("scard", 2, READONLY, 1, 1, 1);
+        add("sdiff", -2, READONLY, 1, -1, 1);
+        add("sdiffstore", -3, WRITE, 1, -1, 1);
+        add("sinter", -2, READONLY, 1, -1, 1);
+        add("sinterstore", -3, WRITE, 1, -1, 1);
+        add("sismember", 3, READONLY, 1, 1, 1);
+        add("smembers", 2, READONLY, 1, 1, 1);
+        add("smove", 4, WRITE, 1, 2, 1);
+        add("spop", 2, WRITE, 1, 1, 1);
+        add("srandmember", -2, READONLY, 1, 1, 1);
+        add("srem", -3, WRITE, 1, 1, 1);
+        add("sscan", -3, READONLY, 1, 1, 1);
+        add("sunion", -2, READONLY, 1, -1, 1);
+        add("sunionstore", -3, WRITE, 1, -1, 1);
+        // Sorted Set
+        add("zadd", -4, WRITE, 1, 1, 1);
+        add("zcard", 2, READONLY, 1, 1, 1);
+        add("zcount", 4, READONLY, 1, 1, 1);
+        add("zincrby", 4, WRITE, 1, 1, 1);
+        add("zinterstore", -4, WRITE, 0, 0, 0);
+        add("zrange", -4, READONLY, 1, 1, 1);
+        add("zrangebyscore", -4, READONLY, 1, 1, 1);
+        add("zrank", 3, READONLY, 1, 1, 1);
+        add("zrem", -3, WRITE, 1, 1, 1);
+        add("zremrangebyrank", 4, WRITE, 1, 1, 1);
+        add("zremrangebyscore", 4, WRITE, 1, 1, 1);
+        add("zrevrange", -4, READONLY, 1, 1, 1);
+        add("zrevrangebyscore", -4, READONLY, 1, 1, 1);
+        add("zrevrank", 3, READONLY, 1, 1, 1);
+        add("zscan", -3, READONLY, 1, 1, 1);
+        add("zscore", 3, READONLY, 1, 1, 1);
+        add("zunionstore", -4, WRITE, 0, 0, 0);
+    }
+
+    private static void add(String name, int arity, int flags, int firstKey, int lastKey, int step) {
+        SPECS.put(name, new int[]{arity, flags, firstKey, lastKey, step});
+    }
+
+    /**
+     * Binds every command in the table that rs implements, and the transaction commands.
+     */
+    public static Map<String, RedisCommand> bind(RedisServer rs) {
+        Map<String, Method> methods = new LinkedHashMap<String, Method>();
+        for (Method method : rs.getClass().getMethods()) {
+            methods.put(method.getName(), method);
+        }
+        Map<String, RedisCommand> commands = new LinkedHashMap<String, RedisCommand>();
+        for (Map.Entry<String, int[]> entry : SPECS.entrySet()) {
+            String name = entry.getKey();
+            int[] spec = entry.getValue();
+            Method method = (spec[1] & TRANSACTION) != 0 ? null : methods.get(name);
+            if (method != null || (spec[1] & TRANSACTION) != 0) {
+                commands.put(name, new RedisCommand(name, spec[0], spec[1], spec[2], spec[3], spec[4], rs, method));
+            }
+        }
+        return commands;
+    }
+}
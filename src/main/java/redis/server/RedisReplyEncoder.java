@@ -1,16 +1,177 @@
 package redis.server;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import redis.server.reply.BulkReply;
+import redis.server.reply.MultiBulkReply;
 import redis.server.reply.Reply;
+import redis.server.reply.ReplyBatch;
+import redis.server.reply.ChunkedMultiBulkReply;
+
+import java.io.IOException;
+import java.util.List;
+
+import static redis.util.Encoding.numToBytes;
 
 /**
  * Write a reply.
+ * <p/>
+ * The output buffer is sized from {@link Reply#encodedLength()} so it is never
+ * resized while writing. In pooled mode the buffer comes from the pooled direct
+ * allocator and bulk values of at least compositeThreshold bytes aren't copied at
+ * all: they become components of a {@link CompositeByteBuf} next to slices of the
+ * buffer holding everything else.
+ * <p/>
+ * A {@link ChunkedMultiBulkReply} is passed on as is, for the
+ * {@link io.netty.handler.stream.ChunkedWriteHandler} after this encoder to write.
  */
-public class RedisReplyEncoder extends MessageToByteEncoder<Reply> {
+public class RedisReplyEncoder extends MessageToMessageEncoder<Reply> {
+    public static final int DEFAULT_COMPOSITE_THRESHOLD = 8 * 1024;
+
+    private final boolean pooled;
+    private final int compositeThreshold;
+
+    public RedisReplyEncoder() {
+        this(false, DEFAULT_COMPOSITE_THRESHOLD);
+    }
+
+    public RedisReplyEncoder(boolean pooled, int compositeThreshold) {
+        this.pooled = pooled;
+        this.compositeThreshold = compositeThreshold;
+    }
+
     @Override
-    public void encode(ChannelHandlerContext ctx, Reply msg, ByteBuf out) throws Exception {
-        msg.write(out);
+    public void encode(ChannelHandlerContext ctx, Reply msg, List<Object> out) throws Exception {
+        if (msg instanceof ChunkedMultiBulkReply) {
+            out.add(msg);
+            return;
+        }
+        if (msg instanceof ReplyBatch && isChunked((ReplyBatch) msg)) {
+            // everything between the chunked replies is encoded as usual
+            ReplyBatch run = new ReplyBatch(((ReplyBatch) msg).size());
+            for (Reply reply : (ReplyBatch) msg) {
+                if (reply instanceof ChunkedMultiBulkReply) {
+                    if (!run.isEmpty()) {
+                        encode(ctx, run, out);
+                        run = new ReplyBatch(((ReplyBatch) msg).size());
+                    }
+                    out.add(reply);
+                } else {
+                    run.add(reply);
+                }
+            }
+            if (!run.isEmpty()) {
+                encode(ctx, run, out);
+            }
+            return;
+        }
+        if (!pooled) {
+            ByteBuf buf = ctx.alloc().buffer(msg.encodedLength());
+            msg.write(buf);
+            out.add(buf);
+            return;
+        }
+        ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+        int length = msg.encodedLength();
+        int large = largeLength(msg);
+        ByteBuf buf = alloc.directBuffer(length - large);
+        if (large == 0) {
+            msg.write(buf);
+            out.add(buf);
+            return;
+        }
+        // never consolidated, that would copy the large values after all
+        CompositeByteBuf composite = alloc.compositeDirectBuffer(Integer.MAX_VALUE);
+        boolean written = false;
+        try {
+            int start = write(msg, buf, 0, composite);
+            if (start < buf.writerIndex()) {
+                composite.addComponent(true, buf.slice(start, buf.writerIndex() - start).retain());
+            }
+            out.add(composite);
+            written = true;
+        } finally {
+            if (!written) {
+                // along with the components added so far
+                composite.release();
+            }
+            // the slices keep it alive
+            buf.release();
+        }
+    }
+
+    /**
+     * Writes msg into buf, except for large bulk values. Every time one is reached the
+     * bytes of buf written since start are sliced off and added, followed by the value.
+     *
+     * @return where the next slice of buf starts
+     */
+    private int write(Reply msg, ByteBuf buf, int start, CompositeByteBuf composite) throws IOException {
+        if (msg instanceof MultiBulkReply && ((MultiBulkReply) msg).data() != null) {
+            Reply[] replies = ((MultiBulkReply) msg).data();
+            buf.writeByte(MultiBulkReply.MARKER);
+            buf.writeBytes(numToBytes(replies.length, true));
+            for (Reply reply : replies) {
+                start = write(reply, buf, start, composite);
+            }
+        } else if (msg instanceof ReplyBatch) {
+            for (Reply reply : (ReplyBatch) msg) {
+                start = write(reply, buf, start, composite);
+            }
+        } else if (isLarge(msg)) {
+            ByteBuf data = ((BulkReply) msg).data();
+            int length = data.readableBytes();
+            buf.writeByte(BulkReply.MARKER);
+            buf.writeBytes(numToBytes(length, true));
+            composite.addComponent(true, buf.slice(start, buf.writerIndex() - start).retain());
+            composite.addComponent(true, data.slice(data.readerIndex(), length).retain());
+            start = buf.writerIndex();
+            buf.writeBytes(Reply.CRLF);
+        } else {
+            msg.write(buf);
+        }
+        return start;
+    }
+
+    private static boolean isChunked(ReplyBatch batch) {
+        for (Reply reply : batch) {
+            if (reply instanceof ChunkedMultiBulkReply) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isLarge(Reply msg) {
+        if (msg instanceof BulkReply) {
+            ByteBuf data = ((BulkReply) msg).data();
+            return data != null && data.readableBytes() >= compositeThreshold;
+        }
+        return false;
+    }
+
+    /**
+     * Total size of the bulk values that will be passed through as components.
+     */
+    private int largeLength(Reply msg) {
+        if (msg instanceof MultiBulkReply && ((MultiBulkReply) msg).data() != null) {
+            int length = 0;
+            for (Reply reply : ((MultiBulkReply) msg).data()) {
+                length += largeLength(reply);
+            }
+            return length;
+        }
+        if (msg instanceof ReplyBatch) {
+            int length = 0;
+            for (Reply reply : (ReplyBatch) msg) {
+                length += largeLength(reply);
+            }
+            return length;
+        }
+        return isLarge(msg) ? ((BulkReply) msg).data().readableBytes() : 0;
     }
 }
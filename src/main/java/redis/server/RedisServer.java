@@ -688,6 +688,16 @@ public interface RedisServer {
      */
     public MultiBulkReply keys(byte[] pattern0) throws RedisException;
 
+    /**
+     * Incrementally iterate the keys space
+     * Generic
+     *
+     * @param cursor0
+     * @param attributes1
+     * @return MultiBulkReply
+     */
+    public MultiBulkReply scan(byte[] cursor0, byte[][] attributes1) throws RedisException;
+
     /**
      * Atomically transfer a key from a Redis instance to another one.
      * Generic
@@ -826,23 +836,6 @@ public interface RedisServer {
      */
     public StatusReply type(byte[] key0) throws RedisException;
 
-    /**
-     * Forget about all watched keys
-     * Transactions
-     *
-     * @return StatusReply
-     */
-    public StatusReply unwatch() throws RedisException;
-
-    /**
-     * Watch the given keys to determine execution of the MULTI/EXEC block
-     * Transactions
-     *
-     * @param key0
-     * @return StatusReply
-     */
-    public StatusReply watch(byte[][] key0) throws RedisException;
-
     /**
      * Execute a Lua script server side
      * Scripting
@@ -1029,6 +1022,17 @@ public interface RedisServer {
      */
     public MultiBulkReply hvals(byte[] key0) throws RedisException;
 
+    /**
+     * Incrementally iterate hash fields and associated values
+     * Hash
+     *
+     * @param key0
+     * @param cursor1
+     * @param attributes2
+     * @return MultiBulkReply
+     */
+    public MultiBulkReply hscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException;
+
     /**
      * Post a message to a channel
      * Pubsub
@@ -1174,6 +1178,17 @@ public interface RedisServer {
      */
     public IntegerReply sunionstore(byte[] destination0, byte[][] key1) throws RedisException;
 
+    /**
+     * Incrementally iterate Set elements
+     * Set
+     *
+     * @param key0
+     * @param cursor1
+     * @param attributes2
+     * @return MultiBulkReply
+     */
+    public MultiBulkReply sscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException;
+
     /**
      * Add one or more members to a sorted set, or update its score if it already exists
      * Sorted_set
@@ -1347,4 +1362,15 @@ public interface RedisServer {
      * @return IntegerReply
      */
     public IntegerReply zunionstore(byte[] destination0, byte[] numkeys1, byte[][] key2) throws RedisException;
+
+    /**
+     * Incrementally iterate sorted sets elements and associated scores
+     * Sorted_set
+     *
+     * @param key0
+     * @param cursor1
+     * @param attributes2
+     * @return MultiBulkReply
+     */
+    public MultiBulkReply zscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException;
 }
@@ -0,0 +1,120 @@
+package redis.server;
+
+import com.google.common.base.Charsets;
+import redis.server.reply.BulkReply;
+import redis.server.reply.MultiBulkReply;
+import redis.server.reply.Reply;
+import redis.util.GlobPattern;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import static redis.util.Encoding.bytesToNum;
+import static redis.util.Encoding.numToBytes;
+
+/**
+ * The MATCH and COUNT options of SCAN, HSCAN, SSCAN and ZSCAN, and their reply:
+ * the cursor to continue from, 0 when done, followed by the elements.
+ * <p/>
+ * A cursor is either a position, like a hash table bucket, or the key to resume
+ * after. A key is sent as one decimal number, the key's bytes after a leading 1
+ * byte, so the server doesn't have to remember it. That number can be larger than
+ * 64 bits, so clients must pass cursors back as the strings they got.
+ */
+public class ScanArguments {
+    public static final int DEFAULT_COUNT = 10;
+
+    // null matches everything
+    public final GlobPattern pattern;
+    public final int count;
+
+    public ScanArguments(byte[][] attributes) throws RedisException {
+        GlobPattern pattern = null;
+        long count = DEFAULT_COUNT;
+        if (attributes != null) {
+            for (int i = 0; i < attributes.length; i += 2) {
+                String name = new String(attributes[i], Charsets.US_ASCII);
+                if (i + 1 == attributes.length) {
+                    throw new RedisException("syntax error");
+                } else if (name.equalsIgnoreCase("match")) {
+                    pattern = GlobPattern.compile(attributes[i + 1]);
+                } else if (name.equalsIgnoreCase("count")) {
+                    try {
+                        count = bytesToNum(attributes[i + 1]);
+                    } catch (IllegalArgumentException e) {
+                        throw new RedisException(e.getMessage());
+                    }
+                    if (count < 1 || count > Integer.MAX_VALUE) {
+                        throw new RedisException("syntax error");
+                    }
+                } else {
+                    throw new RedisException("syntax error");
+                }
+            }
+        }
+        this.pattern = pattern;
+        this.count = (int) count;
+    }
+
+    public boolean matches(byte[] bytes) {
+        return pattern == null || pattern.matches(bytes);
+    }
+
+    public static long cursor(byte[] cursor0) throws RedisException {
+        long cursor;
+        try {
+            cursor = bytesToNum(cursor0);
+        } catch (IllegalArgumentException e) {
+            throw new RedisException("invalid cursor");
+        }
+        if (cursor < 0) {
+            throw new RedisException("invalid cursor");
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the key to resume after, null to start from the beginning
+     */
+    public static byte[] resume(byte[] cursor0) throws RedisException {
+        byte[] marked;
+        try {
+            BigInteger cursor = new BigInteger(new String(cursor0, Charsets.US_ASCII));
+            if (cursor.signum() == 0) {
+                return null;
+            }
+            marked = cursor.toByteArray();
+        } catch (NumberFormatException e) {
+            throw new RedisException("invalid cursor");
+        }
+        if (marked[0] != 1) {
+            throw new RedisException("invalid cursor");
+        }
+        return Arrays.copyOfRange(marked, 1, marked.length);
+    }
+
+    public static MultiBulkReply reply(long cursor, List<Reply> elements) {
+        return withCursor(numToBytes(cursor), elements);
+    }
+
+    /**
+     * The reply of a scan that resumes after the given key, or is done if it is null.
+     */
+    public static MultiBulkReply reply(byte[] after, List<Reply> elements) {
+        if (after == null) {
+            return reply(0, elements);
+        }
+        byte[] marked = new byte[after.length + 1];
+        marked[0] = 1;
+        System.arraycopy(after, 0, marked, 1, after.length);
+        return withCursor(new BigInteger(marked).toString().getBytes(Charsets.US_ASCII), elements);
+    }
+
+    private static MultiBulkReply withCursor(byte[] cursor, List<Reply> elements) {
+        return new MultiBulkReply(new Reply[]{
+                new BulkReply(cursor),
+                new MultiBulkReply(elements.toArray(new Reply[elements.size()]))
+        });
+    }
+}
@@ -0,0 +1,283 @@
+package redis.server;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+import redis.server.reply.Command;
+import redis.server.reply.CommandBatch;
+import redis.server.reply.Reply;
+import redis.server.reply.ReplyBatch;
+import redis.server.reply.StatusReply;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Handle decoded commands on a {@link ShardedExecutor}, routing each one by the
+ * hash of its keys rather than running the whole channel on one executor.
+ * <p/>
+ * Commands on the same key always run in order on the same shard, whichever
+ * connection they came from. Commands spanning several shards stop all of them
+ * and commands without keys that touch the keyspace (FLUSHALL, KEYS...) stop
+ * every shard. Commands that don't touch the keyspace at all run right away on
+ * the channel's event loop, and so does the MULTI bookkeeping. WATCH runs on the
+ * shards of its keys, after the writes sent before it. EXEC stops every shard.
+ * Replies are put back in request order per channel and written from the event
+ * loop.
+ */
+@ChannelHandler.Sharable
+public class ShardedCommandHandler extends RedisCommandHandler {
+    private static final AttributeKey<Sequencer> SEQUENCER = AttributeKey.valueOf("redis.sequencer");
+
+    private final ShardedExecutor executor;
+
+    public ShardedCommandHandler(RedisServer rs, ShardedExecutor executor) {
+        super(rs);
+        this.executor = executor;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, CommandBatch batch) throws Exception {
+        Sequencer sequencer = ctx.attr(SEQUENCER).get();
+        if (sequencer == null) {
+            sequencer = new Sequencer(this, ctx);
+            ctx.attr(SEQUENCER).set(sequencer);
+        }
+        Pending pending = sequencer.add(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Command msg = batch.get(i);
+            RedisCommand command = lookup(msg);
+            DeferredWatch watch = defer(ctx, msg, command);
+            if (watch != null) {
+                // or the connection's own earlier writes would mark it dirty
+                executor.execute(shards(msg, command), new Watch(pending, i, watch));
+                continue;
+            }
+            Reply queued = queue(ctx, msg, command);
+            if (queued != null) {
+                pending.set(i, queued, false);
+                continue;
+            }
+            if (isExec(command)) {
+                executor.executeAll(new Exec(pending, i, msg, take(ctx)));
+                continue;
+            }
+            if (command == null || command.isLocal() || !command.checkArity(msg.argc())) {
+                Reply reply = execute(msg, command);
+                if (reply == StatusReply.QUIT) {
+                    pending.quit(i);
+                    break;
+                }
+                pending.set(i, reply, false);
+                continue;
+            }
+            Runnable task = new Task(pending, i, msg, command);
+            int[] shards = shards(msg, command);
+            if (shards == null) {
+                executor.executeAll(task);
+            } else {
+                executor.execute(shards, task);
+            }
+        }
+    }
+
+    /**
+     * @return the distinct shards of the keys of msg or null if it has none
+     */
+    private int[] shards(Command msg, RedisCommand command) {
+        int first = command.getFirstKey();
+        if (first == 0) {
+            return null;
+        }
+        int last = command.getLastKey(msg.argc());
+        int step = command.getStep();
+        int shard = executor.shard(msg.getArgument(first));
+        if (first == last) {
+            return new int[]{shard};
+        }
+        boolean[] involved = new boolean[executor.size()];
+        involved[shard] = true;
+        int count = 1;
+        for (int i = first + step; i <= last; i += step) {
+            shard = executor.shard(msg.getArgument(i));
+            if (!involved[shard]) {
+                involved[shard] = true;
+                count++;
+            }
+        }
+        int[] shards = new int[count];
+        for (int i = 0, j = 0; i < involved.length; i++) {
+            if (involved[i]) {
+                shards[j++] = i;
+            }
+        }
+        return shards;
+    }
+
+    private class Task implements Runnable {
+        private final Pending pending;
+        private final int index;
+        private final Command msg;
+        private final RedisCommand command;
+
+        Task(Pending pending, int index, Command msg, RedisCommand command) {
+            this.pending = pending;
+            this.index = index;
+            this.msg = msg;
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            Reply reply = execute(msg, command);
+            touched(msg, command);
+            pending.set(index, reply, command.isWrite());
+        }
+    }
+
+    private static class Watch implements Runnable {
+        private final Pending pending;
+        private final int index;
+        private final DeferredWatch watch;
+
+        Watch(Pending pending, int index, DeferredWatch watch) {
+            this.pending = pending;
+            this.index = index;
+            this.watch = watch;
+        }
+
+        @Override
+        public void run() {
+            pending.set(index, watch.run(), false);
+        }
+    }
+
+    private class Exec implements Runnable {
+        private final Pending pending;
+        private final int index;
+        private final Command msg;
+        private final Transaction transaction;
+
+        Exec(Pending pending, int index, Command msg, Transaction transaction) {
+            this.pending = pending;
+            this.index = index;
+            this.msg = msg;
+            this.transaction = transaction;
+        }
+
+        @Override
+        public void run() {
+            boolean written = transaction != null && transaction.isWrite();
+            pending.set(index, exec(transaction, msg), written);
+        }
+    }
+
+    /**
+     * The replies of one batch as they come in from the shards.
+     */
+    private static class Pending {
+        private final Sequencer sequencer;
+        private final Reply[] replies;
+        private int remaining;
+        private boolean written;
+        private boolean quit;
+
+        Pending(Sequencer sequencer, int size) {
+            this.sequencer = sequencer;
+            this.replies = new Reply[size];
+            this.remaining = size;
+        }
+
+        void set(int index, Reply reply, boolean written) {
+            synchronized (sequencer) {
+                replies[index] = reply;
+                this.written |= written;
+                if (--remaining == 0) {
+                    sequencer.ready();
+                }
+            }
+        }
+
+        /**
+         * Only the commands before index will be answered.
+         */
+        void quit(int index) {
+            synchronized (sequencer) {
+                quit = true;
+                remaining -= replies.length - index;
+                if (remaining == 0) {
+                    sequencer.ready();
+                }
+            }
+        }
+
+        Reply reply() {
+            int size = replies.length;
+            if (quit) {
+                while (size > 0 && replies[size - 1] == null) {
+                    size--;
+                }
+            }
+            if (size == 1) {
+                return replies[0];
+            }
+            ReplyBatch batch = new ReplyBatch(size);
+            batch.addAll(Arrays.asList(replies).subList(0, size));
+            return batch;
+        }
+    }
+
+    /**
+     * Writes the batches of a channel in the order they were read, always from
+     * its event loop: a write made right away there would overtake the ones the
+     * shards handed to it before.
+     */
+    private static class Sequencer implements Runnable {
+        private final RedisCommandHandler handler;
+        private final ChannelHandlerContext ctx;
+        private final ArrayDeque<Pending> batches = new ArrayDeque<Pending>();
+
+        Sequencer(RedisCommandHandler handler, ChannelHandlerContext ctx) {
+            this.handler = handler;
+            this.ctx = ctx;
+        }
+
+        // Called once a batch has all its replies
+        void ready() {
+            if (ctx.executor().inEventLoop()) {
+                drain();
+            } else {
+                ctx.executor().execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            drain();
+        }
+
+        synchronized Pending add(int size) {
+            Pending pending = new Pending(this, size);
+            batches.add(pending);
+            return pending;
+        }
+
+        synchronized void drain() {
+            boolean written = false;
+            Pending head;
+            while ((head = batches.peek()) != null && head.remaining == 0) {
+                batches.poll();
+                // Answers everything before a QUIT, then hangs up
+                handler.write(ctx, head.reply(), head.written, head.quit);
+                if (head.quit) {
+                    batches.clear();
+                    return;
+                }
+                written = true;
+            }
+            if (written) {
+                ctx.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package redis.server;
+
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single threaded shards, each one owning the keys that hash to it.
+ * <p/>
+ * Everything touching a key runs in order on its shard's thread. A task for
+ * several shards is queued on each of them: every shard thread stops when it
+ * reaches the task, the last one to arrive runs it while the others wait, and
+ * then they all carry on. Those tasks are queued under one lock so every shard
+ * sees them in the same order, which keeps them from waiting on each other.
+ */
+public class ShardedExecutor {
+    private final DefaultEventExecutorGroup group;
+    private final EventExecutor[] shards;
+    private final int[] all;
+
+    public ShardedExecutor(int threads) {
+        group = new DefaultEventExecutorGroup(threads);
+        shards = new EventExecutor[threads];
+        Iterator<EventExecutor> executors = group.iterator();
+        for (int i = 0; i < threads; i++) {
+            shards[i] = executors.next();
+        }
+        all = new int[threads];
+        for (int i = 0; i < threads; i++) {
+            all[i] = i;
+        }
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    public int shard(byte[] key) {
+        int hash = Arrays.hashCode(key);
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shards.length;
+    }
+
+    public void execute(int shard, Runnable task) {
+        shards[shard].execute(task);
+    }
+
+    /**
+     * Runs task once, while every one of the given shards is stopped.
+     *
+     * @param involved shard indexes, without duplicates
+     */
+    public synchronized void execute(int[] involved, final Runnable task) {
+        if (involved.length == 1) {
+            execute(involved[0], task);
+            return;
+        }
+        final AtomicInteger waiting = new AtomicInteger(involved.length);
+        final CountDownLatch done = new CountDownLatch(1);
+        Runnable barrier = new Runnable() {
+            @Override
+            public void run() {
+                if (waiting.decrementAndGet() == 0) {
+                    try {
+                        task.run();
+                    } finally {
+                        done.countDown();
+                    }
+                } else {
+                    boolean interrupted = false;
+                    while (true) {
+                        try {
+                            done.await();
+                            break;
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        for (int shard : involved) {
+            shards[shard].execute(barrier);
+        }
+    }
+
+    /**
+     * Runs task while every shard is stopped.
+     */
+    public void executeAll(Runnable task) {
+        execute(all, task);
+    }
+
+    public void scheduleAtFixedRate(int shard, Runnable task, long period, TimeUnit unit) {
+        shards[shard].scheduleAtFixedRate(task, period, period, unit);
+    }
+
+    public Future<?> shutdownGracefully() {
+        return group.shutdownGracefully();
+    }
+}
@@ -0,0 +1,80 @@
+package redis.server;
+
+import redis.server.reply.Command;
+import redis.util.BytesKey;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The MULTI/EXEC state of a connection: the commands queued since MULTI and the
+ * keys it watches. Only used from the connection's own handler, apart from
+ * {@link #dirty} which writes of other connections set through {@link WatchedKeys}.
+ */
+public class Transaction {
+    // Commands queued since MULTI, retained until EXEC or DISCARD; null outside of MULTI
+    private List<Command> queued;
+    private List<RedisCommand> commands;
+    // A command was refused while queuing, so EXEC fails
+    private boolean refused;
+    final Set<BytesKey> watched = new HashSet<BytesKey>();
+    // A watched key was written since it was watched
+    volatile boolean dirty;
+    // Times the keys were unwatched, so a WATCH run late can tell; guarded by WatchedKeys
+    int unwatched;
+
+    public boolean isQueuing() {
+        return queued != null;
+    }
+
+    void begin() {
+        queued = new ArrayList<Command>();
+        commands = new ArrayList<RedisCommand>();
+        refused = false;
+    }
+
+    void queue(Command msg, RedisCommand command) {
+        queued.add(msg);
+        commands.add(command);
+    }
+
+    void refuse() {
+        refused = true;
+    }
+
+    boolean isRefused() {
+        return refused;
+    }
+
+    /**
+     * @return true if a queued command writes
+     */
+    boolean isWrite() {
+        if (commands != null) {
+            for (RedisCommand command : commands) {
+                if (command.isWrite()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    List<Command> queued() {
+        return queued;
+    }
+
+    List<RedisCommand> commands() {
+        return commands;
+    }
+
+    /**
+     * Drops the queued commands and leaves MULTI.
+     */
+    void end() {
+        queued = null;
+        commands = null;
+    }
+}
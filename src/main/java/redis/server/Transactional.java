@@ -0,0 +1,18 @@
+package redis.server;
+
+/**
+ * A server that can make the writes of several commands land together, for EXEC.
+ * Commands of other connections never run in between; this keeps the server's
+ * own background work, like commits and expiry, from splitting them.
+ */
+public interface Transactional {
+    /**
+     * Called before the commands of a transaction run, on the thread running them.
+     */
+    void begin();
+
+    /**
+     * Called once they have run, even if one of them failed.
+     */
+    void end();
+}
@@ -0,0 +1,104 @@
+package redis.server;
+
+import redis.server.reply.Command;
+import redis.util.BytesKey;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which transactions watch which keys. Writes mark the transactions watching
+ * the keys they touch as dirty, so their EXEC fails, like the watched_keys
+ * dictionary of redis. Writes whose keys aren't in the command table mark every
+ * watching transaction.
+ * <p/>
+ * Writes only look at the table once something is watched.
+ */
+public class WatchedKeys {
+    private final Map<BytesKey, Set<Transaction>> watchers = new HashMap<BytesKey, Set<Transaction>>();
+    // Number of transactions watching at least one key
+    private volatile int watching;
+
+    public synchronized void watch(Transaction transaction, byte[] key) {
+        BytesKey bytesKey = new BytesKey(key);
+        if (transaction.watched.add(bytesKey)) {
+            Set<Transaction> transactions = watchers.get(bytesKey);
+            if (transactions == null) {
+                transactions = new HashSet<Transaction>();
+                watchers.put(bytesKey, transactions);
+            }
+            transactions.add(transaction);
+            if (transaction.watched.size() == 1) {
+                watching++;
+            }
+        }
+    }
+
+    /**
+     * @return what to pass to {@link #watch(Transaction, byte[][], int)} to watch
+     * keys later, unless transaction unwatches meanwhile
+     */
+    public synchronized int generation(Transaction transaction) {
+        return transaction.unwatched;
+    }
+
+    public synchronized void watch(Transaction transaction, byte[][] keys, int generation) {
+        if (transaction.unwatched == generation) {
+            for (byte[] key : keys) {
+                watch(transaction, key);
+            }
+        }
+    }
+
+    /**
+     * Stops watching every key of transaction and forgets whether one was written.
+     */
+    public synchronized void unwatch(Transaction transaction) {
+        for (BytesKey key : transaction.watched) {
+            Set<Transaction> transactions = watchers.get(key);
+            transactions.remove(transaction);
+            if (transactions.isEmpty()) {
+                watchers.remove(key);
+            }
+        }
+        if (!transaction.watched.isEmpty()) {
+            transaction.watched.clear();
+            watching--;
+        }
+        transaction.dirty = false;
+        transaction.unwatched++;
+    }
+
+    /**
+     * Called after msg ran, if command writes.
+     */
+    public void touched(Command msg, RedisCommand command) {
+        if (watching == 0) {
+            return;
+        }
+        synchronized (this) {
+            int first = command.getFirstKey();
+            if (first == 0) {
+                for (Set<Transaction> transactions : watchers.values()) {
+                    dirty(transactions);
+                }
+                return;
+            }
+            int last = command.getLastKey(msg.argc());
+            for (int i = first; i <= last; i += command.getStep()) {
+                Set<Transaction> transactions = watchers.get(new BytesKey(msg.getArgument(i)));
+                if (transactions != null) {
+                    dirty(transactions);
+                }
+            }
+        }
+    }
+
+    private static void dirty(Set<Transaction> transactions) {
+        for (Transaction transaction : transactions) {
+            transaction.dirty = true;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package redis.server.backend.mapdb;
+
+import java.util.Arrays;
+
+/**
+ * (redis key, member) pairs encoded as one byte[] for the shared small collections.
+ * <p/>
+ * The encoding is the length of the key, the key and the member. Every member of a
+ * key then shares the prefix returned by {@link #prefix(byte[])}, so in a byte[]
+ * ordered map they are next to each other and start right at the prefix.
+ */
+public class MapDBCompositeKey {
+    public static byte[] prefix(byte[] key) {
+        return compose(key, null);
+    }
+
+    public static byte[] compose(byte[] key, byte[] member) {
+        int memberLength = member == null ? 0 : member.length;
+        byte[] bytes = new byte[4 + key.length + memberLength];
+        int length = key.length;
+        bytes[0] = (byte) (length >>> 24);
+        bytes[1] = (byte) (length >>> 16);
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+        System.arraycopy(key, 0, bytes, 4, length);
+        if (member != null) {
+            System.arraycopy(member, 0, bytes, 4 + length, memberLength);
+        }
+        return bytes;
+    }
+
+    public static boolean hasPrefix(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static byte[] key(byte[] bytes) {
+        int length = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        return Arrays.copyOfRange(bytes, 4, 4 + length);
+    }
+
+    public static byte[] member(byte[] bytes, byte[] prefix) {
+        return Arrays.copyOfRange(bytes, prefix.length, bytes.length);
+    }
+}
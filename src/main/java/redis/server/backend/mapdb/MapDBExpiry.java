@@ -0,0 +1,102 @@
+package redis.server.backend.mapdb;
+
+import org.mapdb.DB;
+import org.mapdb.Fun;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+
+/**
+ * Keys with a time to live in a tree set (__expiry) ordered by deadline, so the
+ * ones that are due are always at the front. Each entry is the deadline in
+ * milliseconds followed by the key; the keyspace has the same deadline per key.
+ * <p/>
+ * The earliest deadline is also kept in memory so checking a key on access costs
+ * nothing until something may have expired.
+ */
+public class MapDBExpiry {
+    public static final String NAME = "__expiry";
+
+    private final NavigableSet<byte[]> entries;
+    // No key expires before this, Long.MAX_VALUE when there are none
+    private volatile long earliest;
+
+    public MapDBExpiry(DB db) {
+        entries = db.createTreeSet(NAME)
+                .comparator(Fun.BYTE_ARRAY_COMPARATOR)
+                .makeOrGet();
+        refresh();
+    }
+
+    /**
+     * @return false if no key can have expired by now
+     */
+    public boolean pending(long now) {
+        return now >= earliest;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public void add(byte[] key, long deadline) {
+        entries.add(entry(deadline, key));
+        if (deadline < earliest) {
+            earliest = deadline;
+        }
+    }
+
+    public void remove(byte[] key, long deadline) {
+        entries.remove(entry(deadline, key));
+    }
+
+    /**
+     * @return up to limit entries with a deadline before now, earliest first
+     */
+    public List<byte[]> due(long now, int limit) {
+        List<byte[]> due = new ArrayList<byte[]>();
+        for (byte[] entry : entries) {
+            if (due.size() == limit || deadline(entry) > now) {
+                break;
+            }
+            due.add(entry);
+        }
+        return due;
+    }
+
+    /**
+     * Catches earliest up with the entries that were removed.
+     */
+    public void refresh() {
+        earliest = entries.isEmpty() ? Long.MAX_VALUE : deadline(entries.first());
+    }
+
+    public void clear() {
+        entries.clear();
+        earliest = Long.MAX_VALUE;
+    }
+
+    // Bytes are compared signed, so deadlines have their top bit flipped
+    static byte[] entry(long deadline, byte[] key) {
+        byte[] entry = new byte[8 + key.length];
+        for (int i = 0; i < 8; i++) {
+            entry[i] = (byte) ((deadline >>> (56 - 8 * i)) ^ 0x80);
+        }
+        System.arraycopy(key, 0, entry, 8, key.length);
+        return entry;
+    }
+
+    public static long deadline(byte[] entry) {
+        long deadline = 0;
+        for (int i = 0; i < 8; i++) {
+            deadline = (deadline << 8) | ((entry[i] ^ 0x80) & 0xFF);
+        }
+        return deadline;
+    }
+
+    public static byte[] key(byte[] entry) {
+        return Arrays.copyOfRange(entry, 8, entry.length);
+    }
+}
@@ -0,0 +1,133 @@
+package redis.server.backend.mapdb;
+
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.mapdb.DB;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Commits the writes of every connection together.
+ * <p/>
+ * A commit is made at most interval milliseconds after the first write that
+ * isn't committed yet, or as soon as batchSize writes are waiting. The future
+ * returned by {@link #sync()} completes when the commit covering every write made
+ * before it has finished.
+ */
+public class MapDBGroupCommit implements Runnable {
+    private final DB db;
+    private final long interval;
+    private final int batchSize;
+    private final Thread thread;
+
+    private final Object lock = new Object();
+    // Shared by commands while they run, held alone while committing
+    private final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+    // Writes since the last commit started
+    private int pending;
+    // Completed by the next commit
+    private Promise<Void> next = newPromise();
+    // Completed by the commit in progress, if any
+    private Promise<Void> committing;
+    private volatile boolean running = true;
+
+    public MapDBGroupCommit(DB db, long interval, int batchSize) {
+        this.db = db;
+        this.interval = interval;
+        this.batchSize = batchSize;
+        thread = new Thread(this, "mapdb-group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static Promise<Void> newPromise() {
+        return new DefaultPromise<Void>(ImmediateEventExecutor.INSTANCE);
+    }
+
+    /**
+     * Called after each write.
+     */
+    public void written() {
+        synchronized (lock) {
+            if (pending++ == 0 || pending >= batchSize) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Commands hold it shared so the commit thread, which holds it alone while
+     * it commits, never commits half of one.
+     */
+    public ReentrantReadWriteLock commitLock() {
+        return commitLock;
+    }
+
+    public Future<Void> sync() {
+        synchronized (lock) {
+            if (pending > 0) {
+                return next;
+            }
+            if (committing != null) {
+                return committing;
+            }
+        }
+        return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Promise<Void> promise;
+            synchronized (lock) {
+                try {
+                    while (running && pending == 0) {
+                        lock.wait();
+                    }
+                    long deadline = System.currentTimeMillis() + interval;
+                    long remaining = interval;
+                    while (running && pending < batchSize && remaining > 0) {
+                        lock.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                if (!running && pending == 0) {
+                    return;
+                }
+                promise = next;
+                next = newPromise();
+                committing = promise;
+                pending = 0;
+            }
+            commitLock.writeLock().lock();
+            try {
+                db.commit();
+                promise.setSuccess(null);
+            } catch (Throwable t) {
+                promise.setFailure(t);
+            } finally {
+                commitLock.writeLock().unlock();
+            }
+            synchronized (lock) {
+                if (committing == promise) {
+                    committing = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits whatever is left and stops.
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        thread.join();
+    }
+}
@@ -4,23 +4,188 @@ import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.Fun;
 
+import java.util.*;
+
 /**
  * Created by blafountain on 11/7/2014.
+ * <p/>
+ * Small hashes live together in one shared map (__hashes) keyed by
+ * {@link MapDBCompositeKey}, like strings share __values. Once a hash grows past
+ * MAX_SMALL_ENTRIES fields it is moved to a tree map of its own named after the key.
  */
-public class MapDBHash {
-    public static BTreeMap<byte[], byte[]> get(DB db, byte[] key, boolean create) {
+public class MapDBHash extends AbstractMap<byte[], byte[]> {
+    public static final int MAX_SMALL_ENTRIES = 128;
+    public static final String SHARED = "__hashes";
+
+    protected final DB db;
+    protected final byte[] key;
+    protected final byte[] prefix;
+    protected final BTreeMap<byte[], byte[]> shared;
+    // The hash's own map once it has been promoted, volatile as cached handles are shared;
+    // writes are synchronized so none of them lands in the shared map during a promotion
+    protected volatile BTreeMap<byte[], byte[]> map;
+
+    public MapDBHash(DB db, byte[] key, BTreeMap<byte[], byte[]> shared, BTreeMap<byte[], byte[]> map) {
+        this.db = db;
+        this.key = key;
+        this.prefix = MapDBCompositeKey.prefix(key);
+        this.shared = shared;
+        this.map = map;
+    }
+
+    public static MapDBHash get(DB db, byte[] key, boolean create) {
+        return get(db, shared(db), key);
+    }
+
+    public static MapDBHash get(DB db, BTreeMap<byte[], byte[]> shared, byte[] key) {
         String keyStr = new String(key);
+        // Nothing has to be created up front for a small hash
+        BTreeMap<byte[], byte[]> map = db.exists(keyStr) ? dedicated(db, keyStr) : null;
+        return new MapDBHash(db, key, shared, map);
+    }
+
+    public static BTreeMap<byte[], byte[]> shared(DB db) {
+        return db.createTreeMap(SHARED)
+                .comparator(Fun.BYTE_ARRAY_COMPARATOR)
+                .makeOrGet();
+    }
+
+    private static BTreeMap<byte[], byte[]> dedicated(DB db, String keyStr) {
+        return db.createTreeMap(keyStr)
+                .comparator(Fun.BYTE_ARRAY_COMPARATOR)
+                .counterEnable()
+                .makeOrGet();
+    }
 
-        // TODO: we should/could implement a 'small' hashmap where if the number of key/value
-        //  size is under a certian ammout we could just use a common map (__maps), sort of what we do for
-        //  __values. Only if we 'need' to have a root key like this should we use it
-        if (create) {
-            return db.createTreeMap(keyStr)
-                    .comparator(Fun.BYTE_ARRAY_COMPARATOR)
-                    .counterEnable()
-                    .makeOrGet();
+    /**
+     * @return true if key is a small hash
+     */
+    public static boolean exists(BTreeMap<byte[], byte[]> shared, byte[] key) {
+        byte[] prefix = MapDBCompositeKey.prefix(key);
+        byte[] first = shared.ceilingKey(prefix);
+        return first != null && MapDBCompositeKey.hasPrefix(first, prefix);
+    }
+
+    /**
+     * Removes the hash whatever its encoding.
+     */
+    public synchronized void delete() {
+        if (map != null) {
+            db.delete(new String(key));
+            map = null;
         } else {
-            return db.getTreeMap(keyStr);
+            small().clear();
+        }
+    }
+
+    public boolean isSmall() {
+        return map == null;
+    }
+
+    // The small hash's entries, keyed by the full composite key
+    private SortedMap<byte[], byte[]> small() {
+        SortedMap<byte[], byte[]> tail = shared.tailMap(prefix);
+        Iterator<byte[]> it = tail.keySet().iterator();
+        // find the first key past the prefix to bound the view
+        while (it.hasNext()) {
+            byte[] next = it.next();
+            if (!MapDBCompositeKey.hasPrefix(next, prefix)) {
+                return shared.subMap(prefix, next);
+            }
+        }
+        return tail;
+    }
+
+    @Override
+    public byte[] get(Object field) {
+        if (map != null) {
+            return map.get(field);
+        }
+        return shared.get(MapDBCompositeKey.compose(key, (byte[]) field));
+    }
+
+    @Override
+    public boolean containsKey(Object field) {
+        return get(field) != null;
+    }
+
+    @Override
+    public synchronized byte[] put(byte[] field, byte[] value) {
+        if (map != null) {
+            return map.put(field, value);
+        }
+        byte[] previous = shared.put(MapDBCompositeKey.compose(key, field), value);
+        if (previous == null && size() > MAX_SMALL_ENTRIES) {
+            promote();
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized byte[] remove(Object field) {
+        if (map != null) {
+            return map.remove(field);
+        }
+        return shared.remove(MapDBCompositeKey.compose(key, (byte[]) field));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        if (map == null && exists(shared, key)) {
+            return false;
+        }
+        // also if it was promoted after map was looked at
+        BTreeMap<byte[], byte[]> map = this.map;
+        return map == null || map.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        if (map != null) {
+            return map.size();
+        }
+        return small().size();
+    }
+
+    @Override
+    public Set<Entry<byte[], byte[]>> entrySet() {
+        if (map != null) {
+            return map.entrySet();
+        }
+        Map<byte[], byte[]> entries = new LinkedHashMap<byte[], byte[]>();
+        for (Entry<byte[], byte[]> entry : small().entrySet()) {
+            entries.put(MapDBCompositeKey.member(entry.getKey(), prefix), entry.getValue());
+        }
+        return entries.entrySet();
+    }
+
+    /**
+     * Adds up to count entries following field after, or from the first one if it
+     * is null. A small hash adds all of its entries.
+     *
+     * @return false once there are no more
+     */
+    public boolean scan(byte[] after, int count, List<Entry<byte[], byte[]>> entries) {
+        if (map == null) {
+            entries.addAll(entrySet());
+            return false;
+        }
+        Map<byte[], byte[]> tail = after == null ? map : map.tailMap(after, false);
+        Iterator<Entry<byte[], byte[]>> iterator = tail.entrySet().iterator();
+        for (int i = 0; i < count && iterator.hasNext(); i++) {
+            entries.add(iterator.next());
+        }
+        return iterator.hasNext();
+    }
+
+    private void promote() {
+        SortedMap<byte[], byte[]> small = small();
+        BTreeMap<byte[], byte[]> map = dedicated(db, new String(key));
+        for (Entry<byte[], byte[]> entry : small.entrySet()) {
+            map.put(MapDBCompositeKey.member(entry.getKey(), prefix), entry.getValue());
         }
+        // switched first, readers never see the hash empty
+        this.map = map;
+        small.clear();
     }
 }
@@ -0,0 +1,136 @@
+package redis.server.backend.mapdb;
+
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Fun;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+import redis.server.backend.mapdb.MapDBRedisServer.Type;
+
+/**
+ * The type, encoding and expiry of every key in one counted tree map (__keyspace),
+ * so TYPE, EXISTS and DBSIZE are a single lookup instead of a walk of the catalog.
+ * Each entry is the type's ordinal, the encoding and the expiry in milliseconds,
+ * 0 when the key doesn't expire.
+ */
+public class MapDBKeyspace {
+    public static final String NAME = "__keyspace";
+
+    // Encodings
+    public static final byte RAW = 0;
+    // Entries in a shared tree, see MapDBHash and MapDBSet
+    public static final byte SMALL = 1;
+    // Collections of their own
+    public static final byte DEDICATED = 2;
+
+    private static final int LENGTH = 10;
+    private static final Type[] TYPES = Type.values();
+
+    private final BTreeMap<byte[], byte[]> keys;
+
+    public MapDBKeyspace(DB db) {
+        keys = db.createTreeMap(NAME)
+                .comparator(Fun.BYTE_ARRAY_COMPARATOR)
+                .counterEnable()
+                .makeOrGet();
+    }
+
+    /**
+     * @return the type of key or null if it doesn't exist
+     */
+    public Type type(byte[] key) {
+        byte[] entry = keys.get(key);
+        return entry == null ? null : TYPES[entry[0]];
+    }
+
+    /**
+     * @return the encoding of key or -1 if it doesn't exist
+     */
+    public int encoding(byte[] key) {
+        byte[] entry = keys.get(key);
+        return entry == null ? -1 : entry[1];
+    }
+
+    /**
+     * @return when key expires, 0 if it doesn't or doesn't exist
+     */
+    public long expiry(byte[] key) {
+        byte[] entry = keys.get(key);
+        return entry == null ? 0 : ByteBuffer.wrap(entry).getLong(2);
+    }
+
+    public boolean exists(byte[] key) {
+        return keys.containsKey(key);
+    }
+
+    public long size() {
+        return keys.sizeLong();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Adds key or updates its type and encoding, keeping its expiry. Nothing is
+     * written when they haven't changed.
+     */
+    public void put(byte[] key, Type type, byte encoding) {
+        byte[] entry = keys.get(key);
+        if (entry != null && entry[0] == type.ordinal() && entry[1] == encoding) {
+            return;
+        }
+        keys.put(key, entry(type, encoding, entry == null ? 0 : ByteBuffer.wrap(entry).getLong(2)));
+    }
+
+    /**
+     * @param expiry in milliseconds, 0 to persist the key
+     * @return false if key doesn't exist
+     */
+    public boolean expire(byte[] key, long expiry) {
+        byte[] entry = keys.get(key);
+        if (entry == null) {
+            return false;
+        }
+        keys.put(key, entry(TYPES[entry[0]], entry[1], expiry));
+        return true;
+    }
+
+    public boolean remove(byte[] key) {
+        return keys.remove(key) != null;
+    }
+
+    public NavigableSet<byte[]> keySet() {
+        return keys.keySet();
+    }
+
+    /**
+     * @return the keys stored with encoding
+     */
+    public List<byte[]> keys(byte encoding) {
+        List<byte[]> found = new ArrayList<byte[]>();
+        for (Map.Entry<byte[], byte[]> entry : keys.entrySet()) {
+            if (entry.getValue()[1] == encoding) {
+                found.add(entry.getKey());
+            }
+        }
+        return found;
+    }
+
+    public void clear() {
+        keys.clear();
+    }
+
+    private static byte[] entry(Type type, byte encoding, long expiry) {
+        return ByteBuffer.allocate(LENGTH)
+                .put((byte) type.ordinal())
+                .put(encoding)
+                .putLong(expiry)
+                .array();
+    }
+}
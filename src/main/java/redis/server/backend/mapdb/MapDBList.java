@@ -1,11 +1,201 @@
 package redis.server.backend.mapdb;
 
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
 /**
  * Created by blafountain on 11/8/2014.
+ * <p/>
+ * A list kept in a tree map of its own named after the key, from a signed position
+ * to the element. The head and tail positions move outwards as elements are
+ * pushed, so pushes and pops at either end are a single B-tree update, indexes
+ * are offsets from the head and ranges are sub maps.
  */
 public class MapDBList {
-    public static void get(DB db, byte[] key, boolean create) {
+    protected final DB db;
+    protected final byte[] key;
+    protected final BTreeMap<Long, byte[]> map;
+    // Positions of the first and last elements, head is past tail when empty
+    protected long head;
+    protected long tail;
+
+    public MapDBList(DB db, byte[] key, BTreeMap<Long, byte[]> map) {
+        this.db = db;
+        this.key = key;
+        this.map = map;
+        if (map.isEmpty()) {
+            head = 0;
+            tail = -1;
+        } else {
+            head = map.firstKey();
+            tail = map.lastKey();
+        }
+    }
+
+    /**
+     * @return null if the list doesn't exist and create is false
+     */
+    public static MapDBList get(DB db, byte[] key, boolean create) {
+        String keyStr = new String(key);
+        if (!create && !db.exists(keyStr)) {
+            return null;
+        }
+        BTreeMap<Long, byte[]> map = db.createTreeMap(keyStr)
+                .counterEnable()
+                .makeOrGet();
+        return new MapDBList(db, key, map);
+    }
+
+    public synchronized int size() {
+        return (int) (tail - head + 1);
+    }
+
+    public synchronized boolean isEmpty() {
+        return head > tail;
+    }
+
+    public synchronized void push(byte[] value, boolean left) {
+        if (left) {
+            map.put(--head, value);
+        } else {
+            map.put(++tail, value);
+        }
+    }
+
+    /**
+     * @return null if the list is empty
+     */
+    public synchronized byte[] pop(boolean left) {
+        if (head > tail) {
+            return null;
+        }
+        return left ? map.remove(head++) : map.remove(tail--);
+    }
+
+    /**
+     * @return null if index is out of range
+     */
+    public synchronized byte[] get(long index) {
+        if (index < 0 || index > tail - head) {
+            return null;
+        }
+        return map.get(head + index);
+    }
+
+    /**
+     * @return false if index is out of range
+     */
+    public synchronized boolean set(long index, byte[] value) {
+        if (index < 0 || index > tail - head) {
+            return false;
+        }
+        map.put(head + index, value);
+        return true;
+    }
+
+    /**
+     * @return the elements from index start to index end, both included and in range
+     */
+    public synchronized List<byte[]> range(long start, long end) {
+        return new ArrayList<byte[]>(map.subMap(head + start, true, head + end, true).values());
+    }
+
+    /**
+     * Only keeps the elements from index start to index end, both included.
+     */
+    public synchronized void trim(long start, long end) {
+        if (start > end || start > tail - head || end < 0) {
+            map.clear();
+            head = 0;
+            tail = -1;
+            return;
+        }
+        long first = head + Math.max(start, 0);
+        long last = head + Math.min(end, tail - head);
+        map.headMap(first).clear();
+        map.tailMap(last, false).clear();
+        head = first;
+        tail = last;
+    }
+
+    /**
+     * Removes count elements equal to value from the head, from the tail if count is
+     * negative or all of them if it is 0.
+     *
+     * @return the number of elements removed
+     */
+    public synchronized int remove(byte[] value, int count) {
+        TreeSet<Long> removed = new TreeSet<Long>();
+        Iterable<Map.Entry<Long, byte[]>> entries = count < 0 ? map.descendingMap().entrySet() : map.entrySet();
+        int limit = count == 0 ? Integer.MAX_VALUE : Math.abs(count);
+        for (Map.Entry<Long, byte[]> entry : entries) {
+            if (removed.size() == limit) {
+                break;
+            }
+            if (Arrays.equals(entry.getValue(), value)) {
+                removed.add(entry.getKey());
+            }
+        }
+        if (removed.isEmpty()) {
+            return 0;
+        }
+        // close the gaps by moving everything after the first one down
+        int shift = 0;
+        for (long position = removed.first(); position <= tail; position++) {
+            if (removed.contains(position)) {
+                shift++;
+            } else {
+                map.put(position - shift, map.get(position));
+            }
+        }
+        for (int i = 0; i < shift; i++) {
+            map.remove(tail--);
+        }
+        return shift;
+    }
+
+    /**
+     * Inserts value next to the first element equal to pivot, moving the shorter
+     * side of the list out of the way.
+     *
+     * @return the new size or -1 if pivot isn't there
+     */
+    public synchronized int insert(byte[] pivot, byte[] value, boolean before) {
+        Long found = null;
+        for (Map.Entry<Long, byte[]> entry : map.entrySet()) {
+            if (Arrays.equals(entry.getValue(), pivot)) {
+                found = entry.getKey();
+                break;
+            }
+        }
+        if (found == null) {
+            return -1;
+        }
+        // value goes between position - 1 and position
+        long position = before ? found : found + 1;
+        if (position - head < tail - position + 1) {
+            for (long i = head; i < position; i++) {
+                map.put(i - 1, map.get(i));
+            }
+            head--;
+            map.put(position - 1, value);
+        } else {
+            for (long i = tail; i >= position; i--) {
+                map.put(i + 1, map.get(i));
+            }
+            tail++;
+            map.put(position, value);
+        }
+        return size();
+    }
+
+    public void delete() {
+        db.delete(new String(key));
     }
 }
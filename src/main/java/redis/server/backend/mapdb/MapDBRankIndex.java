@@ -0,0 +1,206 @@
+package redis.server.backend.mapdb;
+
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+
+/**
+ * Ranks of the score entries of a sorted set, from how many entries each bucket
+ * of consecutive entries holds. The counts are kept in a tree next to the score
+ * set (key.rank) by the first entry of each bucket, so opening a set reads one
+ * count per bucket rather than every member. A copy of them in memory is what
+ * adds up the ranks.
+ * <p/>
+ * Finding the rank of an entry, or the entry at a rank, walks the counts up to
+ * its bucket and then reads at most 2 * BUCKET_SIZE entries of the score set.
+ * Not thread safe.
+ */
+public class MapDBRankIndex {
+    public static final int BUCKET_SIZE = 128;
+
+    private final NavigableSet<Object[]> scores;
+    private final BTreeMap<Object[], Integer> buckets;
+    private final Comparator<Object[]> comparator;
+    // The buckets in order, where they start and how many entries they hold
+    private Object[][] starts = new Object[16][];
+    private int[] counts = new int[16];
+    private int length;
+
+    /**
+     * @param size how many entries scores holds; the counts are built again from
+     *             scores if they don't add up to it, like for a set written before
+     *             there were counts
+     */
+    public MapDBRankIndex(DB db, byte[] key, NavigableSet<Object[]> scores, int size) {
+        this.scores = scores;
+        comparator = new MapDBSortedSet.ScoreComparator();
+        buckets = db.createTreeMap(new String(key) + ".rank")
+                .comparator(comparator)
+                .makeOrGet();
+        int total = 0;
+        for (Map.Entry<Object[], Integer> bucket : buckets.entrySet()) {
+            insert(length, bucket.getKey(), bucket.getValue());
+            total += bucket.getValue();
+        }
+        if (total != size) {
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        buckets.clear();
+        length = 0;
+        int count = 0;
+        for (Object[] entry : scores) {
+            if (count == BUCKET_SIZE) {
+                buckets.put(starts[length - 1], count);
+                count = 0;
+            }
+            if (count == 0) {
+                insert(length, entry, 0);
+            }
+            counts[length - 1] = ++count;
+        }
+        if (count > 0) {
+            buckets.put(starts[length - 1], count);
+        }
+    }
+
+    /**
+     * Buckets in memory, which the server's cache weighs the set by.
+     */
+    public int buckets() {
+        return length;
+    }
+
+    /**
+     * Called once entry was added to the score set.
+     */
+    public void added(Object[] entry) {
+        if (length == 0) {
+            insert(0, entry, 1);
+            buckets.put(entry, 1);
+            return;
+        }
+        int i = bucket(entry);
+        if (i < 0) {
+            // before every bucket, the first one starts with it now
+            i = 0;
+            buckets.remove(starts[0]);
+            starts[0] = entry;
+        }
+        counts[i]++;
+        buckets.put(starts[i], counts[i]);
+        if (counts[i] > 2 * BUCKET_SIZE) {
+            split(i);
+        }
+    }
+
+    /**
+     * Called once entry was removed from the score set.
+     */
+    public void removed(Object[] entry) {
+        int i = bucket(entry);
+        if (--counts[i] == 0) {
+            buckets.remove(starts[i]);
+            delete(i);
+        } else if (i + 1 < length && counts[i] + counts[i + 1] <= BUCKET_SIZE) {
+            // the next bucket now fits in this one
+            counts[i] += counts[i + 1];
+            buckets.remove(starts[i + 1]);
+            buckets.put(starts[i], counts[i]);
+            delete(i + 1);
+        } else {
+            buckets.put(starts[i], counts[i]);
+        }
+    }
+
+    /**
+     * @return how many entries come before entry, which must be in the score set
+     */
+    public int rank(Object[] entry) {
+        int i = bucket(entry);
+        int rank = 0;
+        for (int j = 0; j < i; j++) {
+            rank += counts[j];
+        }
+        return rank + scores.subSet(starts[i], true, entry, false).size();
+    }
+
+    /**
+     * @return the entry at rank, which must be less than the number of entries
+     */
+    public Object[] get(int rank) {
+        int i = 0;
+        while (rank >= counts[i]) {
+            rank -= counts[i++];
+        }
+        Iterator<Object[]> iterator = scores.tailSet(starts[i], true).iterator();
+        for (int j = 0; j < rank; j++) {
+            iterator.next();
+        }
+        return iterator.next();
+    }
+
+    /**
+     * Drops the counts along with the set.
+     */
+    public static void delete(DB db, byte[] key) {
+        db.delete(new String(key) + ".rank");
+    }
+
+    // Splits bucket i in two, the first one holding BUCKET_SIZE entries
+    private void split(int i) {
+        Iterator<Object[]> iterator = scores.tailSet(starts[i], true).iterator();
+        for (int j = 0; j < BUCKET_SIZE; j++) {
+            iterator.next();
+        }
+        Object[] middle = iterator.next();
+        int rest = counts[i] - BUCKET_SIZE;
+        counts[i] = BUCKET_SIZE;
+        buckets.put(starts[i], BUCKET_SIZE);
+        buckets.put(middle, rest);
+        insert(i + 1, middle, rest);
+    }
+
+    // The last bucket starting at or before entry, -1 if there is none
+    private int bucket(Object[] entry) {
+        int low = 0;
+        int high = length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = comparator.compare(starts[middle], entry);
+            if (order == 0) {
+                return middle;
+            } else if (order < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    private void insert(int i, Object[] start, int count) {
+        if (length == starts.length) {
+            starts = Arrays.copyOf(starts, length * 2);
+            counts = Arrays.copyOf(counts, length * 2);
+        }
+        System.arraycopy(starts, i, starts, i + 1, length - i);
+        System.arraycopy(counts, i, counts, i + 1, length - i);
+        starts[i] = start;
+        counts[i] = count;
+        length++;
+    }
+
+    private void delete(int i) {
+        System.arraycopy(starts, i + 1, starts, i, length - i - 1);
+        System.arraycopy(counts, i + 1, counts, i, length - i - 1);
+        starts[--length] = null;
+    }
+}
@@ -1,15 +1,34 @@
 package redis.server.backend.mapdb;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.Future;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.Fun;
+import redis.server.Atomic;
+import redis.server.Durable;
 import redis.server.RedisException;
 import redis.server.RedisServer;
+import redis.server.ScanArguments;
+import redis.server.Transactional;
 import redis.server.reply.*;
+import redis.util.BytesKey;
+import redis.util.GlobPattern;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static java.lang.Double.parseDouble;
 import static java.lang.Integer.MAX_VALUE;
@@ -21,14 +40,52 @@ import static redis.util.Encoding.numToBytes;
 /**
  * Created by blafountain on 11/6/2014.
  */
-public class MapDBRedisServer implements RedisServer {
+public class MapDBRedisServer implements RedisServer, Durable, Transactional, Atomic {
     protected DB db;
     protected boolean commit;
-
-    // TODO: should keys contain metadata, not just a set?
-    protected NavigableSet<byte[]> keys;
+    protected MapDBGroupCommit groupCommit;
+    protected MapDBWriteBehind writeBehind;
+    // Shared by commands and active expiry, held alone by a transaction and by
+    // commits from the background, so those only see whole commands
+    protected final ReentrantReadWriteLock atomic;
+    // In a transaction, commits are held until it ends
+    protected volatile boolean transaction;
+    protected volatile boolean held;
+    // Set when the write-behind thread applied writes it couldn't commit yet
+    protected volatile boolean drained;
+
+    public static final int CACHED_COLLECTIONS = 10000;
+    // Rank index buckets the cached sorted sets may hold on top of that
+    public static final int RANK_BUCKETS = 1 << 18;
+    // What an open handle weighs, in rank index buckets
+    static final int HANDLE_WEIGHT = 4;
+    // Open hashes, sets, sorted sets and lists by key, so commands skip the catalog.
+    // Weighed so the rank indexes of the sorted sets count too.
+    protected Cache<BytesKey, Object> collections = CacheBuilder.newBuilder()
+            .maximumWeight((long) CACHED_COLLECTIONS * HANDLE_WEIGHT + RANK_BUCKETS)
+            .weigher(new Weigher<BytesKey, Object>() {
+                @Override
+                public int weigh(BytesKey key, Object handle) {
+                    return HANDLE_WEIGHT + (handle instanceof MapDBSortedSet ? ((MapDBSortedSet) handle).weigh() : 0);
+                }
+            })
+            .build();
+    // Every open handle, held weakly, so one evicted from collections while a
+    // command still uses it is taken up again rather than opened a second time
+    // with a lock of its own
+    protected Cache<BytesKey, Object> handles = CacheBuilder.newBuilder().weakValues().build();
+    // Replies with at least this many elements are encoded in chunks
+    public static final int CHUNKED_REPLIES = 1024;
+    protected BTreeMap<byte[], byte[]> smallHashes;
+    protected NavigableSet<byte[]> smallSets;
+
+    protected MapDBKeyspace keyspace;
+    protected MapDBExpiry expiry;
     protected Map<byte[], byte[]> values;
 
+    // Expired keys deleted per commit by the active expiry cycle
+    public static final int REAP_BATCH = 1024;
+
     enum Type {
         STRING("string"),
         HASH("hash"),
@@ -43,12 +100,163 @@ public class MapDBRedisServer implements RedisServer {
     }
 
     public MapDBRedisServer(DB db, boolean commit) {
+        this(db, commit, null);
+    }
+
+    /**
+     * @param groupCommit if not null, writes are committed by it instead
+     */
+    public MapDBRedisServer(DB db, boolean commit, MapDBGroupCommit groupCommit) {
         this.db = db;
         this.commit = commit;
+        this.groupCommit = groupCommit;
+        atomic = groupCommit == null ? new ReentrantReadWriteLock() : groupCommit.commitLock();
 
         values = db.createTreeMap("__values")
                 .comparator(Fun.BYTE_ARRAY_COMPARATOR)
                 .makeOrGet();
+        smallHashes = MapDBHash.shared(db);
+        smallSets = MapDBSet.shared(db);
+        keyspace = new MapDBKeyspace(db);
+        expiry = new MapDBExpiry(db);
+        if (keyspace.isEmpty()) {
+            // data written before there was a keyspace
+            _rebuildkeyspace();
+        }
+    }
+
+    // Called after every write. While writes to values wait for the write-behind
+    // thread, it commits once it has applied them, so what goes with them, like a
+    // key deleted from the keyspace, isn't committed without them.
+    protected void commit() {
+        if (transaction) {
+            held = true;
+        } else if (writeBehind == null || !writeBehind.pending()) {
+            _commit();
+        }
+    }
+
+    private void _commit() {
+        if (groupCommit != null) {
+            groupCommit.written();
+        } else if (commit) {
+            db.commit();
+        }
+    }
+
+    // Called after every write to values, which may not be in MapDB yet
+    protected void commitValues() {
+        if (writeBehind == null) {
+            commit();
+        }
+    }
+
+    /**
+     * Acknowledge writes to string values before they reach MapDB; they are
+     * applied within maxLag milliseconds and writers block once queueSize of them
+     * are waiting.
+     */
+    public void enableWriteBehind(long maxLag, int queueSize) {
+        writeBehind = new MapDBWriteBehind(values, maxLag, queueSize, new Runnable() {
+            @Override
+            public void run() {
+                drained = true;
+                _commitdrained();
+            }
+        });
+        values = writeBehind;
+    }
+
+    /**
+     * Active expiry: deletes the keys whose time to live is up, on top of the check
+     * made when a key is accessed, in batches while the time budget lasts. Must run
+     * on a thread executing commands so it doesn't race them.
+     *
+     * @param budget in nanoseconds
+     * @return the number of entries taken off the expiry index
+     */
+    public int activeExpireCycle(long budget) {
+        long deadline = System.nanoTime() + budget;
+        int total = 0;
+        int reaped;
+        do {
+            reaped = reap(REAP_BATCH);
+            total += reaped;
+        } while (reaped == REAP_BATCH && System.nanoTime() < deadline);
+        return total;
+    }
+
+    /**
+     * Deletes up to limit keys whose time to live is up, earliest first. Does
+     * nothing while a transaction runs rather than wait for it.
+     *
+     * @return the number of entries taken off the expiry index
+     */
+    public int reap(int limit) {
+        long now = System.currentTimeMillis();
+        if (!expiry.pending(now) || !atomic.readLock().tryLock()) {
+            return 0;
+        }
+        try {
+            List<byte[]> due = expiry.due(now, limit);
+            for (byte[] entry : due) {
+                byte[] key = MapDBExpiry.key(entry);
+                if (keyspace.expiry(key) == MapDBExpiry.deadline(entry)) {
+                    _delete(key);
+                } else {
+                    // the key was given another deadline meanwhile
+                    expiry.remove(key, MapDBExpiry.deadline(entry));
+                }
+            }
+            expiry.refresh();
+            if (!due.isEmpty()) {
+                commit();
+            }
+            return due.size();
+        } finally {
+            atomic.readLock().unlock();
+        }
+    }
+
+    /**
+     * Holds the commits made by the commands of a transaction so its writes are
+     * committed together when it ends. Writes to string values still follow the
+     * write-behind lag if it is enabled.
+     */
+    @Override
+    public void begin() {
+        atomic.writeLock().lock();
+        transaction = true;
+    }
+
+    @Override
+    public void end() {
+        try {
+            transaction = false;
+            if (held) {
+                held = false;
+                commit();
+            }
+        } finally {
+            atomic.writeLock().unlock();
+        }
+        _commitdrained();
+    }
+
+    @Override
+    public void enter() {
+        atomic.readLock().lock();
+    }
+
+    @Override
+    public void leave() {
+        atomic.readLock().unlock();
+        _commitdrained();
+    }
+
+    @Override
+    public Future<?> durable() {
+        return groupCommit == null ? null : groupCommit.sync();
     }
 
     ////////////
@@ -60,34 +268,106 @@ public class MapDBRedisServer implements RedisServer {
         if (pattern0 == null) {
             throw new RedisException("wrong number of arguments for KEYS");
         }
-        List<Reply<ByteBuf>> replies = new ArrayList<Reply<ByteBuf>>();
-
-        // we get keys from multiple locations
-        for(Map.Entry<String, Object> iter : db.getAll().entrySet()) {
-            if(iter.getKey().equals("__values")) {
-               continue;
+        final GlobPattern pattern = GlobPattern.compile(pattern0);
+        final long now = System.currentTimeMillis();
+        final boolean pending = expiry.pending(now);
+        Predicate<byte[]> matching = new Predicate<byte[]>() {
+            @Override
+            public boolean apply(byte[] bytes) {
+                // expired keys are left to active expiry
+                return !(pending && _expired(bytes, now)) && pattern.matches(bytes);
             }
-            byte [] bytes = iter.getKey().getBytes();
-            if (matches(bytes, pattern0, 0, 0)) {
-                replies.add(new BulkReply(bytes));
+        };
+        return _chunked(Iterators.transform(Iterators.filter(_keys(pattern, null), matching), BULK));
+    }
+
+    @Override
+    public MultiBulkReply scan(byte[] cursor0, byte[][] attributes1) throws RedisException {
+        byte[] after = ScanArguments.resume(cursor0);
+        ScanArguments arguments = new ScanArguments(attributes1);
+        Iterator<byte[]> iterator = _keys(arguments.pattern, after);
+        List<Reply> replies = new ArrayList<Reply>();
+        long now = System.currentTimeMillis();
+        boolean pending = expiry.pending(now);
+        byte[] key = null;
+        for (int i = 0; i < arguments.count && iterator.hasNext(); i++) {
+            key = iterator.next();
+            if (!(pending && _expired(key, now)) && arguments.matches(key)) {
+                replies.add(new BulkReply(key));
             }
         }
-        // values
-        for(Map.Entry<byte[], byte[]> iter : values.entrySet()) {
-            byte [] bytes = iter.getKey();
-            if (matches(bytes, pattern0, 0, 0)) {
-                replies.add(new BulkReply(bytes));
+        return ScanArguments.reply(iterator.hasNext() ? key : null, replies);
+    }
+
+    /**
+     * The keys after the given one, or all of them if it is null. Only the range
+     * starting with the literal prefix of the pattern is walked, if it has one.
+     */
+    private Iterator<byte[]> _keys(GlobPattern pattern, byte[] after) {
+        NavigableSet<byte[]> keys = keyspace.keySet();
+        final byte[] prefix = pattern == null ? new byte[0] : pattern.prefix();
+        if (prefix.length == 0) {
+            return (after == null ? keys : keys.tailSet(after, false)).iterator();
+        }
+        if (after == null || keys.comparator().compare(after, prefix) < 0) {
+            keys = keys.tailSet(prefix, true);
+        } else {
+            keys = keys.tailSet(after, false);
+        }
+        final Iterator<byte[]> iterator = keys.iterator();
+        return new AbstractIterator<byte[]>() {
+            @Override
+            protected byte[] computeNext() {
+                if (iterator.hasNext()) {
+                    byte[] key = iterator.next();
+                    if (_startswith(key, prefix)) {
+                        return key;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private static boolean _startswith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
             }
         }
-        return new MultiBulkReply(replies.toArray(new Reply[replies.size()]));
+        return true;
+    }
+
+    /**
+     * Replies with what replies iterates over now, encoded while it is written
+     * unless there are only a few. Every element is read up front, as the
+     * collections have no view that stays the same while the reply is written.
+     */
+    private static MultiBulkReply _chunked(Iterator<Reply> replies) {
+        Reply[] taken = Iterators.toArray(replies, Reply.class);
+        if (taken.length < CHUNKED_REPLIES) {
+            return new MultiBulkReply(taken);
+        }
+        return new ChunkedMultiBulkReply(taken);
     }
 
+    private static final Function<byte[], Reply> BULK = new Function<byte[], Reply>() {
+        @Override
+        public Reply apply(byte[] bytes) {
+            return new BulkReply(bytes);
+        }
+    };
+
     /////////////
     /// values
     ////////////
 
     @Override
     public BulkReply get(byte[] key0) throws RedisException {
+        _checkexpiry(key0);
         Object o = values.get(key0);
         if (o instanceof byte[]) {
             return new BulkReply((byte[]) o);
@@ -104,6 +384,7 @@ public class MapDBRedisServer implements RedisServer {
         int length = key0.length;
         Reply[] replies = new Reply[length];
         for (int i = 0; i < length; i++) {
+            _checkexpiry(key0[i]);
             Object o = values.get(key0[i]);
             if (o instanceof byte[]) {
                 replies[i] = new BulkReply((byte[]) o);
@@ -118,26 +399,19 @@ public class MapDBRedisServer implements RedisServer {
     public IntegerReply del(byte[][] key0) throws RedisException {
         int total = 0;
         for (byte[] bytes : key0) {
-            Type type = _gettype(bytes);
-
-            if(type == Type.STRING) {
-                Object remove = values.remove(bytes);
-                if (remove != null) {
-                    total++;
-                }
-            } else if(type != null) {
-                db.delete(new String(bytes));
+            if (_delete(bytes)) {
                 total++;
             }
         }
-        if(commit) db.commit();
+        commit();
         return integer(total);
     }
 
     @Override
     public StatusReply set(byte[] key0, byte[] value1) throws RedisException {
-        values.put(key0, value1);
-        if(commit) db.commit();
+        _putvalue(key0, value1);
+        _persist(key0);
+        commitValues();
         return StatusReply.OK;
     }
 
@@ -148,8 +422,10 @@ public class MapDBRedisServer implements RedisServer {
             throw new RedisException("wrong number of arguments for MSET");
         }
         for (int i = 0; i < length; i += 2) {
-            values.put(key_or_value0[i], key_or_value0[i + 1]);
+            _putvalue(key_or_value0[i], key_or_value0[i + 1]);
+            _persist(key_or_value0[i]);
         }
+        commitValues();
         return OK;
     }
 
@@ -179,29 +455,325 @@ public class MapDBRedisServer implements RedisServer {
         return _change(key0, -bytesToNum(decrement1));
     }
 
-    private Type _gettype(byte[] key0) {
-        if(values.containsKey(key0)) {
-            return Type.STRING;
+    // Commits what the write-behind thread applied, unless a command or a
+    // transaction is running. It can't wait for them, as they may be waiting for
+    // room in its queue; the last of them to leave commits instead.
+    private void _commitdrained() {
+        if (drained && atomic.writeLock().tryLock()) {
+            try {
+                drained = false;
+                if (transaction) {
+                    held = true;
+                } else {
+                    _commit();
+                }
+            } finally {
+                atomic.writeLock().unlock();
+            }
         }
+    }
 
-        Object rootKey = db.get(new String(key0));
-        if(rootKey != null) {
-            // TODO: this is wrong
-            return Type.HASH;
+    // Throws if key0 holds something else than type
+    private void _checktype(byte[] key0, Type type) throws RedisException {
+        _checkexpiry(key0);
+        Type current = keyspace.type(key0);
+        if (current != null && current != type) {
+            throw invalidValue();
+        }
+    }
+
+    // Sets a string value, replacing whatever key0 held before
+    private void _putvalue(byte[] key0, byte[] value) {
+        Type type = keyspace.type(key0);
+        if (type != Type.STRING) {
+            if (type != null) {
+                _delete(key0);
+            }
+            keyspace.put(key0, Type.STRING, MapDBKeyspace.RAW);
+        }
+        values.put(key0, value);
+    }
+
+    // Deletes key0 if its time to live is up, which is only looked up once
+    // something may have expired
+    private void _checkexpiry(byte[] key0) {
+        long now = System.currentTimeMillis();
+        if (expiry.pending(now) && _expired(key0, now)) {
+            _delete(key0);
+            commit();
+        }
+    }
+
+    private boolean _expired(byte[] key0, long now) {
+        long deadline = keyspace.expiry(key0);
+        return deadline != 0 && deadline <= now;
+    }
+
+    // Sets when key0 expires, 0 to persist it; returns false if it doesn't exist
+    private boolean _expireat(byte[] key0, long deadline) {
+        long previous = keyspace.expiry(key0);
+        if (!keyspace.expire(key0, deadline)) {
+            return false;
+        }
+        if (previous != 0) {
+            expiry.remove(key0, previous);
+        }
+        if (deadline != 0) {
+            expiry.add(key0, deadline);
+        }
+        return true;
+    }
+
+    // Drops the time to live of key0, returns false if it didn't have one
+    private boolean _persist(byte[] key0) {
+        if (expiry.isEmpty() || keyspace.expiry(key0) == 0) {
+            return false;
+        }
+        return _expireat(key0, 0);
+    }
+
+    private IntegerReply _expire(byte[] key0, long deadline) throws RedisException {
+        _checkexpiry(key0);
+        if (!keyspace.exists(key0)) {
+            return integer(0);
+        }
+        if (deadline <= System.currentTimeMillis()) {
+            _delete(key0);
+        } else {
+            _expireat(key0, deadline);
+        }
+        commit();
+        return integer(1);
+    }
+
+    private IntegerReply _pttl(byte[] key0) {
+        _checkexpiry(key0);
+        long deadline = keyspace.expiry(key0);
+        if (deadline == 0) {
+            return integer(-1);
+        }
+        return integer(Math.max(deadline - System.currentTimeMillis(), 0));
+    }
+
+    // Removes key0 whatever its type
+    private boolean _delete(byte[] key0) {
+        Type type = keyspace.type(key0);
+        if (type == null) {
+            return false;
+        }
+        if (!expiry.isEmpty()) {
+            long deadline = keyspace.expiry(key0);
+            if (deadline != 0) {
+                expiry.remove(key0, deadline);
+            }
+        }
+        switch (type) {
+            case STRING:
+                values.remove(key0);
+                break;
+            case HASH:
+                MapDBHash.get(db, smallHashes, key0).delete();
+                break;
+            case SET:
+                MapDBSet.get(db, smallSets, key0).delete();
+                break;
+            case ZSET:
+                MapDBSortedSet.get(db, key0, false).delete();
+                break;
+            case LIST:
+                // null if the list was never written to the db
+                MapDBList list = MapDBList.get(db, key0, false);
+                if (list != null) {
+                    list.delete();
+                }
+                break;
+            default:
+                db.delete(new String(key0));
+        }
+        keyspace.remove(key0);
+        collections.invalidate(new BytesKey(key0));
+        handles.invalidate(new BytesKey(key0));
+        return true;
+    }
+
+    // Keeps the keyspace in line with a collection that was just written
+    private void _written(byte[] key0, MapDBHash hash) {
+        if (hash.isEmpty()) {
+            _delete(key0);
+        } else {
+            keyspace.put(key0, Type.HASH, hash.isSmall() ? MapDBKeyspace.SMALL : MapDBKeyspace.DEDICATED);
+        }
+    }
+
+    private void _written(byte[] key0, MapDBSet set) {
+        if (set.isEmpty()) {
+            _delete(key0);
+        } else {
+            keyspace.put(key0, Type.SET, set.isSmall() ? MapDBKeyspace.SMALL : MapDBKeyspace.DEDICATED);
+        }
+    }
+
+    private void _written(byte[] key0, MapDBSortedSet zset) {
+        if (zset.isEmpty()) {
+            _delete(key0);
+        } else {
+            keyspace.put(key0, Type.ZSET, MapDBKeyspace.DEDICATED);
+        }
+    }
+
+    private void _written(byte[] key0, MapDBList list) {
+        if (list.isEmpty()) {
+            _delete(key0);
+        } else {
+            keyspace.put(key0, Type.LIST, MapDBKeyspace.DEDICATED);
+        }
+    }
+
+    // Indexes collections and values from before the keyspace existed
+    private void _rebuildkeyspace() {
+        for (byte[] key : values.keySet()) {
+            keyspace.put(key, Type.STRING, MapDBKeyspace.RAW);
+        }
+        for (byte[] composite : smallHashes.keySet()) {
+            keyspace.put(MapDBCompositeKey.key(composite), Type.HASH, MapDBKeyspace.SMALL);
+        }
+        for (byte[] composite : smallSets) {
+            keyspace.put(MapDBCompositeKey.key(composite), Type.SET, MapDBKeyspace.SMALL);
+        }
+        for (Map.Entry<String, Object> entry : db.getAll().entrySet()) {
+            String name = entry.getKey();
+            if (name.startsWith("__") || name.endsWith(".score") || name.endsWith(".rank")) {
+                continue;
+            }
+            if (name.endsWith(".member")) {
+                byte[] key = name.substring(0, name.length() - ".member".length()).getBytes();
+                keyspace.put(key, Type.ZSET, MapDBKeyspace.DEDICATED);
+            } else {
+                keyspace.put(name.getBytes(), _typeof(entry.getValue()), MapDBKeyspace.DEDICATED);
+            }
+        }
+        if (!keyspace.isEmpty()) {
+            commit();
+        }
+    }
+
+    // Lists and hashes are both tree maps, lists keyed by their positions
+    private static Type _typeof(Object collection) {
+        if (collection instanceof Set) {
+            return Type.SET;
+        }
+        BTreeMap<?, ?> map = (BTreeMap<?, ?>) collection;
+        return !map.isEmpty() && map.firstKey() instanceof Long ? Type.LIST : Type.HASH;
+    }
+
+    /**
+     * The cached handle of key, opened at most once even when threads race for it,
+     * so they all see it promoted once one of them does.
+     */
+    private <T> T _cached(byte[] key0, Class<T> kind, final Callable<T> open) {
+        final BytesKey key = new BytesKey(key0);
+        Callable<Object> reopen = new Callable<Object>() {
+            @Override
+            public Object call() throws ExecutionException {
+                return handles.get(key, open);
+            }
+        };
+        try {
+            Object o;
+            while (!kind.isInstance(o = collections.get(key, reopen))) {
+                // left over from a value of another type
+                collections.invalidate(key);
+                handles.invalidate(key);
+            }
+            return kind.cast(o);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private MapDBHash _gethash(final byte[] key0) throws RedisException {
+        _checktype(key0, Type.HASH);
+        return _cached(key0, MapDBHash.class, new Callable<MapDBHash>() {
+            @Override
+            public MapDBHash call() {
+                return MapDBHash.get(db, smallHashes, key0);
+            }
+        });
+    }
+
+    private MapDBSet _getset(final byte[] key0) throws RedisException {
+        _checktype(key0, Type.SET);
+        return _cached(key0, MapDBSet.class, new Callable<MapDBSet>() {
+            @Override
+            public MapDBSet call() {
+                return MapDBSet.get(db, smallSets, key0);
+            }
+        });
+    }
+
+    /**
+     * @return null if the list doesn't exist and create is false
+     */
+    private MapDBList _getlist(final byte[] key0, boolean create) throws RedisException {
+        _checkexpiry(key0);
+        Type type = keyspace.type(key0);
+        if (type != null && type != Type.LIST) {
+            throw invalidValue();
+        }
+        if (type == null && !create) {
+            return null;
+        }
+        return _cached(key0, MapDBList.class, new Callable<MapDBList>() {
+            @Override
+            public MapDBList call() {
+                return MapDBList.get(db, key0, true);
+            }
+        });
+    }
+
+    private MapDBSortedSet _getzset(final byte[] key0, final boolean create) throws RedisException {
+        _checkexpiry(key0);
+        Type type = keyspace.type(key0);
+        if (type != null && type != Type.ZSET) {
+            throw invalidValue();
+        }
+        if (!create && type == null) {
+            // not cached, it may not really exist
+            Object o = handles.getIfPresent(new BytesKey(key0));
+            return o instanceof MapDBSortedSet ? (MapDBSortedSet) o : MapDBSortedSet.get(db, key0, false);
+        }
+        MapDBSortedSet zset = _cached(key0, MapDBSortedSet.class, new Callable<MapDBSortedSet>() {
+            @Override
+            public MapDBSortedSet call() {
+                return MapDBSortedSet.get(db, key0, create);
+            }
+        });
+        _weigh(key0, zset);
+        return zset;
+    }
+
+    // Puts zset back once its rank index outgrew its weight so the cache weighs it
+    // again and evicts what no longer fits, zset itself if the index is too large
+    private void _weigh(byte[] key0, MapDBSortedSet zset) {
+        if (zset.outweighs()) {
+            BytesKey key = new BytesKey(key0);
+            if (collections.getIfPresent(key) == zset) {
+                collections.put(key, zset);
+            }
         }
-        return null;
     }
 
     private IntegerReply _change(byte[] key0, long delta) throws RedisException {
+        _checktype(key0, Type.STRING);
         Object o = values.get(key0);
         IntegerReply ret = null;
         if (o == null) {
-            values.put(key0, numToBytes(delta, false));
+            _putvalue(key0, numToBytes(delta, false));
             ret = integer(delta);
         } else if (o instanceof byte[]) {
             try {
                 long integer = bytesToNum((byte[]) o) + delta;
-                values.put(key0, numToBytes(integer, false));
+                _putvalue(key0, numToBytes(integer, false));
                 ret = integer(integer);
             } catch (IllegalArgumentException e) {
                 throw new RedisException(e.getMessage());
@@ -210,22 +782,23 @@ public class MapDBRedisServer implements RedisServer {
             throw notInteger();
         }
 
-        if(commit) db.commit();
+        commitValues();
         return ret;
     }
 
     private BulkReply _change(byte[] key0, double delta) throws RedisException {
+        _checktype(key0, Type.STRING);
         Object o = values.get(key0);
         BulkReply ret = null;
         if (o == null) {
             byte[] bytes = _tobytes(delta);
-            values.put(key0, bytes);
+            _putvalue(key0, bytes);
             ret = new BulkReply(bytes);
         } else if (o instanceof byte[]) {
             try {
                 double number = _todouble((byte[]) o) + delta;
                 byte[] bytes = _tobytes(number);
-                values.put(key0, bytes);
+                _putvalue(key0, bytes);
                 ret = new BulkReply(bytes);
             } catch (IllegalArgumentException e) {
                 throw new RedisException(e.getMessage());
@@ -233,7 +806,7 @@ public class MapDBRedisServer implements RedisServer {
         } else {
             throw notInteger();
         }
-        if(commit) db.commit();
+        commitValues();
         return ret;
     }
 
@@ -247,7 +820,7 @@ public class MapDBRedisServer implements RedisServer {
             throw new RedisException("wrong number of arguments for 'zadd' command");
         }
         byte[] key = args[0];
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key, true);
+        MapDBSortedSet zset = _getzset(key, true);
 
         // TODO: support add all in a single transaction
         int total = 0;
@@ -258,34 +831,39 @@ public class MapDBRedisServer implements RedisServer {
                 total++;
             }
         }
-        if(commit) db.commit();
+        _written(key, zset);
+        commit();
         return integer(total);
     }
 
     @Override
     public IntegerReply zcard(byte[] key0) throws RedisException {
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, true);
+        MapDBSortedSet zset = _getzset(key0, true);
         return integer(zset.size());
     }
 
     @Override
     public BulkReply zscore(byte[] key0, byte[] member1) throws RedisException {
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, false);
+        MapDBSortedSet zset = _getzset(key0, false);
         return new BulkReply(_tobytes(zset.getScore(member1)));
     }
 
     @Override
     public Reply zrank(byte[] key0, byte[] member1) throws RedisException {
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, false);
+        MapDBSortedSet zset = _getzset(key0, false);
 
-        return integer(zset.getRank(member1, false));
+        int rank = zset.getRank(member1, false);
+        _weigh(key0, zset);
+        return rank < 0 ? BulkReply.NIL_REPLY : integer(rank);
     }
 
     @Override
     public Reply zrevrank(byte[] key0, byte[] member1) throws RedisException {
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, false);
+        MapDBSortedSet zset = _getzset(key0, false);
 
-        return integer(zset.getRank(member1, true));
+        int rank = zset.getRank(member1, true);
+        _weigh(key0, zset);
+        return rank < 0 ? BulkReply.NIL_REPLY : integer(rank);
     }
 
     @Override
@@ -293,10 +871,10 @@ public class MapDBRedisServer implements RedisServer {
         if (key0 == null || start1 == null || stop2 == null) {
             throw new RedisException("invalid number of argumenst for 'zrange' command");
         }
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, false);
-        List<Reply<ByteBuf>> list = _zrange(start1, stop2, withscores3, zset, false);
-
-        return new MultiBulkReply(list.toArray(new Reply[list.size()]));
+        MapDBSortedSet zset = _getzset(key0, false);
+        MultiBulkReply reply = _zrange(start1, stop2, withscores3, zset, false);
+        _weigh(key0, zset);
+        return reply;
     }
 
     @Override
@@ -304,10 +882,10 @@ public class MapDBRedisServer implements RedisServer {
         if (key0 == null || start1 == null || stop2 == null) {
             throw new RedisException("invalid number of argumenst for 'zrevrange' command");
         }
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, false);
-        List<Reply<ByteBuf>> list = _zrange(start1, stop2, withscores3, zset, true);
-
-        return new MultiBulkReply(list.toArray(new Reply[list.size()]));
+        MapDBSortedSet zset = _getzset(key0, false);
+        MultiBulkReply reply = _zrange(start1, stop2, withscores3, zset, true);
+        _weigh(key0, zset);
+        return reply;
     }
 
     @Override
@@ -315,7 +893,7 @@ public class MapDBRedisServer implements RedisServer {
         if (key0 == null || min1 == null || max2 == null) {
             throw new RedisException("wrong number of arguments for 'zcount' command");
         }
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, false);
+        MapDBSortedSet zset = _getzset(key0, false);
         Score min = _toscorerange(min1);
         Score max = _toscorerange(max2);
 
@@ -324,22 +902,26 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public BulkReply zincrby(byte[] key0, byte[] increment1, byte[] member2) throws RedisException {
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, true);
+        MapDBSortedSet zset = _getzset(key0, true);
         double increment = _todouble(increment1);
         if (zset.exists(member2)) {
             zset.add(member2, increment);
+            _written(key0, zset);
+            commit();
             return new BulkReply(increment1);
         } else {
             double newValue = zset.getScore(member2) + increment;
 
             zset.add(member2, newValue);
+            _written(key0, zset);
+            commit();
             return new BulkReply(_tobytes(newValue));
         }
     }
 
     @Override
     public MultiBulkReply zrangebyscore(byte[] key0, byte[] min1, byte[] max2, byte[][] withscores_offset_or_count4) throws RedisException {
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, true);
+        MapDBSortedSet zset = _getzset(key0, true);
         if (zset.isEmpty()) return MultiBulkReply.EMPTY;
         List<Reply<ByteBuf>> list = _zrangebyscore(min1, max2, withscores_offset_or_count4, zset, false);
         return new MultiBulkReply(list.toArray(new Reply[list.size()]));
@@ -347,26 +929,32 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public IntegerReply zrem(byte[] key0, byte[][] member1) throws RedisException {
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, true);
+        MapDBSortedSet zset = _getzset(key0, true);
         if (zset.isEmpty()) return integer(0);
 
-        return integer(zset.removeMembers(member1));
+        int removed = zset.removeMembers(member1);
+        _written(key0, zset);
+        commit();
+        return integer(removed);
     }
 
     @Override
     public IntegerReply zremrangebyscore(byte[] key0, byte[] min1, byte[] max2) throws RedisException {
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, false);
+        MapDBSortedSet zset = _getzset(key0, false);
         if (zset.isEmpty()) return integer(0);
         Score min = _toscorerange(min1);
         Score max = _toscorerange(max2);
         SortedSet<Object[]> entries = zset.subMap(min.value, max.value);
 
-        return integer(zset.removeEntries(entries));
+        int removed = zset.removeEntries(entries);
+        _written(key0, zset);
+        commit();
+        return integer(removed);
     }
 
     @Override
     public MultiBulkReply zrevrangebyscore(byte[] key0, byte[] max1, byte[] min2, byte[][] withscores_offset_or_count4) throws RedisException {
-        MapDBSortedSet zset = MapDBSortedSet.get(db, key0, false);
+        MapDBSortedSet zset = _getzset(key0, false);
         if (zset.isEmpty()) return MultiBulkReply.EMPTY;
         List<Reply<ByteBuf>> list = _zrangebyscore(min2, max1, withscores_offset_or_count4, zset, true);
         return new MultiBulkReply(list.toArray(new Reply[list.size()]));
@@ -380,7 +968,18 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public IntegerReply zremrangebyrank(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
-        return null;
+        MapDBSortedSet zset = _getzset(key0, false);
+        if (zset.isEmpty()) return integer(0);
+        int size = zset.size();
+        int start = Math.max(_torange(start1, size), 0);
+        int end = _torange(stop2, size);
+        if (start > end) return integer(0);
+
+        int removed = zset.removeRange(start, end);
+        _weigh(key0, zset);
+        _written(key0, zset);
+        commit();
+        return integer(removed);
     }
 
     @Override
@@ -388,27 +987,42 @@ public class MapDBRedisServer implements RedisServer {
         return null;
     }
 
-    private List<Reply<ByteBuf>> _zrange(byte[] start1, byte[] stop2, byte[] withscores3, MapDBSortedSet zset, boolean reverse) throws RedisException {
-        boolean withscores = _checkcommand(withscores3, "withscores", true);
-        int size = zset.size();
-        int start = _torange(start1, size);
-        int end = _torange(stop2, size);
-        Iterator<Object[]> iterator = zset.getStart(start, reverse);
-        List<Reply<ByteBuf>> list = new ArrayList<Reply<ByteBuf>>();
-        for (int i = 0; i < size; i++) {
-            if (iterator.hasNext()) {
-                Object[] next = iterator.next();
-                if (i >= start && i <= end) {
-                    list.add(new BulkReply((byte[]) next[1]));
-                    if (withscores) {
-                        list.add(new BulkReply(_tobytes((Double) next[0])));
-                    }
-                } else if (i > end) {
-                    break;
-                }
+    @Override
+    public MultiBulkReply zscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException {
+        byte[] after = ScanArguments.resume(cursor1);
+        ScanArguments arguments = new ScanArguments(attributes2);
+        List<Reply> replies = new ArrayList<Reply>();
+        _checktype(key0, Type.ZSET);
+        if (!keyspace.exists(key0)) {
+            return ScanArguments.reply(0, replies);
+        }
+        List<Map.Entry<byte[], Double>> entries = new ArrayList<Map.Entry<byte[], Double>>();
+        boolean more = _getzset(key0, false).scan(after, arguments.count, entries);
+        for (Map.Entry<byte[], Double> entry : entries) {
+            if (arguments.matches(entry.getKey())) {
+                replies.add(new BulkReply(entry.getKey()));
+                replies.add(new BulkReply(_tobytes(entry.getValue())));
             }
         }
-        return list;
+        return ScanArguments.reply(more ? entries.get(entries.size() - 1).getKey() : null, replies);
+    }
+
+    private MultiBulkReply _zrange(byte[] start1, byte[] stop2, byte[] withscores3, MapDBSortedSet zset, boolean reverse) throws RedisException {
+        final boolean withscores = _checkcommand(withscores3, "withscores", true);
+        int size = zset.size();
+        int start = Math.max(_torange(start1, size), 0);
+        int end = Math.min(_torange(stop2, size), size - 1);
+        int count = Math.max(end - start + 1, 0);
+        Iterator<Object[]> range = Iterators.limit(zset.iterator(start, reverse), count);
+        return _chunked(Iterators.concat(Iterators.transform(range,
+                new Function<Object[], Iterator<Reply>>() {
+                    @Override
+                    public Iterator<Reply> apply(Object[] entry) {
+                        BulkReply member = new BulkReply((byte[]) entry[1]);
+                        return withscores ? Iterators.<Reply>forArray(member, new BulkReply(_tobytes((Double) entry[0])))
+                                : Iterators.<Reply>singletonIterator(member);
+                    }
+                })));
     }
 
     private List<Reply<ByteBuf>> _zrangebyscore(byte[] min1, byte[] max2, byte[][] withscores_offset_or_count4, MapDBSortedSet zset, boolean reverse) throws RedisException {
@@ -462,46 +1076,47 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public IntegerReply hset(byte[] key0, byte[] field1, byte[] value2) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, true);
+        MapDBHash hash = _gethash(key0);
         Object put = hash.put(field1, value2);
 
-        if(commit) db.commit();
+        _written(key0, hash);
+        commit();
         return put == null ? integer(1) : integer(0);
     }
 
     @Override
     public MultiBulkReply hgetall(byte[] key0) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, false);
-        int size = hash.size();
-        Reply[] replies = new Reply[size * 2];
-        int i = 0;
-        for (Map.Entry<byte[], byte[]> entry : hash.entrySet()) {
-            replies[i++] = new BulkReply(entry.getKey());
-            replies[i++] = new BulkReply(entry.getValue());
-        }
-        return new MultiBulkReply(replies);
+        Map<byte[], byte[]> hash = _gethash(key0);
+        return _chunked(Iterators.concat(Iterators.transform(hash.entrySet().iterator(),
+                new Function<Map.Entry<byte[], byte[]>, Iterator<Reply>>() {
+                    @Override
+                    public Iterator<Reply> apply(Map.Entry<byte[], byte[]> entry) {
+                        return Iterators.<Reply>forArray(new BulkReply(entry.getKey()), new BulkReply(entry.getValue()));
+                    }
+                })));
     }
 
     @Override
     public IntegerReply hdel(byte[] key0, byte[][] field1) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, false);
+        MapDBHash hash = _gethash(key0);
         int total = 0;
         for (byte[] hkey : field1) {
             total += hash.remove(hkey) == null ? 0 : 1;
         }
-        if(commit) db.commit();
+        _written(key0, hash);
+        commit();
         return integer(total);
     }
 
     @Override
     public IntegerReply hexists(byte[] key0, byte[] field1) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, false);
+        Map<byte[], byte[]> hash = _gethash(key0);
         return hash.get(field1) == null ? integer(0) : integer(1);
     }
 
     @Override
     public BulkReply hget(byte[] key0, byte[] field1) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, false);
+        Map<byte[], byte[]> hash = _gethash(key0);
         byte[] bytes = hash.get(field1);
         if (bytes == null) {
             return BulkReply.NIL_REPLY;
@@ -512,7 +1127,7 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public IntegerReply hincrby(byte[] key0, byte[] field1, byte[] increment2) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, true);
+        MapDBHash hash = _gethash(key0);
         byte[] field = hash.get(field1);
         int increment = _toint(increment2);
         int ret = increment;
@@ -526,13 +1141,14 @@ public class MapDBRedisServer implements RedisServer {
             ret = value;
             hash.put(field1, numToBytes(value, false));
         }
-        if(commit) db.commit();
+        _written(key0, hash);
+        commit();
         return new IntegerReply(ret);
     }
 
     @Override
     public BulkReply hincrbyfloat(byte[] key0, byte[] field1, byte[] increment2) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, true);
+        MapDBHash hash = _gethash(key0);
         byte[] field = hash.get(field1);
         double increment = _todouble(increment2);
         byte[] ret = increment2;
@@ -547,31 +1163,26 @@ public class MapDBRedisServer implements RedisServer {
             ret = bytes;
             hash.put(field1, bytes);
         }
-        if(commit) db.commit();
+        _written(key0, hash);
+        commit();
         return new BulkReply(ret);
     }
 
     @Override
     public MultiBulkReply hkeys(byte[] key0) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, false);
-        int size = hash.size();
-        Reply[] replies = new Reply[size];
-        int i = 0;
-        for (byte[] hkey : hash.keySet()) {
-            replies[i++] = new BulkReply(hkey);
-        }
-        return new MultiBulkReply(replies);
+        Map<byte[], byte[]> hash = _gethash(key0);
+        return _chunked(Iterators.transform(hash.keySet().iterator(), BULK));
     }
 
     @Override
     public IntegerReply hlen(byte[] key0) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, false);
+        Map<byte[], byte[]> hash = _gethash(key0);
         return integer(hash.size());
     }
 
     @Override
     public MultiBulkReply hmget(byte[] key0, byte[][] field1) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, false);
+        Map<byte[], byte[]> hash = _gethash(key0);
         int length = field1.length;
         Reply[] replies = new Reply[length];
         for (int i = 0; i < length; i++) {
@@ -587,24 +1198,26 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public StatusReply hmset(byte[] key0, byte[][] field_or_value1) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, true);
+        MapDBHash hash = _gethash(key0);
         if (field_or_value1.length % 2 != 0) {
             throw new RedisException("wrong number of arguments for HMSET");
         }
         for (int i = 0; i < field_or_value1.length; i += 2) {
             hash.put(field_or_value1[i], field_or_value1[i + 1]);
         }
-        if(commit) db.commit();
+        _written(key0, hash);
+        commit();
         return OK;
     }
 
     @Override
     public IntegerReply hsetnx(byte[] key0, byte[] field1, byte[] value2) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, true);
+        MapDBHash hash = _gethash(key0);
         byte[] bytes = hash.get(field1);
         if (bytes == null) {
             hash.put(field1, value2);
-            if(commit) db.commit();
+            _written(key0, hash);
+            commit();
             return integer(1);
         } else {
             return integer(0);
@@ -613,14 +1226,24 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public MultiBulkReply hvals(byte[] key0) throws RedisException {
-        Map<byte[], byte[]> hash = MapDBHash.get(db, key0, true);
-        int size = hash.size();
-        Reply[] replies = new Reply[size];
-        int i = 0;
-        for (byte[] hvalue : hash.values()) {
-            replies[i++] = new BulkReply(hvalue);
+        Map<byte[], byte[]> hash = _gethash(key0);
+        return _chunked(Iterators.transform(hash.values().iterator(), BULK));
+    }
+
+    @Override
+    public MultiBulkReply hscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException {
+        byte[] after = ScanArguments.resume(cursor1);
+        ScanArguments arguments = new ScanArguments(attributes2);
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<Map.Entry<byte[], byte[]>>();
+        boolean more = _gethash(key0).scan(after, arguments.count, entries);
+        List<Reply> replies = new ArrayList<Reply>();
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            if (arguments.matches(entry.getKey())) {
+                replies.add(new BulkReply(entry.getKey()));
+                replies.add(new BulkReply(entry.getValue()));
+            }
         }
-        return new MultiBulkReply(replies);
+        return ScanArguments.reply(more ? entries.get(entries.size() - 1).getKey() : null, replies);
     }
 
     ////////////
@@ -629,42 +1252,45 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public IntegerReply sadd(byte[] key0, byte[][] member1) throws RedisException {
-        NavigableSet<byte[]> set = MapDBSet.get(db, key0, true);
+        MapDBSet set = _getset(key0);
         int total = 0;
         for (byte[] bytes : member1) {
             if (set.add(bytes)) total++;
         }
-        if(commit) db.commit();
+        _written(key0, set);
+        commit();
         return integer(total);
     }
 
     @Override
     public IntegerReply scard(byte[] key0) throws RedisException {
-        NavigableSet<byte[]> set = MapDBSet.get(db, key0, false);
+        MapDBSet set = _getset(key0);
         return integer(set.size());
     }
 
     @Override
     public IntegerReply sismember(byte[] key0, byte[] member1) throws RedisException {
-        NavigableSet<byte[]> set = MapDBSet.get(db, key0, false);
+        MapDBSet set = _getset(key0);
         return set.contains(member1) ? integer(1) : integer(0);
     }
 
     @Override
     public MultiBulkReply smembers(byte[] key0) throws RedisException {
-        NavigableSet<byte[]> set = MapDBSet.get(db, key0, false);
+        MapDBSet set = _getset(key0);
         return _setreply(set);
     }
 
     @Override
     public IntegerReply srem(byte[] key0, byte[][] member1) throws RedisException {
-        NavigableSet<byte[]> set = MapDBSet.get(db, key0, false);
+        MapDBSet set = _getset(key0);
         int total = 0;
         for (byte[] member : member1) {
             if (set.remove(member)) {
                 total++;
             }
         }
+        _written(key0, set);
+        commit();
         return new IntegerReply(total);
     }
 
@@ -713,13 +1339,23 @@ public class MapDBRedisServer implements RedisServer {
         return null;
     }
 
-    private MultiBulkReply _setreply(NavigableSet<byte[]> set) {
-        Reply[] replies = new Reply[set.size()];
-        int i = 0;
-        for (byte[] value : set) {
-            replies[i++] = new BulkReply(value);
+    @Override
+    public MultiBulkReply sscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException {
+        byte[] after = ScanArguments.resume(cursor1);
+        ScanArguments arguments = new ScanArguments(attributes2);
+        List<byte[]> members = new ArrayList<byte[]>();
+        boolean more = _getset(key0).scan(after, arguments.count, members);
+        List<Reply> replies = new ArrayList<Reply>();
+        for (byte[] member : members) {
+            if (arguments.matches(member)) {
+                replies.add(new BulkReply(member));
+            }
         }
-        return new MultiBulkReply(replies);
+        return ScanArguments.reply(more ? members.get(members.size() - 1) : null, replies);
+    }
+
+    private MultiBulkReply _setreply(Set<byte[]> set) {
+        return _chunked(Iterators.transform(set.iterator(), BULK));
     }
 
 
@@ -729,7 +1365,7 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public IntegerReply lpush(byte[] key0, byte[][] value1) throws RedisException {
-        return null;
+        return _push(key0, value1, true);
     }
 
     @Override
@@ -749,67 +1385,170 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public BulkReply lindex(byte[] key0, byte[] index1) throws RedisException {
-        return null;
+        MapDBList list = _getlist(key0, false);
+        if (list == null) {
+            return BulkReply.NIL_REPLY;
+        }
+        byte[] bytes = list.get(_toindex(index1, list.size()));
+        return bytes == null ? BulkReply.NIL_REPLY : new BulkReply(bytes);
     }
 
     @Override
     public IntegerReply linsert(byte[] key0, byte[] where1, byte[] pivot2, byte[] value3) throws RedisException {
-        return null;
+        String where = new String(where1).toLowerCase();
+        if (!where.equals("before") && !where.equals("after")) {
+            throw new RedisException("syntax error");
+        }
+        MapDBList list = _getlist(key0, false);
+        if (list == null) {
+            return integer(0);
+        }
+        int size = list.insert(pivot2, value3, where.equals("before"));
+        commit();
+        return integer(size);
     }
 
     @Override
     public IntegerReply llen(byte[] key0) throws RedisException {
-        return null;
+        MapDBList list = _getlist(key0, false);
+        return list == null ? integer(0) : integer(list.size());
     }
 
     @Override
     public BulkReply lpop(byte[] key0) throws RedisException {
-        return null;
+        return _pop(key0, true);
     }
 
     @Override
     public IntegerReply lpushx(byte[] key0, byte[] value1) throws RedisException {
-        return null;
+        return _pushx(key0, value1, true);
     }
 
     @Override
     public MultiBulkReply lrange(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
-        return null;
+        MapDBList list = _getlist(key0, false);
+        if (list == null) {
+            return MultiBulkReply.EMPTY;
+        }
+        int size = list.size();
+        long start = Math.max(_toindex(start1, size), 0);
+        long end = Math.min(_toindex(stop2, size), size - 1);
+        if (start > end) {
+            return MultiBulkReply.EMPTY;
+        }
+        List<byte[]> range = list.range(start, end);
+        Reply[] replies = new Reply[range.size()];
+        for (int i = 0; i < replies.length; i++) {
+            replies[i] = new BulkReply(range.get(i));
+        }
+        return new MultiBulkReply(replies);
     }
 
     @Override
     public IntegerReply lrem(byte[] key0, byte[] count1, byte[] value2) throws RedisException {
-        return null;
+        int count = _toint(count1);
+        MapDBList list = _getlist(key0, false);
+        if (list == null) {
+            return integer(0);
+        }
+        int removed = list.remove(value2, count);
+        _written(key0, list);
+        commit();
+        return integer(removed);
     }
 
     @Override
     public StatusReply lset(byte[] key0, byte[] index1, byte[] value2) throws RedisException {
-        return null;
+        MapDBList list = _getlist(key0, false);
+        if (list == null) {
+            throw new RedisException("no such key");
+        }
+        if (!list.set(_toindex(index1, list.size()), value2)) {
+            throw new RedisException("index out of range");
+        }
+        commit();
+        return OK;
     }
 
     @Override
     public StatusReply ltrim(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
-        return null;
+        MapDBList list = _getlist(key0, false);
+        if (list == null) {
+            return OK;
+        }
+        int size = list.size();
+        list.trim(_toindex(start1, size), _toindex(stop2, size));
+        _written(key0, list);
+        commit();
+        return OK;
     }
 
     @Override
     public BulkReply rpop(byte[] key0) throws RedisException {
-        return null;
+        return _pop(key0, false);
     }
 
     @Override
     public BulkReply rpoplpush(byte[] source0, byte[] destination1) throws RedisException {
-        return null;
+        MapDBList source = _getlist(source0, false);
+        if (source == null) {
+            return BulkReply.NIL_REPLY;
+        }
+        _checktype(destination1, Type.LIST);
+        byte[] bytes = source.pop(false);
+        _written(source0, source);
+        MapDBList destination = _getlist(destination1, true);
+        destination.push(bytes, true);
+        _written(destination1, destination);
+        commit();
+        return new BulkReply(bytes);
     }
 
     @Override
     public IntegerReply rpush(byte[] key0, byte[][] value1) throws RedisException {
-        return null;
+        return _push(key0, value1, false);
     }
 
     @Override
     public IntegerReply rpushx(byte[] key0, byte[] value1) throws RedisException {
-        return null;
+        return _pushx(key0, value1, false);
+    }
+
+    private IntegerReply _push(byte[] key0, byte[][] value1, boolean left) throws RedisException {
+        MapDBList list = _getlist(key0, true);
+        for (byte[] value : value1) {
+            list.push(value, left);
+        }
+        _written(key0, list);
+        commit();
+        return integer(list.size());
+    }
+
+    private IntegerReply _pushx(byte[] key0, byte[] value1, boolean left) throws RedisException {
+        MapDBList list = _getlist(key0, false);
+        if (list == null) {
+            return integer(0);
+        }
+        list.push(value1, left);
+        commit();
+        return integer(list.size());
+    }
+
+    private BulkReply _pop(byte[] key0, boolean left) throws RedisException {
+        MapDBList list = _getlist(key0, false);
+        if (list == null) {
+            return BulkReply.NIL_REPLY;
+        }
+        byte[] bytes = list.pop(left);
+        _written(key0, list);
+        commit();
+        return bytes == null ? BulkReply.NIL_REPLY : new BulkReply(bytes);
+    }
+
+    // An index counted from the end when negative, not checked against the size
+    private static long _toindex(byte[] index1, int size) throws RedisException {
+        long index = bytesToNum(index1);
+        return index < 0 ? size + index : index;
     }
 
     /////////////
@@ -894,43 +1633,6 @@ public class MapDBRedisServer implements RedisServer {
         return new RedisException("Operation against a key holding the wrong kind of value");
     }
 
-    private static boolean matches(byte[] key, byte[] pattern, int kp, int pp) {
-        if (kp == key.length) {
-            return pp == pattern.length || (pp == pattern.length - 1 && pattern[pp] == '*');
-        } else if (pp == pattern.length) {
-            return false;
-        }
-        byte c = key[kp];
-        byte p = pattern[pp];
-        switch (p) {
-            case '?':
-                // Always matches, move to next character in key and pattern
-                return matches(key, pattern, kp + 1, pp + 1);
-            case '*':
-                // Matches this character than either matches end or try next character
-                return matches(key, pattern, kp + 1, pp + 1) || matches(key, pattern, kp + 1, pp);
-            case '\\':
-                // Matches the escaped character and the rest
-                return c == pattern[pp + 1] && matches(key, pattern, kp + 1, pp + 2);
-            case '[':
-                // Matches one of the characters and the rest
-                boolean found = false;
-                pp++;
-                do {
-                    byte b = pattern[pp++];
-                    if (b == ']') {
-                        break;
-                    } else {
-                        if (b == c) found = true;
-                    }
-                } while (true);
-                return found && matches(key, pattern, kp + 1, pp);
-            default:
-                // This matches and the rest
-                return c == p && matches(key, pattern, kp + 1, pp + 1);
-        }
-    }
-
     ///////////////
     ///////// all the rest... not implemented
     ///////////////
@@ -973,7 +1675,8 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public Reply psetex(byte[] key0, byte[] milliseconds1, byte[] value2) throws RedisException {
-        return null;
+        _setex(key0, bytesToNum(milliseconds1), value2);
+        return OK;
     }
 
     @Override
@@ -983,7 +1686,17 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public StatusReply setex(byte[] key0, byte[] seconds1, byte[] value2) throws RedisException {
-        return null;
+        _setex(key0, bytesToNum(seconds1) * 1000, value2);
+        return OK;
+    }
+
+    private void _setex(byte[] key0, long milliseconds, byte[] value) throws RedisException {
+        if (milliseconds <= 0) {
+            throw new RedisException("invalid expire time");
+        }
+        _putvalue(key0, value);
+        _expireat(key0, System.currentTimeMillis() + milliseconds);
+        commit();
     }
 
     @Override
@@ -1068,7 +1781,7 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public IntegerReply dbsize() throws RedisException {
-        return null;
+        return integer(keyspace.size());
     }
 
     @Override
@@ -1083,12 +1796,24 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public StatusReply flushall() throws RedisException {
-        return null;
+        return flushdb();
     }
 
     @Override
     public StatusReply flushdb() throws RedisException {
-        return null;
+        // collections of their own are dropped one by one, the rest shares trees
+        for (byte[] key : keyspace.keys(MapDBKeyspace.DEDICATED)) {
+            _delete(key);
+        }
+        values.clear();
+        smallHashes.clear();
+        smallSets.clear();
+        keyspace.clear();
+        expiry.clear();
+        collections.invalidateAll();
+        handles.invalidateAll();
+        commit();
+        return OK;
     }
 
     @Override
@@ -1143,17 +1868,18 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public IntegerReply exists(byte[] key0) throws RedisException {
-        return null;
+        _checkexpiry(key0);
+        return keyspace.exists(key0) ? integer(1) : integer(0);
     }
 
     @Override
     public IntegerReply expire(byte[] key0, byte[] seconds1) throws RedisException {
-        return null;
+        return _expire(key0, System.currentTimeMillis() + bytesToNum(seconds1) * 1000);
     }
 
     @Override
     public IntegerReply expireat(byte[] key0, byte[] timestamp1) throws RedisException {
-        return null;
+        return _expire(key0, bytesToNum(timestamp1) * 1000);
     }
 
     @Override
@@ -1173,22 +1899,27 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public IntegerReply persist(byte[] key0) throws RedisException {
-        return null;
+        _checkexpiry(key0);
+        if (_persist(key0)) {
+            commit();
+            return integer(1);
+        }
+        return integer(0);
     }
 
     @Override
     public IntegerReply pexpire(byte[] key0, byte[] milliseconds1) throws RedisException {
-        return null;
+        return _expire(key0, System.currentTimeMillis() + bytesToNum(milliseconds1));
     }
 
     @Override
     public IntegerReply pexpireat(byte[] key0, byte[] milliseconds_timestamp1) throws RedisException {
-        return null;
+        return _expire(key0, bytesToNum(milliseconds_timestamp1));
     }
 
     @Override
     public IntegerReply pttl(byte[] key0) throws RedisException {
-        return null;
+        return _pttl(key0);
     }
 
     @Override
@@ -1218,22 +1949,15 @@ public class MapDBRedisServer implements RedisServer {
 
     @Override
     public IntegerReply ttl(byte[] key0) throws RedisException {
-        return null;
+        long pttl = _pttl(key0).data();
+        return integer(pttl < 0 ? pttl : pttl / 1000);
     }
 
     @Override
     public StatusReply type(byte[] key0) throws RedisException {
-        return null;
-    }
-
-    @Override
-    public StatusReply unwatch() throws RedisException {
-        return null;
-    }
-
-    @Override
-    public StatusReply watch(byte[][] key0) throws RedisException {
-        return null;
+        _checkexpiry(key0);
+        Type type = keyspace.type(key0);
+        return new StatusReply(type == null ? "none" : type.name);
     }
 
     @Override
@@ -3,26 +3,179 @@ package redis.server.backend.mapdb;
 import org.mapdb.DB;
 import org.mapdb.Fun;
 
-import java.util.NavigableSet;
+import java.util.*;
 
 /**
  * Created by blafountain on 11/8/2014.
+ * <p/>
+ * Small sets live together in one shared set (__sets) of {@link MapDBCompositeKey}s,
+ * like strings share __values. Once a set grows past MAX_SMALL_ENTRIES members it
+ * is moved to a tree set of its own named after the key.
  */
-public class MapDBSet {
-    public static NavigableSet<byte[]> get(DB db, byte[] key, boolean create) {
+public class MapDBSet extends AbstractSet<byte[]> {
+    public static final int MAX_SMALL_ENTRIES = 128;
+    public static final String SHARED = "__sets";
+
+    protected final DB db;
+    protected final byte[] key;
+    protected final byte[] prefix;
+    protected final NavigableSet<byte[]> shared;
+    // The set's own tree set once it has been promoted, volatile as cached handles are shared;
+    // writes are synchronized so none of them lands in the shared set during a promotion
+    protected volatile NavigableSet<byte[]> set;
+
+    public MapDBSet(DB db, byte[] key, NavigableSet<byte[]> shared, NavigableSet<byte[]> set) {
+        this.db = db;
+        this.key = key;
+        this.prefix = MapDBCompositeKey.prefix(key);
+        this.shared = shared;
+        this.set = set;
+    }
+
+    public static MapDBSet get(DB db, byte[] key, boolean create) {
+        return get(db, shared(db), key);
+    }
+
+    public static MapDBSet get(DB db, NavigableSet<byte[]> shared, byte[] key) {
         String keyStr = new String(key);
+        // Nothing has to be created up front for a small set
+        NavigableSet<byte[]> set = db.exists(keyStr) ? dedicated(db, keyStr) : null;
+        return new MapDBSet(db, key, shared, set);
+    }
+
+    public static NavigableSet<byte[]> shared(DB db) {
+        return db.createTreeSet(SHARED)
+                .comparator(Fun.BYTE_ARRAY_COMPARATOR)
+                .makeOrGet();
+    }
 
-        // TODO: we should/could implement a 'small' set where if the number of values
-        //  size is under a certian ammout we could just use a common entry (__sets), sort of what we do for
-        //  __values. Only if we 'need' to have a root key like this should we use it. Redis does
-        //  something similar with their ziplists
-        if (create) {
-            return db.createTreeSet(keyStr)
-                    .comparator(Fun.BYTE_ARRAY_COMPARATOR)
-                    .counterEnable()
-                    .makeOrGet();
+    private static NavigableSet<byte[]> dedicated(DB db, String keyStr) {
+        return db.createTreeSet(keyStr)
+                .comparator(Fun.BYTE_ARRAY_COMPARATOR)
+                .counterEnable()
+                .makeOrGet();
+    }
+
+    /**
+     * @return true if key is a small set
+     */
+    public static boolean exists(NavigableSet<byte[]> shared, byte[] key) {
+        byte[] prefix = MapDBCompositeKey.prefix(key);
+        byte[] first = shared.ceiling(prefix);
+        return first != null && MapDBCompositeKey.hasPrefix(first, prefix);
+    }
+
+    /**
+     * Removes the set whatever its encoding.
+     */
+    public synchronized void delete() {
+        if (set != null) {
+            db.delete(new String(key));
+            set = null;
         } else {
-            return db.getTreeSet(keyStr);
+            small().clear();
+        }
+    }
+
+    public boolean isSmall() {
+        return set == null;
+    }
+
+    // The small set's members, as full composite keys
+    private SortedSet<byte[]> small() {
+        SortedSet<byte[]> tail = shared.tailSet(prefix);
+        for (byte[] next : tail) {
+            if (!MapDBCompositeKey.hasPrefix(next, prefix)) {
+                return shared.subSet(prefix, next);
+            }
+        }
+        return tail;
+    }
+
+    @Override
+    public boolean contains(Object member) {
+        if (set != null) {
+            return set.contains(member);
+        }
+        return shared.contains(MapDBCompositeKey.compose(key, (byte[]) member));
+    }
+
+    @Override
+    public synchronized boolean add(byte[] member) {
+        if (set != null) {
+            return set.add(member);
+        }
+        boolean added = shared.add(MapDBCompositeKey.compose(key, member));
+        if (added && size() > MAX_SMALL_ENTRIES) {
+            promote();
+        }
+        return added;
+    }
+
+    @Override
+    public synchronized boolean remove(Object member) {
+        if (set != null) {
+            return set.remove(member);
+        }
+        return shared.remove(MapDBCompositeKey.compose(key, (byte[]) member));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        if (set == null && exists(shared, key)) {
+            return false;
+        }
+        // also if it was promoted after set was looked at
+        NavigableSet<byte[]> set = this.set;
+        return set == null || set.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        if (set != null) {
+            return set.size();
+        }
+        return small().size();
+    }
+
+    @Override
+    public Iterator<byte[]> iterator() {
+        if (set != null) {
+            return set.iterator();
+        }
+        List<byte[]> members = new ArrayList<byte[]>();
+        for (byte[] bytes : small()) {
+            members.add(MapDBCompositeKey.member(bytes, prefix));
+        }
+        return members.iterator();
+    }
+
+    /**
+     * Adds up to count members following after, or from the first one if it is
+     * null. A small set adds all of its members.
+     *
+     * @return false once there are no more
+     */
+    public boolean scan(byte[] after, int count, List<byte[]> members) {
+        if (set == null) {
+            members.addAll(this);
+            return false;
+        }
+        Iterator<byte[]> iterator = (after == null ? set : set.tailSet(after, false)).iterator();
+        for (int i = 0; i < count && iterator.hasNext(); i++) {
+            members.add(iterator.next());
+        }
+        return iterator.hasNext();
+    }
+
+    private void promote() {
+        SortedSet<byte[]> small = small();
+        NavigableSet<byte[]> set = dedicated(db, new String(key));
+        for (byte[] bytes : small) {
+            set.add(MapDBCompositeKey.member(bytes, prefix));
         }
+        // switched first, readers never see the set empty
+        this.set = set;
+        small.clear();
     }
 }
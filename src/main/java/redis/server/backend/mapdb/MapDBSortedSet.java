@@ -9,6 +9,11 @@ import java.util.*;
 
 /**
  * Created by blafountain on 11/7/2014.
+ * <p/>
+ * Ranks come from a {@link MapDBRankIndex} kept next to the score set, so ZRANK,
+ * ZRANGE and ZREMRANGEBYRANK don't walk the score set. The handle is cached by
+ * the server which keeps the index around between commands, weighing it by its
+ * buckets so the indexes of all cached sets stay within a bound.
  */
 public class MapDBSortedSet {
     protected DB db;
@@ -17,6 +22,10 @@ public class MapDBSortedSet {
     protected BTreeMap<byte[], Double> memberToValue;
     // TODO: we can use redis.server.backend.mapdb.bindings
     protected NavigableSet<Object[]> scoreToMembers;
+    // Opened on the first write or rank, kept up to date by every write
+    protected MapDBRankIndex ranks;
+    // Rank index buckets the cache last weighed this handle with
+    protected int weighed;
 
     public MapDBSortedSet(DB db, byte[] key, BTreeMap<byte[], Double> memberToValue, NavigableSet<Object[]> scoreToMembers) {
         this.db = db;
@@ -25,32 +34,45 @@ public class MapDBSortedSet {
         this.scoreToMembers = scoreToMembers;
     }
 
-    public int removeMembers(byte[][] members) {
+    public synchronized int removeMembers(byte[][] members) {
+        // opened before the set changes, so the counts still add up
+        MapDBRankIndex ranks = ranks();
         int count = 0;
         for (byte[] member : members) {
             if (memberToValue.containsKey(member)) {
                 Double score = memberToValue.get(member);
+                Object[] entry = new Object[]{score, member};
 
                 memberToValue.remove(member);
-                scoreToMembers.remove(new Object[]{score, member});
+                if (scoreToMembers.remove(entry)) {
+                    ranks.removed(entry);
+                }
                 count++;
             }
         }
-        db.commit();
         return count;
     }
 
-    public int removeEntries(SortedSet<Object[]> entries) {
+    public synchronized int removeEntries(Collection<Object[]> entries) {
+        MapDBRankIndex ranks = ranks();
         int count = 0;
         for (Object[] entry : entries) {
             memberToValue.remove((byte[]) entry[1]);
-            scoreToMembers.remove(entry);
+            if (scoreToMembers.remove(entry)) {
+                ranks.removed(entry);
+            }
             count++;
         }
-        db.commit();
         return count;
     }
 
+    /**
+     * Removes the entries from rank start to rank end, both included.
+     */
+    public synchronized int removeRange(int start, int end) {
+        return removeEntries(getRange(start, end, false));
+    }
+
     public double getScore(byte[] member) {
         return memberToValue.get(member);
     }
@@ -59,24 +81,31 @@ public class MapDBSortedSet {
         return memberToValue.isEmpty();
     }
 
-    public Iterator<Object[]> getStart(int start, boolean descending) {
-        // TODO: this is what we want...
-        // scoreToMember.subMapIndex(start, end);
-        // TODO: for now we're going to brute force it
-        Iterator<Object[]> ret;
-
-        if (descending) {
-            ret = scoreToMembers.descendingIterator();
-        } else {
-            ret = scoreToMembers.iterator();
+    /**
+     * @return the entries from rank start to rank end, both included
+     */
+    public synchronized List<Object[]> getRange(int start, int end, boolean descending) {
+        List<Object[]> range = new ArrayList<Object[]>(Math.max(end - start + 1, 0));
+        Iterator<Object[]> iterator = iterator(start, descending);
+        for (int i = start; i <= end && iterator.hasNext(); i++) {
+            range.add(iterator.next());
         }
+        return range;
+    }
 
-        int cur = 0;
-        while (cur < start) {
-            ret.next();
-            cur++;
+    /**
+     * Iterates the score entries from rank start on. Only finding the first entry
+     * uses the rank index, the rest are read from the score set so the iterator
+     * can be used outside the lock.
+     */
+    public synchronized Iterator<Object[]> iterator(int start, boolean descending) {
+        int size = size();
+        if (start >= size) {
+            return Collections.<Object[]>emptyList().iterator();
         }
-        return ret;
+        Object[] first = ranks().get(descending ? size - 1 - start : start);
+        return (descending ? scoreToMembers.headSet(first, true).descendingSet()
+                : scoreToMembers.tailSet(first, true)).iterator();
     }
 
     public NavigableSet<Object[]> subMap(double min, boolean minInclusive, double max, boolean maxExclusive) {
@@ -99,39 +128,55 @@ public class MapDBSortedSet {
         return memberToValue.containsKey(member);
     }
 
-    public int getRank(byte[] member, boolean descending) {
+    /**
+     * @return the rank of member or -1 if it isn't there
+     */
+    public synchronized int getRank(byte[] member, boolean descending) {
         Double value = memberToValue.get(member);
+        if (value == null) {
+            return -1;
+        }
+        int rank = ranks().rank(new Object[]{value, member});
+        return descending ? size() - 1 - rank : rank;
+    }
 
-        // TODO: fix me, this is not a real implementation
-        int rank = 0;
-        NavigableSet<Object[]> set;
+    /**
+     * @return the rank index buckets, which the cache weighs this handle by
+     */
+    public synchronized int weigh() {
+        weighed = ranks == null ? 0 : ranks.buckets();
+        return weighed;
+    }
 
-        if (descending) {
-            set = scoreToMembers.descendingSet();
-        } else {
-            set = scoreToMembers;
-        }
+    /**
+     * @return true if the rank index grew to more than twice what it was weighed at
+     */
+    public synchronized boolean outweighs() {
+        return ranks != null && ranks.buckets() > weighed * 2;
+    }
 
-        for (Object[] obj : set) {
-            if (!descending && value <= (Double) obj[0]) {
-                return rank;
-            } else if (descending && value >= (Double) obj[0]) {
-                return rank;
-            }
-            rank++;
+    private MapDBRankIndex ranks() {
+        if (ranks == null) {
+            ranks = new MapDBRankIndex(db, key, scoreToMembers, size());
         }
-        return -1;
+        return ranks;
     }
 
-    public boolean add(byte[] member, double value) {
+    public synchronized boolean add(byte[] member, double value) {
         Double oldValue = memberToValue.get(member);
+        Object[] entry = new Object[]{value, member};
 
+        MapDBRankIndex ranks = ranks();
         memberToValue.put(member, value);
         if (oldValue != null) {
-            scoreToMembers.remove(new Object[]{oldValue, member});
+            Object[] oldEntry = new Object[]{oldValue, member};
+            if (scoreToMembers.remove(oldEntry)) {
+                ranks.removed(oldEntry);
+            }
+        }
+        if (scoreToMembers.add(entry)) {
+            ranks.added(entry);
         }
-        scoreToMembers.add(new Object[]{value, member});
-        db.commit();
         return true;
     }
 
@@ -139,6 +184,31 @@ public class MapDBSortedSet {
         return memberToValue.size();
     }
 
+    /**
+     * Removes the collections of the sorted set, rank counts included.
+     */
+    public void delete() {
+        String keyStr = new String(key);
+        db.delete(keyStr + ".member");
+        db.delete(keyStr + ".score");
+        MapDBRankIndex.delete(db, key);
+    }
+
+    /**
+     * Adds up to count members and their scores following member after, or from the
+     * first one if it is null, in member order.
+     *
+     * @return false once there are no more
+     */
+    public boolean scan(byte[] after, int count, List<Map.Entry<byte[], Double>> entries) {
+        Map<byte[], Double> tail = after == null ? memberToValue : memberToValue.tailMap(after, false);
+        Iterator<Map.Entry<byte[], Double>> iterator = tail.entrySet().iterator();
+        for (int i = 0; i < count && iterator.hasNext(); i++) {
+            entries.add(iterator.next());
+        }
+        return iterator.hasNext();
+    }
+
     public static MapDBSortedSet get(DB db, byte[] key, boolean create) {
         String keyStr = new String(key);
         String memberStr = keyStr + ".member";
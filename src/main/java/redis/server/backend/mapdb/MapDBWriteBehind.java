@@ -0,0 +1,162 @@
+package redis.server.backend.mapdb;
+
+import org.mapdb.Fun;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind view of a MapDB map.
+ * <p/>
+ * Writes land in an in-memory overlay and return right away; a background thread
+ * applies them to the MapDB map in batches, at most maxLag milliseconds after they
+ * were made. Reads look at the overlay first. When queueSize writes are waiting,
+ * writers block until the background thread catches up.
+ */
+public class MapDBWriteBehind extends AbstractMap<byte[], byte[]> implements Runnable {
+    private static final int BATCH_SIZE = 1024;
+    // Overlay marker for a removed key
+    private static final byte[] DELETED = new byte[0];
+
+    private final Map<byte[], byte[]> map;
+    private final ConcurrentNavigableMap<byte[], byte[]> overlay =
+            new ConcurrentSkipListMap<byte[], byte[]>(Fun.BYTE_ARRAY_COMPARATOR);
+    private final BlockingQueue<byte[]> queue;
+    private final long maxLag;
+    private final Runnable drained;
+    private final Thread thread;
+
+    /**
+     * @param drained run after each batch has been applied
+     */
+    public MapDBWriteBehind(Map<byte[], byte[]> map, long maxLag, int queueSize, Runnable drained) {
+        this.map = map;
+        this.maxLag = maxLag;
+        this.queue = new ArrayBlockingQueue<byte[]>(queueSize);
+        this.drained = drained;
+        thread = new Thread(this, "mapdb-write-behind");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public byte[] get(Object key) {
+        byte[] value = overlay.get(key);
+        if (value == null) {
+            return map.get(key);
+        }
+        return value == DELETED ? null : value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public byte[] put(byte[] key, byte[] value) {
+        byte[] previous = get(key);
+        overlay.put(key, value);
+        enqueue(key);
+        return previous;
+    }
+
+    @Override
+    public byte[] remove(Object key) {
+        byte[] previous = get(key);
+        if (previous != null) {
+            overlay.put((byte[]) key, DELETED);
+            enqueue((byte[]) key);
+        }
+        return previous;
+    }
+
+    /**
+     * Removes the keys one by one, as the entry set is only a snapshot.
+     */
+    @Override
+    public void clear() {
+        for (byte[] key : keySet()) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Whether some writes haven't been applied to the MapDB map yet.
+     */
+    public boolean pending() {
+        return !overlay.isEmpty();
+    }
+
+    private void enqueue(byte[] key) {
+        try {
+            queue.put(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the write-behind queue");
+        }
+    }
+
+    /**
+     * A snapshot of the MapDB map with the overlay applied.
+     */
+    @Override
+    public Set<Entry<byte[], byte[]>> entrySet() {
+        TreeMap<byte[], byte[]> merged = new TreeMap<byte[], byte[]>(Fun.BYTE_ARRAY_COMPARATOR);
+        merged.putAll(map);
+        for (Entry<byte[], byte[]> entry : overlay.entrySet()) {
+            if (entry.getValue() == DELETED) {
+                merged.remove(entry.getKey());
+            } else {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return merged.entrySet();
+    }
+
+    @Override
+    public void run() {
+        List<byte[]> batch = new ArrayList<byte[]>(BATCH_SIZE);
+        while (true) {
+            try {
+                byte[] first = queue.take();
+                batch.add(first);
+                // Give the batch a chance to fill, without going over the lag
+                long deadline = System.currentTimeMillis() + maxLag;
+                while (batch.size() < BATCH_SIZE) {
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (batch.size() >= BATCH_SIZE || remaining <= 0) {
+                        break;
+                    }
+                    byte[] next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (byte[] key : batch) {
+                byte[] value = overlay.get(key);
+                if (value == null) {
+                    // already applied by an earlier entry for the same key
+                    continue;
+                }
+                if (value == DELETED) {
+                    map.remove(key);
+                } else {
+                    map.put(key, value);
+                }
+                // Unless it was written again meanwhile, MapDB has it now
+                overlay.remove(key, value);
+            }
+            batch.clear();
+            drained.run();
+        }
+    }
+}
@@ -2,67 +2,124 @@ package redis.server.backend.simple;
 
 import redis.util.BytesKey;
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Map that uses byte[]s for keys. Wraps them for you. Passing a non-byte[] or
- * non-BytesKey will result in a CCE.
+ * Map that uses byte[]s for keys, kept in a {@link BytesKeyTable} so lookups don't
+ * wrap them and HSCAN can resume from a bucket. Keys are iterated as BytesKeys.
+ * Passing a non-byte[] or non-BytesKey will result in a CCE. The views don't
+ * support removing.
  */
-public class BytesKeyObjectMap<V> extends HashMap<Object, V> {
+public class BytesKeyObjectMap<V> extends AbstractMap<Object, V> {
+    private final BytesKeyTable<V> table = new BytesKeyTable<V>();
 
-    private BytesKey makeKey(Object key) {
-        return key instanceof byte[] ? new BytesKey((byte[]) key) : (BytesKey) key;
+    private static byte[] bytes(Object key) {
+        return key instanceof byte[] ? (byte[]) key : ((BytesKey) key).getBytes();
+    }
+
+    @Override
+    public int size() {
+        return table.size();
     }
 
     @Override
     public V get(Object o) {
-        return get(makeKey(o));
+        return table.get(bytes(o));
     }
 
     public V get(byte[] bytes) {
-        return get(new BytesKey(bytes));
+        return table.get(bytes);
     }
 
     public V get(BytesKey key) {
-        return super.get(key);
+        return table.get(key.getBytes());
     }
 
     @Override
     public boolean containsKey(Object o) {
-        return containsKey(makeKey(o));
+        return table.containsKey(bytes(o));
     }
 
     public boolean containsKey(byte[] bytes) {
-        return containsKey(new BytesKey(bytes));
+        return table.containsKey(bytes);
     }
 
     public boolean containsKey(BytesKey key) {
-        return super.containsKey(key);
+        return table.containsKey(key.getBytes());
     }
 
     @Override
     public V put(Object o, V value) {
-        return put(makeKey(o), value);
+        return table.put(bytes(o), value);
     }
 
     public V put(byte[] bytes, V value) {
-        return put(new BytesKey(bytes), value);
+        return table.put(bytes, value);
     }
 
     public V put(BytesKey key, V value) {
-        return super.put(key, value);
+        return table.put(key.getBytes(), value);
     }
 
     @Override
     public V remove(Object o) {
-        return remove(makeKey(o));
+        return table.remove(bytes(o));
     }
 
     public V remove(byte[] bytes) {
-        return remove(new BytesKey(bytes));
+        return table.remove(bytes);
     }
 
     public V remove(BytesKey key) {
-        return super.remove(key);
+        return table.remove(key.getBytes());
+    }
+
+    @Override
+    public void clear() {
+        table.clear();
+    }
+
+    /**
+     * @see BytesKeyTable#scan
+     */
+    public long scan(long cursor, int count, List<byte[]> keys) {
+        return table.scan(cursor, count, keys);
+    }
+
+    @Override
+    public Set<Map.Entry<Object, V>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, V>>() {
+            @Override
+            public Iterator<Map.Entry<Object, V>> iterator() {
+                final Iterator<Map.Entry<byte[], V>> entries = table.entries();
+                return new Iterator<Map.Entry<Object, V>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<Object, V> next() {
+                        Map.Entry<byte[], V> entry = entries.next();
+                        return new SimpleImmutableEntry<Object, V>(new BytesKey(entry.getKey()), entry.getValue());
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return table.size();
+            }
+        };
     }
 }
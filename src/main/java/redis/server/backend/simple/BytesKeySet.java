@@ -2,33 +2,100 @@ package redis.server.backend.simple;
 
 import redis.util.BytesKey;
 
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 /**
- * Map that uses byte[]s for keys. Wraps them for you. Passing a non-byte[] or
- * non-BytesKey will result in a CCE.
+ * Set of byte[]s, kept in a {@link BytesKeyTable} so lookups don't wrap them and
+ * SSCAN can resume from a bucket. Members are iterated as BytesKeys. Passing a
+ * non-byte[] or non-BytesKey will result in a CCE. The iterator doesn't support
+ * removing.
  */
-public class BytesKeySet extends HashSet<BytesKey> {
+public class BytesKeySet extends AbstractSet<BytesKey> {
+    private final BytesKeyTable<Boolean> table = new BytesKeyTable<Boolean>();
 
     public boolean add(byte[] member) {
-        return super.add(new BytesKey(member));
+        return table.put(member, Boolean.TRUE) == null;
+    }
+
+    @Override
+    public boolean add(BytesKey member) {
+        return add(member.getBytes());
     }
 
     @Override
     public boolean contains(Object o) {
-        return o instanceof byte[] ? contains((byte[]) o) : super.contains((BytesKey) o);
+        return o instanceof byte[] ? contains((byte[]) o) : contains(((BytesKey) o).getBytes());
     }
 
     @Override
     public boolean remove(Object o) {
-        return o instanceof byte[] ? remove((byte[]) o) : super.remove((BytesKey) o);
+        return o instanceof byte[] ? remove((byte[]) o) : remove(((BytesKey) o).getBytes());
     }
 
     public boolean contains(byte[] member) {
-        return super.contains(new BytesKey(member));
+        return table.containsKey(member);
     }
 
     public boolean remove(byte[] member) {
-        return super.remove(new BytesKey(member));
+        return table.remove(member) != null;
+    }
+
+    // AbstractSet would remove through the iterator
+    @Override
+    public boolean removeAll(Collection<?> members) {
+        boolean removed = false;
+        for (Object member : members) {
+            removed |= remove(member);
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return table.size();
+    }
+
+    @Override
+    public void clear() {
+        table.clear();
+    }
+
+    /**
+     * @return a member picked at random or null if the set is empty
+     */
+    public byte[] randomMember(Random random) {
+        return table.randomKey(random);
+    }
+
+    /**
+     * @see BytesKeyTable#scan
+     */
+    public long scan(long cursor, int count, List<byte[]> members) {
+        return table.scan(cursor, count, members);
+    }
+
+    @Override
+    public Iterator<BytesKey> iterator() {
+        final Iterator<byte[]> members = table.iterator();
+        return new Iterator<BytesKey>() {
+            @Override
+            public boolean hasNext() {
+                return members.hasNext();
+            }
+
+            @Override
+            public BytesKey next() {
+                return new BytesKey(members.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 }
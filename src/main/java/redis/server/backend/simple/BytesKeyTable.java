@@ -0,0 +1,419 @@
+package redis.server.backend.simple;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Open addressing hash table keyed directly on byte[]s, so lookups don't wrap
+ * the key. Keys are hashed with a 64 bit mixer and probed linearly.
+ * <p/>
+ * Resizing is incremental like the redis dict: the old table is kept next to the
+ * new one and every operation moves a few of its slots over, so no single command
+ * pays for rehashing the whole keyspace. Not thread safe.
+ */
+public class BytesKeyTable<V> implements Iterable<byte[]> {
+    private static final int MIN_CAPACITY = 16;
+    // Old slots moved per operation while resizing
+    private static final int REHASH_STEPS = 32;
+    // Left behind in the old table so probes carry on past it
+    private static final byte[] MOVED = new byte[0];
+
+    private Table table = new Table(MIN_CAPACITY);
+    // The table being drained into table, or null
+    private Table rehashing;
+    private int cursor;
+
+    private static class Table {
+        final byte[][] keys;
+        final Object[] values;
+        final int[] hashes;
+        final int mask;
+        int size;
+
+        Table(int capacity) {
+            keys = new byte[capacity][];
+            values = new Object[capacity];
+            hashes = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        Table(Table from) {
+            keys = from.keys.clone();
+            values = from.values.clone();
+            hashes = from.hashes.clone();
+            mask = from.mask;
+            size = from.size;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        int find(byte[] key, int hash) {
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                byte[] k = keys[i];
+                if (k == null) {
+                    return -1;
+                }
+                if (hashes[i] == hash && k != MOVED && Arrays.equals(k, key)) {
+                    return i;
+                }
+            }
+        }
+
+        void insert(byte[] key, int hash, Object value) {
+            int i = hash & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            hashes[i] = hash;
+            values[i] = value;
+            size++;
+        }
+
+        // Shifts the rest of the probe run back so lookups never need tombstones
+        void delete(int i) {
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == null) {
+                    break;
+                }
+                int home = hashes[j] & mask;
+                if (i <= j ? i < home && home <= j : i < home || home <= j) {
+                    continue;
+                }
+                keys[i] = keys[j];
+                hashes[i] = hashes[j];
+                values[i] = values[j];
+                i = j;
+            }
+            keys[i] = null;
+            values[i] = null;
+            size--;
+        }
+    }
+
+    public int size() {
+        return table.size + (rehashing == null ? 0 : rehashing.size);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(byte[] key) {
+        step();
+        int hash = hash(key);
+        int i = table.find(key, hash);
+        if (i != -1) {
+            return (V) table.values[i];
+        }
+        if (rehashing != null && (i = rehashing.find(key, hash)) != -1) {
+            return (V) rehashing.values[i];
+        }
+        return null;
+    }
+
+    public boolean containsKey(byte[] key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(byte[] key, V value) {
+        step();
+        int hash = hash(key);
+        int i = table.find(key, hash);
+        if (i != -1) {
+            V previous = (V) table.values[i];
+            table.values[i] = value;
+            return previous;
+        }
+        V previous = null;
+        if (rehashing != null && (i = rehashing.find(key, hash)) != -1) {
+            previous = (V) rehashing.values[i];
+            forget(rehashing, i);
+        }
+        if ((table.size + 1) * 4 > table.capacity() * 3) {
+            resize(table.capacity() * 2);
+        }
+        table.insert(key, hash, value);
+        return previous;
+    }
+
+    /**
+     * @return the removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(byte[] key) {
+        step();
+        int hash = hash(key);
+        int i = table.find(key, hash);
+        V removed = null;
+        if (i != -1) {
+            removed = (V) table.values[i];
+            table.delete(i);
+        } else if (rehashing != null && (i = rehashing.find(key, hash)) != -1) {
+            removed = (V) rehashing.values[i];
+            forget(rehashing, i);
+        }
+        if (removed != null && table.capacity() > MIN_CAPACITY && size() * 8 < table.capacity()) {
+            resize(table.capacity() / 2);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes key but leaves it in its slot, so an iterator over the table isn't
+     * disturbed. Only for tables that aren't written to otherwise anymore.
+     *
+     * @return the removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V take(byte[] key) {
+        int hash = hash(key);
+        Table from = table;
+        int i = from.find(key, hash);
+        if (i == -1 && rehashing != null) {
+            from = rehashing;
+            i = from.find(key, hash);
+        }
+        if (i == -1 || from.values[i] == null) {
+            return null;
+        }
+        V taken = (V) from.values[i];
+        from.values[i] = null;
+        from.size--;
+        return taken;
+    }
+
+    /**
+     * A copy sharing the keys and values, made by copying the slots rather than
+     * inserting every key again.
+     */
+    public BytesKeyTable<V> copy() {
+        BytesKeyTable<V> copy = new BytesKeyTable<V>();
+        copy.table = new Table(table);
+        copy.rehashing = rehashing == null ? null : new Table(rehashing);
+        copy.cursor = cursor;
+        return copy;
+    }
+
+    public void clear() {
+        table = new Table(MIN_CAPACITY);
+        rehashing = null;
+    }
+
+    /**
+     * @return a key picked at random or null if the table is empty
+     */
+    public byte[] randomKey(Random random) {
+        if (size() == 0) {
+            return null;
+        }
+        int old = rehashing == null ? 0 : rehashing.capacity();
+        while (true) {
+            int i = random.nextInt(old + table.capacity());
+            byte[] key = i < old ? rehashing.keys[i] : table.keys[i - old];
+            if (key != null && key != MOVED) {
+                return key;
+            }
+        }
+    }
+
+    /**
+     * The keys, which mustn't be changed while iterating.
+     */
+    @Override
+    public Iterator<byte[]> iterator() {
+        return new Slots<byte[]>() {
+            @Override
+            byte[] at(Table table, int i) {
+                return table.keys[i];
+            }
+        };
+    }
+
+    /**
+     * The keys and their values, which mustn't be changed while iterating.
+     */
+    public Iterator<Map.Entry<byte[], V>> entries() {
+        return new Slots<Map.Entry<byte[], V>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            Map.Entry<byte[], V> at(Table table, int i) {
+                return new AbstractMap.SimpleImmutableEntry<byte[], V>(table.keys[i], (V) table.values[i]);
+            }
+        };
+    }
+
+    // Walks the used slots of the old table, then of the new one
+    private abstract class Slots<T> implements Iterator<T> {
+        Table current = rehashing == null ? table : rehashing;
+        int i = -1;
+
+        Slots() {
+            advance();
+        }
+
+        abstract T at(Table table, int i);
+
+        private void advance() {
+            while (current != null) {
+                while (++i < current.capacity()) {
+                    byte[] key = current.keys[i];
+                    if (key != null && key != MOVED) {
+                        return;
+                    }
+                }
+                current = current == table ? null : table;
+                i = -1;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return current != null;
+        }
+
+        @Override
+        public T next() {
+            if (current == null) {
+                throw new NoSuchElementException();
+            }
+            T next = at(current, i);
+            advance();
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Adds the keys of the next buckets to keys until there are count of them, like
+     * the redis dict scan. A bucket is every key hashing to a slot, wherever probing
+     * put it. Buckets are visited in reverse binary order so that a key present for
+     * the whole scan is returned at least once even if the table is resized.
+     *
+     * @return the cursor to continue from, 0 once every bucket was visited
+     */
+    public long scan(long cursor, int count, List<byte[]> keys) {
+        // bounds the work when the buckets are empty
+        int buckets = count * 10;
+        int wanted = keys.size() + count;
+        do {
+            if (rehashing == null) {
+                long mask = table.mask;
+                bucket(table, (int) (cursor & mask), keys);
+                cursor = next(cursor, mask);
+            } else {
+                Table small = table.capacity() < rehashing.capacity() ? table : rehashing;
+                Table large = small == table ? rehashing : table;
+                long smallMask = small.mask;
+                long largeMask = large.mask;
+                bucket(small, (int) (cursor & smallMask), keys);
+                // then every bucket of the large table that the small one splits into
+                do {
+                    bucket(large, (int) (cursor & largeMask), keys);
+                    cursor = next(cursor, largeMask);
+                } while ((cursor & (smallMask ^ largeMask)) != 0);
+            }
+        } while (cursor != 0 && keys.size() < wanted && --buckets > 0);
+        return cursor;
+    }
+
+    // Increments the high bits covered by mask first
+    private static long next(long cursor, long mask) {
+        cursor |= ~mask;
+        cursor = Long.reverse(cursor);
+        cursor++;
+        return Long.reverse(cursor);
+    }
+
+    // The keys of a bucket are all in the run of slots starting at it
+    private static void bucket(Table table, int bucket, List<byte[]> keys) {
+        for (int i = bucket; table.keys[i] != null; i = (i + 1) & table.mask) {
+            if (table.keys[i] != MOVED && (table.hashes[i] & table.mask) == bucket) {
+                keys.add(table.keys[i]);
+            }
+        }
+    }
+
+    private void forget(Table from, int i) {
+        from.keys[i] = MOVED;
+        from.values[i] = null;
+        from.size--;
+    }
+
+    private void resize(int capacity) {
+        while (rehashing != null) {
+            step();
+        }
+        rehashing = table;
+        table = new Table(capacity);
+        cursor = 0;
+    }
+
+    // Moves the next few slots of the old table, if any
+    private void step() {
+        if (rehashing == null) {
+            return;
+        }
+        int end = Math.min(cursor + REHASH_STEPS, rehashing.capacity());
+        for (; cursor < end; cursor++) {
+            byte[] key = rehashing.keys[cursor];
+            if (key != null && key != MOVED) {
+                table.insert(key, rehashing.hashes[cursor], rehashing.values[cursor]);
+                forget(rehashing, cursor);
+            }
+        }
+        if (cursor == rehashing.capacity()) {
+            rehashing = null;
+        }
+    }
+
+    static int hash(byte[] key) {
+        long h = key.length * 0x9E3779B97F4A7C15L;
+        int i = 0;
+        for (; i + 8 <= key.length; i += 8) {
+            long word = (key[i] & 0xFFL)
+                    | (key[i + 1] & 0xFFL) << 8
+                    | (key[i + 2] & 0xFFL) << 16
+                    | (key[i + 3] & 0xFFL) << 24
+                    | (key[i + 4] & 0xFFL) << 32
+                    | (key[i + 5] & 0xFFL) << 40
+                    | (key[i + 6] & 0xFFL) << 48
+                    | (key[i + 7] & 0xFFL) << 56;
+            h = mix(h ^ word);
+        }
+        long rest = 0;
+        for (int shift = 0; i < key.length; i++, shift += 8) {
+            rest |= (key[i] & 0xFFL) << shift;
+        }
+        h = mix(h ^ rest);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // The murmur3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
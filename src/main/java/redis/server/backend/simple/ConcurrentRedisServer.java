@@ -0,0 +1,2662 @@
+package redis.server.backend.simple;
+
+import redis.server.RedisException;
+import redis.server.RedisServer;
+import redis.server.ScanArguments;
+import redis.server.reply.*;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static redis.server.reply.IntegerReply.integer;
+import static redis.server.reply.StatusReply.OK;
+import static redis.util.Encoding.bytesToNum;
+
+/**
+ * Thread safe in-memory server.
+ * <p/>
+ * The keyspace is striped over several {@link SimpleRedisServer}s, each guarded by
+ * its own lock, so commands on keys in different stripes run in parallel. A
+ * command whose keys live in several stripes locks all of them in ascending order,
+ * gathers its keys into the first one, runs there and sends every key that is left
+ * back to its own stripe before unlocking. Commands over the whole keyspace lock
+ * every stripe.
+ */
+public class ConcurrentRedisServer implements RedisServer {
+
+    private final SimpleRedisServer[] stripes;
+    private final ReentrantLock[] locks;
+    private final long started = System.currentTimeMillis();
+    private final Random random = new Random();
+
+    public ConcurrentRedisServer(int stripes) {
+        this.stripes = new SimpleRedisServer[stripes];
+        this.locks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new SimpleRedisServer();
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    private interface Call<T> {
+        T call(SimpleRedisServer server) throws RedisException;
+    }
+
+    private int stripe(byte[] key) {
+        if (key == null) {
+            return 0;
+        }
+        int hash = Arrays.hashCode(key);
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    private <T> T across(byte[][] keys, Call<T> call) throws RedisException {
+        boolean[] involved = new boolean[stripes.length];
+        int[] homes = new int[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            homes[k] = stripe(keys[k]);
+            involved[homes[k]] = true;
+        }
+        int target = -1;
+        for (int i = 0; i < stripes.length; i++) {
+            if (involved[i]) {
+                locks[i].lock();
+                if (target == -1) {
+                    target = i;
+                }
+            }
+        }
+        if (target == -1) {
+            // no keys at all, let the server complain
+            target = 0;
+            involved[0] = true;
+            locks[0].lock();
+        }
+        try {
+            SimpleRedisServer server = stripes[target];
+            for (int k = 0; k < keys.length; k++) {
+                if (homes[k] != target) {
+                    stripes[homes[k]]._move(keys[k], server);
+                }
+            }
+            try {
+                return call.call(server);
+            } finally {
+                for (int k = 0; k < keys.length; k++) {
+                    if (homes[k] != target) {
+                        server._move(keys[k], stripes[homes[k]]);
+                    }
+                }
+            }
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                if (involved[i]) {
+                    locks[i].unlock();
+                }
+            }
+        }
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Runs active expiry on every stripe that isn't busy, sharing the budget out.
+     *
+     * @param budget in nanoseconds
+     * @return the number of keys deleted
+     */
+    public int activeExpireCycle(long budget) {
+        int total = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            if (locks[i].tryLock()) {
+                try {
+                    total += stripes[i].activeExpireCycle(budget / stripes.length);
+                } finally {
+                    locks[i].unlock();
+                }
+            }
+        }
+        return total;
+    }
+
+    private static byte[][] concat(byte[] key, byte[][] keys) {
+        byte[][] all = new byte[keys.length + 1][];
+        all[0] = key;
+        System.arraycopy(keys, 0, all, 1, keys.length);
+        return all;
+    }
+
+    private static byte[][] every(byte[][] arguments, int step) {
+        byte[][] keys = new byte[(arguments.length + step - 1) / step][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = arguments[i * step];
+        }
+        return keys;
+    }
+
+    private static byte[][] withoutLast(byte[][] arguments) {
+        return Arrays.copyOf(arguments, Math.max(arguments.length - 1, 0));
+    }
+
+    private static byte[][] first(byte[][] arguments, byte[] count) throws RedisException {
+        long n;
+        try {
+            n = bytesToNum(count);
+        } catch (IllegalArgumentException e) {
+            throw new RedisException("value is not an integer or out of range");
+        }
+        return Arrays.copyOf(arguments, (int) Math.max(0, Math.min(n, arguments.length)));
+    }
+
+    /**
+     * Append a value to a key
+     * String
+     *
+     * @param key0
+     * @param value1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply append(byte[] key0, byte[] value1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].append(key0, value1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Count set bits in a string
+     * String
+     *
+     * @param key0
+     * @param start1
+     * @param end2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply bitcount(byte[] key0, byte[] start1, byte[] end2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].bitcount(key0, start1, end2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Perform bitwise operations between strings
+     * String
+     *
+     * @param operation0
+     * @param destkey1
+     * @param key2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply bitop(final byte[] operation0, final byte[] destkey1, final byte[][] key2) throws RedisException {
+        return across(concat(destkey1, key2), new Call<IntegerReply>() {
+            @Override
+            public IntegerReply call(SimpleRedisServer server) throws RedisException {
+                return server.bitop(operation0, destkey1, key2);
+            }
+        });
+    }
+
+    /**
+     * Decrement the integer value of a key by one
+     * String
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply decr(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].decr(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Decrement the integer value of a key by the given number
+     * String
+     *
+     * @param key0
+     * @param decrement1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply decrby(byte[] key0, byte[] decrement1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].decrby(key0, decrement1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the value of a key
+     * String
+     *
+     * @param key0
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply get(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].get(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Returns the bit value at offset in the string value stored at key
+     * String
+     *
+     * @param key0
+     * @param offset1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply getbit(byte[] key0, byte[] offset1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].getbit(key0, offset1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get a substring of the string stored at a key
+     * String
+     *
+     * @param key0
+     * @param start1
+     * @param end2
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply getrange(byte[] key0, byte[] start1, byte[] end2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].getrange(key0, start1, end2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set the string value of a key and return its old value
+     * String
+     *
+     * @param key0
+     * @param value1
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply getset(byte[] key0, byte[] value1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].getset(key0, value1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Increment the integer value of a key by one
+     * String
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply incr(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].incr(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Increment the integer value of a key by the given amount
+     * String
+     *
+     * @param key0
+     * @param increment1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply incrby(byte[] key0, byte[] increment1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].incrby(key0, increment1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Increment the float value of a key by the given amount
+     * String
+     *
+     * @param key0
+     * @param increment1
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply incrbyfloat(byte[] key0, byte[] increment1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].incrbyfloat(key0, increment1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the values of all the given keys
+     * String
+     *
+     * @param key0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply mget(final byte[][] key0) throws RedisException {
+        return across(key0, new Call<MultiBulkReply>() {
+            @Override
+            public MultiBulkReply call(SimpleRedisServer server) throws RedisException {
+                return server.mget(key0);
+            }
+        });
+    }
+
+    /**
+     * Set multiple keys to multiple values
+     * String
+     *
+     * @param key_or_value0
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply mset(final byte[][] key_or_value0) throws RedisException {
+        return across(every(key_or_value0, 2), new Call<StatusReply>() {
+            @Override
+            public StatusReply call(SimpleRedisServer server) throws RedisException {
+                return server.mset(key_or_value0);
+            }
+        });
+    }
+
+    /**
+     * Set multiple keys to multiple values, only if none of the keys exist
+     * String
+     *
+     * @param key_or_value0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply msetnx(final byte[][] key_or_value0) throws RedisException {
+        return across(every(key_or_value0, 2), new Call<IntegerReply>() {
+            @Override
+            public IntegerReply call(SimpleRedisServer server) throws RedisException {
+                return server.msetnx(key_or_value0);
+            }
+        });
+    }
+
+    /**
+     * Set the value and expiration in milliseconds of a key
+     * String
+     *
+     * @param key0
+     * @param milliseconds1
+     * @param value2
+     * @return Reply
+     */
+    @Override
+    public Reply psetex(byte[] key0, byte[] milliseconds1, byte[] value2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].psetex(key0, milliseconds1, value2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set the string value of a key
+     * String
+     *
+     * @param key0
+     * @param value1
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply set(byte[] key0, byte[] value1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].set(key0, value1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Sets or clears the bit at offset in the string value stored at key
+     * String
+     *
+     * @param key0
+     * @param offset1
+     * @param value2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply setbit(byte[] key0, byte[] offset1, byte[] value2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].setbit(key0, offset1, value2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set the value and expiration of a key
+     * String
+     *
+     * @param key0
+     * @param seconds1
+     * @param value2
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply setex(byte[] key0, byte[] seconds1, byte[] value2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].setex(key0, seconds1, value2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set the value of a key, only if the key does not exist
+     * String
+     *
+     * @param key0
+     * @param value1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply setnx(byte[] key0, byte[] value1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].setnx(key0, value1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Overwrite part of a string at key starting at the specified offset
+     * String
+     *
+     * @param key0
+     * @param offset1
+     * @param value2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply setrange(byte[] key0, byte[] offset1, byte[] value2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].setrange(key0, offset1, value2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the length of the value stored in a key
+     * String
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply strlen(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].strlen(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Authenticate to the server
+     * Connection
+     *
+     * @param password0
+     * @return StatusReply
+     */
+    public StatusReply auth(byte[] password0) throws RedisException {
+        return stripes[0].auth(password0);
+    }
+
+    /**
+     * Echo the given string
+     * Connection
+     *
+     * @param message0
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply echo(byte[] message0) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].echo(message0);
+    }
+
+    /**
+     * Ping the server
+     * Connection
+     *
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply ping() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].ping();
+    }
+
+    /**
+     * Close the connection
+     * Connection
+     *
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply quit() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].quit();
+    }
+
+    /**
+     * Change the selected database for the current connection
+     * Connection
+     *
+     * @param index0
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply select(byte[] index0) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].select(index0);
+    }
+
+    /**
+     * Asynchronously rewrite the append-only file
+     * Server
+     *
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply bgrewriteaof() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].bgrewriteaof();
+    }
+
+    /**
+     * Asynchronously save the dataset to disk
+     * Server
+     *
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply bgsave() throws RedisException {
+        // A stripe only has its own keys
+        throw new RedisException("Not supported");
+    }
+
+    /**
+     * Kill the connection of a client
+     * Server
+     *
+     * @param ip_port0
+     * @return Reply
+     */
+    @Override
+    public Reply client_kill(byte[] ip_port0) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].client_kill(ip_port0);
+    }
+
+    /**
+     * Get the list of client connections
+     * Server
+     *
+     * @return Reply
+     */
+    @Override
+    public Reply client_list() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].client_list();
+    }
+
+    /**
+     * Get the current connection name
+     * Server
+     *
+     * @return Reply
+     */
+    @Override
+    public Reply client_getname() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].client_getname();
+    }
+
+    /**
+     * Set the current connection name
+     * Server
+     *
+     * @param connection_name0
+     * @return Reply
+     */
+    @Override
+    public Reply client_setname(byte[] connection_name0) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].client_setname(connection_name0);
+    }
+
+    /**
+     * Get the value of a configuration parameter
+     * Server
+     *
+     * @param parameter0
+     * @return Reply
+     */
+    @Override
+    public Reply config_get(byte[] parameter0) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].config_get(parameter0);
+    }
+
+    /**
+     * Set a configuration parameter to the given value
+     * Server
+     *
+     * @param parameter0
+     * @param value1
+     * @return Reply
+     */
+    @Override
+    public Reply config_set(byte[] parameter0, byte[] value1) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].config_set(parameter0, value1);
+    }
+
+    /**
+     * Reset the stats returned by INFO
+     * Server
+     *
+     * @return Reply
+     */
+    @Override
+    public Reply config_resetstat() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].config_resetstat();
+    }
+
+    /**
+     * Return the number of keys in the selected database
+     * Server
+     *
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply dbsize() throws RedisException {
+        lockAll();
+        try {
+            long size = 0;
+            for (SimpleRedisServer stripe : stripes) {
+                size += stripe.dbsize().data();
+            }
+            return integer(size);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Get debugging information about a key
+     * Server
+     *
+     * @param key0
+     * @return Reply
+     */
+    @Override
+    public Reply debug_object(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].debug_object(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Make the server crash
+     * Server
+     *
+     * @return Reply
+     */
+    @Override
+    public Reply debug_segfault() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].debug_segfault();
+    }
+
+    /**
+     * Remove all keys from all databases
+     * Server
+     *
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply flushall() throws RedisException {
+        lockAll();
+        try {
+            for (SimpleRedisServer stripe : stripes) {
+                stripe.flushall();
+            }
+            return OK;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Remove all keys from the current database
+     * Server
+     *
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply flushdb() throws RedisException {
+        lockAll();
+        try {
+            for (SimpleRedisServer stripe : stripes) {
+                stripe.flushdb();
+            }
+            return OK;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Get information and statistics about the server
+     * Server
+     *
+     * @param section0
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply info(byte[] section0) throws RedisException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("redis_version:2.6.0\n");
+        sb.append("keys:").append(dbsize().data()).append("\n");
+        sb.append("uptime:").append(System.currentTimeMillis() - started).append("\n");
+        sb.append("stripes:").append(stripes.length).append("\n");
+        return new BulkReply(sb.toString().getBytes());
+    }
+
+    /**
+     * Get the UNIX time stamp of the last successful save to disk
+     * Server
+     *
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply lastsave() throws RedisException {
+        // A stripe only has its own keys
+        throw new RedisException("Not supported");
+    }
+
+    /**
+     * Listen for all requests received by the server in real time
+     * Server
+     *
+     * @return Reply
+     */
+    @Override
+    public Reply monitor() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].monitor();
+    }
+
+    /**
+     * Synchronously save the dataset to disk
+     * Server
+     *
+     * @return Reply
+     */
+    @Override
+    public Reply save() throws RedisException {
+        // A stripe only has its own keys
+        throw new RedisException("Not supported");
+    }
+
+    /**
+     * Synchronously save the dataset to disk and then shut down the server
+     * Server
+     *
+     * @param NOSAVE0
+     * @param SAVE1
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply shutdown(byte[] NOSAVE0, byte[] SAVE1) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].shutdown(NOSAVE0, SAVE1);
+    }
+
+    /**
+     * Make the server a slave of another instance, or promote it as master
+     * Server
+     *
+     * @param host0
+     * @param port1
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply slaveof(byte[] host0, byte[] port1) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].slaveof(host0, port1);
+    }
+
+    /**
+     * Manages the Redis slow queries log
+     * Server
+     *
+     * @param subcommand0
+     * @param argument1
+     * @return Reply
+     */
+    @Override
+    public Reply slowlog(byte[] subcommand0, byte[] argument1) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].slowlog(subcommand0, argument1);
+    }
+
+    /**
+     * Internal command used for replication
+     * Server
+     *
+     * @return Reply
+     */
+    @Override
+    public Reply sync() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].sync();
+    }
+
+    /**
+     * Return the current server time
+     * Server
+     *
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply time() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].time();
+    }
+
+    /**
+     * Remove and get the first element in a list, or block until one is available
+     * List
+     *
+     * @param key0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply blpop(final byte[][] key0) throws RedisException {
+        return across(withoutLast(key0), new Call<MultiBulkReply>() {
+            @Override
+            public MultiBulkReply call(SimpleRedisServer server) throws RedisException {
+                return server.blpop(key0);
+            }
+        });
+    }
+
+    /**
+     * Remove and get the last element in a list, or block until one is available
+     * List
+     *
+     * @param key0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply brpop(final byte[][] key0) throws RedisException {
+        return across(withoutLast(key0), new Call<MultiBulkReply>() {
+            @Override
+            public MultiBulkReply call(SimpleRedisServer server) throws RedisException {
+                return server.brpop(key0);
+            }
+        });
+    }
+
+    /**
+     * Pop a value from a list, push it to another list and return it; or block until one is available
+     * List
+     *
+     * @param source0
+     * @param destination1
+     * @param timeout2
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply brpoplpush(final byte[] source0, final byte[] destination1, final byte[] timeout2) throws RedisException {
+        return across(new byte[][]{source0, destination1}, new Call<BulkReply>() {
+            @Override
+            public BulkReply call(SimpleRedisServer server) throws RedisException {
+                return server.brpoplpush(source0, destination1, timeout2);
+            }
+        });
+    }
+
+    /**
+     * Get an element from a list by its index
+     * List
+     *
+     * @param key0
+     * @param index1
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply lindex(byte[] key0, byte[] index1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].lindex(key0, index1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Insert an element before or after another element in a list
+     * List
+     *
+     * @param key0
+     * @param where1
+     * @param pivot2
+     * @param value3
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply linsert(byte[] key0, byte[] where1, byte[] pivot2, byte[] value3) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].linsert(key0, where1, pivot2, value3);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the length of a list
+     * List
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply llen(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].llen(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Remove and get the first element in a list
+     * List
+     *
+     * @param key0
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply lpop(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].lpop(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Prepend one or multiple values to a list
+     * List
+     *
+     * @param key0
+     * @param value1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply lpush(byte[] key0, byte[][] value1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].lpush(key0, value1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Prepend a value to a list, only if the list exists
+     * List
+     *
+     * @param key0
+     * @param value1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply lpushx(byte[] key0, byte[] value1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].lpushx(key0, value1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get a range of elements from a list
+     * List
+     *
+     * @param key0
+     * @param start1
+     * @param stop2
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply lrange(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].lrange(key0, start1, stop2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Remove elements from a list
+     * List
+     *
+     * @param key0
+     * @param count1
+     * @param value2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply lrem(byte[] key0, byte[] count1, byte[] value2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].lrem(key0, count1, value2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set the value of an element in a list by its index
+     * List
+     *
+     * @param key0
+     * @param index1
+     * @param value2
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply lset(byte[] key0, byte[] index1, byte[] value2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].lset(key0, index1, value2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Trim a list to the specified range
+     * List
+     *
+     * @param key0
+     * @param start1
+     * @param stop2
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply ltrim(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].ltrim(key0, start1, stop2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Remove and get the last element in a list
+     * List
+     *
+     * @param key0
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply rpop(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].rpop(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Remove the last element in a list, append it to another list and return it
+     * List
+     *
+     * @param source0
+     * @param destination1
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply rpoplpush(final byte[] source0, final byte[] destination1) throws RedisException {
+        return across(new byte[][]{source0, destination1}, new Call<BulkReply>() {
+            @Override
+            public BulkReply call(SimpleRedisServer server) throws RedisException {
+                return server.rpoplpush(source0, destination1);
+            }
+        });
+    }
+
+    /**
+     * Append one or multiple values to a list
+     * List
+     *
+     * @param key0
+     * @param value1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply rpush(byte[] key0, byte[][] value1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].rpush(key0, value1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Append a value to a list, only if the list exists
+     * List
+     *
+     * @param key0
+     * @param value1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply rpushx(byte[] key0, byte[] value1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].rpushx(key0, value1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Delete a key
+     * Generic
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply del(final byte[][] key0) throws RedisException {
+        return across(key0, new Call<IntegerReply>() {
+            @Override
+            public IntegerReply call(SimpleRedisServer server) throws RedisException {
+                return server.del(key0);
+            }
+        });
+    }
+
+    /**
+     * Return a serialized version of the value stored at the specified key.
+     * Generic
+     *
+     * @param key0
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply dump(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].dump(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Determine if a key exists
+     * Generic
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply exists(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].exists(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set a key's time to live in seconds
+     * Generic
+     *
+     * @param key0
+     * @param seconds1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply expire(byte[] key0, byte[] seconds1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].expire(key0, seconds1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set the expiration for a key as a UNIX timestamp
+     * Generic
+     *
+     * @param key0
+     * @param timestamp1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply expireat(byte[] key0, byte[] timestamp1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].expireat(key0, timestamp1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Find all keys matching the given pattern
+     * Generic
+     *
+     * @param pattern0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply keys(byte[] pattern0) throws RedisException {
+        List<Reply> replies = new ArrayList<Reply>();
+        lockAll();
+        try {
+            for (SimpleRedisServer stripe : stripes) {
+                replies.addAll(Arrays.asList(stripe.keys(pattern0).data()));
+            }
+        } finally {
+            unlockAll();
+        }
+        return new MultiBulkReply(replies.toArray(new Reply[replies.size()]));
+    }
+
+    /**
+     * Incrementally iterate the keys space
+     * Generic
+     *
+     * @param cursor0
+     * @param attributes1
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply scan(byte[] cursor0, byte[][] attributes1) throws RedisException {
+        long cursor = ScanArguments.cursor(cursor0);
+        ScanArguments arguments = new ScanArguments(attributes1);
+        // the stripes are scanned in turn, the current one is the low part of the cursor
+        int i = (int) (cursor % stripes.length);
+        long position = cursor / stripes.length;
+        List<Reply> replies = new ArrayList<Reply>();
+        while (true) {
+            locks[i].lock();
+            try {
+                position = stripes[i]._scan(position, arguments, replies);
+            } finally {
+                locks[i].unlock();
+            }
+            if (position == 0 && ++i == stripes.length) {
+                return ScanArguments.reply(0, replies);
+            }
+            if (replies.size() >= arguments.count) {
+                return ScanArguments.reply(position * stripes.length + i, replies);
+            }
+        }
+    }
+
+    /**
+     * Atomically transfer a key from a Redis instance to another one.
+     * Generic
+     *
+     * @param host0
+     * @param port1
+     * @param key2
+     * @param destination_db3
+     * @param timeout4
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply migrate(byte[] host0, byte[] port1, byte[] key2, byte[] destination_db3, byte[] timeout4) throws RedisException {
+        int i = stripe(key2);
+        locks[i].lock();
+        try {
+            return stripes[i].migrate(host0, port1, key2, destination_db3, timeout4);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Move a key to another database
+     * Generic
+     *
+     * @param key0
+     * @param db1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply move(byte[] key0, byte[] db1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].move(key0, db1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Inspect the internals of Redis objects
+     * Generic
+     *
+     * @param subcommand0
+     * @param arguments1
+     * @return Reply
+     */
+    @Override
+    public Reply object(byte[] subcommand0, byte[][] arguments1) throws RedisException {
+        int i = stripe(arguments1.length == 0 ? null : arguments1[0]);
+        locks[i].lock();
+        try {
+            return stripes[i].object(subcommand0, arguments1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Remove the expiration from a key
+     * Generic
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply persist(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].persist(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set a key's time to live in milliseconds
+     * Generic
+     *
+     * @param key0
+     * @param milliseconds1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply pexpire(byte[] key0, byte[] milliseconds1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].pexpire(key0, milliseconds1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set the expiration for a key as a UNIX timestamp specified in milliseconds
+     * Generic
+     *
+     * @param key0
+     * @param milliseconds_timestamp1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply pexpireat(byte[] key0, byte[] milliseconds_timestamp1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].pexpireat(key0, milliseconds_timestamp1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the time to live for a key in milliseconds
+     * Generic
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply pttl(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].pttl(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Return a random key from the keyspace
+     * Generic
+     *
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply randomkey() throws RedisException {
+        // Start at a random stripe and take the first one that has a key
+        int start = random.nextInt(stripes.length);
+        for (int j = 0; j < stripes.length; j++) {
+            int i = (start + j) % stripes.length;
+            locks[i].lock();
+            try {
+                BulkReply reply = stripes[i].randomkey();
+                if (reply == null || reply.data() != null) {
+                    return reply;
+                }
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return BulkReply.NIL_REPLY;
+    }
+
+    /**
+     * Rename a key
+     * Generic
+     *
+     * @param key0
+     * @param newkey1
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply rename(final byte[] key0, final byte[] newkey1) throws RedisException {
+        return across(new byte[][]{key0, newkey1}, new Call<StatusReply>() {
+            @Override
+            public StatusReply call(SimpleRedisServer server) throws RedisException {
+                return server.rename(key0, newkey1);
+            }
+        });
+    }
+
+    /**
+     * Rename a key, only if the new key does not exist
+     * Generic
+     *
+     * @param key0
+     * @param newkey1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply renamenx(final byte[] key0, final byte[] newkey1) throws RedisException {
+        return across(new byte[][]{key0, newkey1}, new Call<IntegerReply>() {
+            @Override
+            public IntegerReply call(SimpleRedisServer server) throws RedisException {
+                return server.renamenx(key0, newkey1);
+            }
+        });
+    }
+
+    /**
+     * Create a key using the provided serialized value, previously obtained using DUMP.
+     * Generic
+     *
+     * @param key0
+     * @param ttl1
+     * @param serialized_value2
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply restore(byte[] key0, byte[] ttl1, byte[] serialized_value2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].restore(key0, ttl1, serialized_value2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Sort the elements in a list, set or sorted set
+     * Generic
+     *
+     * @param key0
+     * @param pattern1
+     * @return Reply
+     */
+    @Override
+    public Reply sort(byte[] key0, byte[][] pattern1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].sort(key0, pattern1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the time to live for a key
+     * Generic
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply ttl(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].ttl(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Determine the type stored at key
+     * Generic
+     *
+     * @param key0
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply type(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].type(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Execute a Lua script server side
+     * Scripting
+     *
+     * @param script0
+     * @param numkeys1
+     * @param key2
+     * @return Reply
+     */
+    @Override
+    public Reply eval(byte[] script0, byte[] numkeys1, byte[][] key2) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].eval(script0, numkeys1, key2);
+    }
+
+    /**
+     * Execute a Lua script server side
+     * Scripting
+     *
+     * @param sha10
+     * @param numkeys1
+     * @param key2
+     * @return Reply
+     */
+    @Override
+    public Reply evalsha(byte[] sha10, byte[] numkeys1, byte[][] key2) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].evalsha(sha10, numkeys1, key2);
+    }
+
+    /**
+     * Check existence of scripts in the script cache.
+     * Scripting
+     *
+     * @param script0
+     * @return Reply
+     */
+    @Override
+    public Reply script_exists(byte[][] script0) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].script_exists(script0);
+    }
+
+    /**
+     * Remove all the scripts from the script cache.
+     * Scripting
+     *
+     * @return Reply
+     */
+    @Override
+    public Reply script_flush() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].script_flush();
+    }
+
+    /**
+     * Kill the script currently in execution.
+     * Scripting
+     *
+     * @return Reply
+     */
+    @Override
+    public Reply script_kill() throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].script_kill();
+    }
+
+    /**
+     * Load the specified Lua script into the script cache.
+     * Scripting
+     *
+     * @param script0
+     * @return Reply
+     */
+    @Override
+    public Reply script_load(byte[] script0) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].script_load(script0);
+    }
+
+    /**
+     * Delete one or more hash fields
+     * Hash
+     *
+     * @param key0
+     * @param field1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply hdel(byte[] key0, byte[][] field1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hdel(key0, field1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Determine if a hash field exists
+     * Hash
+     *
+     * @param key0
+     * @param field1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply hexists(byte[] key0, byte[] field1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hexists(key0, field1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the value of a hash field
+     * Hash
+     *
+     * @param key0
+     * @param field1
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply hget(byte[] key0, byte[] field1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hget(key0, field1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get all the fields and values in a hash
+     * Hash
+     *
+     * @param key0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply hgetall(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hgetall(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Increment the integer value of a hash field by the given number
+     * Hash
+     *
+     * @param key0
+     * @param field1
+     * @param increment2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply hincrby(byte[] key0, byte[] field1, byte[] increment2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hincrby(key0, field1, increment2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Increment the float value of a hash field by the given amount
+     * Hash
+     *
+     * @param key0
+     * @param field1
+     * @param increment2
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply hincrbyfloat(byte[] key0, byte[] field1, byte[] increment2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hincrbyfloat(key0, field1, increment2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get all the fields in a hash
+     * Hash
+     *
+     * @param key0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply hkeys(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hkeys(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the number of fields in a hash
+     * Hash
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply hlen(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hlen(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the values of all the given hash fields
+     * Hash
+     *
+     * @param key0
+     * @param field1
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply hmget(byte[] key0, byte[][] field1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hmget(key0, field1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set multiple hash fields to multiple values
+     * Hash
+     *
+     * @param key0
+     * @param field_or_value1
+     * @return StatusReply
+     */
+    @Override
+    public StatusReply hmset(byte[] key0, byte[][] field_or_value1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hmset(key0, field_or_value1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set the string value of a hash field
+     * Hash
+     *
+     * @param key0
+     * @param field1
+     * @param value2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply hset(byte[] key0, byte[] field1, byte[] value2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hset(key0, field1, value2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Set the value of a hash field, only if the field does not exist
+     * Hash
+     *
+     * @param key0
+     * @param field1
+     * @param value2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply hsetnx(byte[] key0, byte[] field1, byte[] value2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hsetnx(key0, field1, value2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get all the values in a hash
+     * Hash
+     *
+     * @param key0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply hvals(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hvals(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Incrementally iterate hash fields and associated values
+     * Hash
+     *
+     * @param key0
+     * @param cursor1
+     * @param attributes2
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply hscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].hscan(key0, cursor1, attributes2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Post a message to a channel
+     * Pubsub
+     *
+     * @param channel0
+     * @param message1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply publish(byte[] channel0, byte[] message1) throws RedisException {
+        // Doesn't touch the keyspace
+        return stripes[0].publish(channel0, message1);
+    }
+
+    /**
+     * Add one or more members to a set
+     * Set
+     *
+     * @param key0
+     * @param member1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply sadd(byte[] key0, byte[][] member1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].sadd(key0, member1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the number of members in a set
+     * Set
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply scard(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].scard(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Subtract multiple sets
+     * Set
+     *
+     * @param key0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply sdiff(final byte[][] key0) throws RedisException {
+        return across(key0, new Call<MultiBulkReply>() {
+            @Override
+            public MultiBulkReply call(SimpleRedisServer server) throws RedisException {
+                return server.sdiff(key0);
+            }
+        });
+    }
+
+    /**
+     * Subtract multiple sets and store the resulting set in a key
+     * Set
+     *
+     * @param destination0
+     * @param key1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply sdiffstore(final byte[] destination0, final byte[][] key1) throws RedisException {
+        return across(concat(destination0, key1), new Call<IntegerReply>() {
+            @Override
+            public IntegerReply call(SimpleRedisServer server) throws RedisException {
+                return server.sdiffstore(destination0, key1);
+            }
+        });
+    }
+
+    /**
+     * Intersect multiple sets
+     * Set
+     *
+     * @param key0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply sinter(final byte[][] key0) throws RedisException {
+        return across(key0, new Call<MultiBulkReply>() {
+            @Override
+            public MultiBulkReply call(SimpleRedisServer server) throws RedisException {
+                return server.sinter(key0);
+            }
+        });
+    }
+
+    /**
+     * Intersect multiple sets and store the resulting set in a key
+     * Set
+     *
+     * @param destination0
+     * @param key1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply sinterstore(final byte[] destination0, final byte[][] key1) throws RedisException {
+        return across(concat(destination0, key1), new Call<IntegerReply>() {
+            @Override
+            public IntegerReply call(SimpleRedisServer server) throws RedisException {
+                return server.sinterstore(destination0, key1);
+            }
+        });
+    }
+
+    /**
+     * Determine if a given value is a member of a set
+     * Set
+     *
+     * @param key0
+     * @param member1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply sismember(byte[] key0, byte[] member1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].sismember(key0, member1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get all the members in a set
+     * Set
+     *
+     * @param key0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply smembers(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].smembers(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Move a member from one set to another
+     * Set
+     *
+     * @param source0
+     * @param destination1
+     * @param member2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply smove(final byte[] source0, final byte[] destination1, final byte[] member2) throws RedisException {
+        return across(new byte[][]{source0, destination1}, new Call<IntegerReply>() {
+            @Override
+            public IntegerReply call(SimpleRedisServer server) throws RedisException {
+                return server.smove(source0, destination1, member2);
+            }
+        });
+    }
+
+    /**
+     * Remove and return a random member from a set
+     * Set
+     *
+     * @param key0
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply spop(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].spop(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get one or multiple random members from a set
+     * Set
+     *
+     * @param key0
+     * @param count1
+     * @return Reply
+     */
+    @Override
+    public Reply srandmember(byte[] key0, byte[] count1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].srandmember(key0, count1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Remove one or more members from a set
+     * Set
+     *
+     * @param key0
+     * @param member1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply srem(byte[] key0, byte[][] member1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].srem(key0, member1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Add multiple sets
+     * Set
+     *
+     * @param key0
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply sunion(final byte[][] key0) throws RedisException {
+        return across(key0, new Call<MultiBulkReply>() {
+            @Override
+            public MultiBulkReply call(SimpleRedisServer server) throws RedisException {
+                return server.sunion(key0);
+            }
+        });
+    }
+
+    /**
+     * Add multiple sets and store the resulting set in a key
+     * Set
+     *
+     * @param destination0
+     * @param key1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply sunionstore(final byte[] destination0, final byte[][] key1) throws RedisException {
+        return across(concat(destination0, key1), new Call<IntegerReply>() {
+            @Override
+            public IntegerReply call(SimpleRedisServer server) throws RedisException {
+                return server.sunionstore(destination0, key1);
+            }
+        });
+    }
+
+    /**
+     * Incrementally iterate Set elements
+     * Set
+     *
+     * @param key0
+     * @param cursor1
+     * @param attributes2
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply sscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].sscan(key0, cursor1, attributes2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Add one or more members to a sorted set, or update its score if it already exists
+     * Sorted_set
+     *
+     * @param args
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply zadd(byte[][] args) throws RedisException {
+        int i = stripe(args.length == 0 ? null : args[0]);
+        locks[i].lock();
+        try {
+            return stripes[i].zadd(args);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the number of members in a sorted set
+     * Sorted_set
+     *
+     * @param key0
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply zcard(byte[] key0) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zcard(key0);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Count the members in a sorted set with scores within the given values
+     * Sorted_set
+     *
+     * @param key0
+     * @param min1
+     * @param max2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply zcount(byte[] key0, byte[] min1, byte[] max2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zcount(key0, min1, max2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Increment the score of a member in a sorted set
+     * Sorted_set
+     *
+     * @param key0
+     * @param increment1
+     * @param member2
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply zincrby(byte[] key0, byte[] increment1, byte[] member2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zincrby(key0, increment1, member2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Intersect multiple sorted sets and store the resulting sorted set in a new key
+     * Sorted_set
+     *
+     * @param destination0
+     * @param numkeys1
+     * @param key2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply zinterstore(final byte[] destination0, final byte[] numkeys1, final byte[][] key2) throws RedisException {
+        return across(concat(destination0, first(key2, numkeys1)), new Call<IntegerReply>() {
+            @Override
+            public IntegerReply call(SimpleRedisServer server) throws RedisException {
+                return server.zinterstore(destination0, numkeys1, key2);
+            }
+        });
+    }
+
+    /**
+     * Return a range of members in a sorted set, by index
+     * Sorted_set
+     *
+     * @param key0
+     * @param start1
+     * @param stop2
+     * @param withscores3
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply zrange(byte[] key0, byte[] start1, byte[] stop2, byte[] withscores3) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zrange(key0, start1, stop2, withscores3);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Return a range of members in a sorted set, by score
+     * Sorted_set
+     *
+     * @param key0
+     * @param min1
+     * @param max2
+     * @param withscores3
+     * @param offset_or_count4
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply zrangebyscore(byte[] key0, byte[] min1, byte[] max2, byte[][] withscores_offset_or_count4) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zrangebyscore(key0, min1, max2, withscores_offset_or_count4);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Determine the index of a member in a sorted set
+     * Sorted_set
+     *
+     * @param key0
+     * @param member1
+     * @return Reply
+     */
+    @Override
+    public Reply zrank(byte[] key0, byte[] member1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zrank(key0, member1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Remove one or more members from a sorted set
+     * Sorted_set
+     *
+     * @param key0
+     * @param member1
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply zrem(byte[] key0, byte[][] member1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zrem(key0, member1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Remove all members in a sorted set within the given indexes
+     * Sorted_set
+     *
+     * @param key0
+     * @param start1
+     * @param stop2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply zremrangebyrank(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zremrangebyrank(key0, start1, stop2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Remove all members in a sorted set within the given scores
+     * Sorted_set
+     *
+     * @param key0
+     * @param min1
+     * @param max2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply zremrangebyscore(byte[] key0, byte[] min1, byte[] max2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zremrangebyscore(key0, min1, max2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Return a range of members in a sorted set, by index, with scores ordered from high to low
+     * Sorted_set
+     *
+     * @param key0
+     * @param start1
+     * @param stop2
+     * @param withscores3
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply zrevrange(byte[] key0, byte[] start1, byte[] stop2, byte[] withscores3) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zrevrange(key0, start1, stop2, withscores3);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Return a range of members in a sorted set, by score, with scores ordered from high to low
+     * Sorted_set
+     *
+     * @param key0
+     * @param max1
+     * @param min2
+     * @param withscores3
+     * @param offset_or_count4
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply zrevrangebyscore(byte[] key0, byte[] max1, byte[] min2, byte[][] withscores_offset_or_count4) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zrevrangebyscore(key0, max1, min2, withscores_offset_or_count4);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Determine the index of a member in a sorted set, with scores ordered from high to low
+     * Sorted_set
+     *
+     * @param key0
+     * @param member1
+     * @return Reply
+     */
+    @Override
+    public Reply zrevrank(byte[] key0, byte[] member1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zrevrank(key0, member1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Get the score associated with the given member in a sorted set
+     * Sorted_set
+     *
+     * @param key0
+     * @param member1
+     * @return BulkReply
+     */
+    @Override
+    public BulkReply zscore(byte[] key0, byte[] member1) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zscore(key0, member1);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Add multiple sorted sets and store the resulting sorted set in a new key
+     * Sorted_set
+     *
+     * @param destination0
+     * @param numkeys1
+     * @param key2
+     * @return IntegerReply
+     */
+    @Override
+    public IntegerReply zunionstore(final byte[] destination0, final byte[] numkeys1, final byte[][] key2) throws RedisException {
+        return across(concat(destination0, first(key2, numkeys1)), new Call<IntegerReply>() {
+            @Override
+            public IntegerReply call(SimpleRedisServer server) throws RedisException {
+                return server.zunionstore(destination0, numkeys1, key2);
+            }
+        });
+    }
+
+    /**
+     * Incrementally iterate sorted sets elements and associated scores
+     * Sorted_set
+     *
+     * @param key0
+     * @param cursor1
+     * @param attributes2
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply zscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException {
+        int i = stripe(key0);
+        locks[i].lock();
+        try {
+            return stripes[i].zscan(key0, cursor1, attributes2);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package redis.server.backend.simple;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A list made of linked chunks, each packing up to MAX_ENTRIES elements back to
+ * back in one byte array, like the quicklist behind redis lists.
+ * <p/>
+ * A chunk starts out the size of its first element and doubles as it fills, up to
+ * CHUNK_BYTES, keeping its free space on the side it last grew towards. Pushes and
+ * pops at either end of the list touch a single chunk and never move the elements
+ * of other chunks. Each element costs its bytes plus an offset instead of a
+ * wrapper object, and indexes skip whole chunks. Changes in the middle rebuild
+ * the chunk involved.
+ */
+public class QuickList implements Iterable<byte[]> {
+    static final int MAX_ENTRIES = 128;
+    static final int CHUNK_BYTES = 8 * 1024;
+
+    private Chunk head;
+    private Chunk tail;
+    private int size;
+
+    static class Chunk {
+        // the elements are data[start..end)
+        byte[] data;
+        int start;
+        int end;
+        // element i starts at offsets[i], for first <= i < last
+        int[] offsets;
+        int first;
+        int last;
+        Chunk previous;
+        Chunk next;
+
+        /**
+         * An empty chunk with just the room for value.
+         *
+         * @param front leaves the room at the front, for prepending
+         */
+        Chunk(byte[] value, boolean front) {
+            data = new byte[value.length];
+            offsets = new int[1];
+            start = end = front ? value.length : 0;
+            first = last = front ? 1 : 0;
+        }
+
+        int count() {
+            return last - first;
+        }
+
+        byte[] get(int i) {
+            int offset = offsets[first + i];
+            int next = first + i + 1 < last ? offsets[first + i + 1] : end;
+            return Arrays.copyOfRange(data, offset, next);
+        }
+
+        boolean addFirst(byte[] value) {
+            if ((first == 0 || start < value.length) && !grow(value.length, true)) {
+                return false;
+            }
+            start -= value.length;
+            System.arraycopy(value, 0, data, start, value.length);
+            offsets[--first] = start;
+            return true;
+        }
+
+        boolean addLast(byte[] value) {
+            if ((last == offsets.length || data.length - end < value.length) && !grow(value.length, false)) {
+                return false;
+            }
+            System.arraycopy(value, 0, data, end, value.length);
+            offsets[last++] = end;
+            end += value.length;
+            return true;
+        }
+
+        byte[] removeFirst() {
+            byte[] value = get(0);
+            first++;
+            start = first < last ? offsets[first] : end;
+            return value;
+        }
+
+        byte[] removeLast() {
+            byte[] value = get(count() - 1);
+            last--;
+            end = offsets[last];
+            return value;
+        }
+
+        List<byte[]> elements() {
+            List<byte[]> elements = new ArrayList<byte[]>(count());
+            for (int i = 0; i < count(); i++) {
+                elements.add(get(i));
+            }
+            return elements;
+        }
+
+        /**
+         * Makes room for one more element of length bytes at the front or the back
+         * by doubling what is short, moving the free space to that side.
+         *
+         * @return false if the chunk is full
+         */
+        private boolean grow(int length, boolean front) {
+            int used = end - start;
+            if (count() == MAX_ENTRIES || count() > 0 && used + length > CHUNK_BYTES) {
+                return false;
+            }
+            boolean shortOfBytes = (front ? start : data.length - end) < length;
+            boolean shortOfEntries = front ? first == 0 : last == offsets.length;
+            int bytes = shortOfBytes ?
+                    Math.min(Math.max(data.length * 2, used + length), Math.max(CHUNK_BYTES, used + length)) :
+                    data.length;
+            int entries = shortOfEntries ? Math.min(offsets.length * 2, MAX_ENTRIES) : offsets.length;
+            if (shortOfBytes && bytes == data.length || shortOfEntries && entries == offsets.length) {
+                // at the cap with the free space on the other side
+                return false;
+            }
+            byte[] grown = new byte[bytes];
+            int moved = front ? bytes - used : 0;
+            System.arraycopy(data, start, grown, moved, used);
+            int[] grownOffsets = new int[entries];
+            int count = count();
+            int movedFirst = front ? entries - count : 0;
+            for (int i = 0; i < count; i++) {
+                grownOffsets[movedFirst + i] = offsets[first + i] - start + moved;
+            }
+            data = grown;
+            start = moved;
+            end = moved + used;
+            offsets = grownOffsets;
+            first = movedFirst;
+            last = movedFirst + count;
+            return true;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void addFirst(byte[] value) {
+        if (head == null || !head.addFirst(value)) {
+            Chunk chunk = new Chunk(value, true);
+            chunk.addFirst(value);
+            link(null, chunk, head);
+        }
+        size++;
+    }
+
+    public void addLast(byte[] value) {
+        if (tail == null || !tail.addLast(value)) {
+            Chunk chunk = new Chunk(value, false);
+            chunk.addLast(value);
+            link(tail, chunk, null);
+        }
+        size++;
+    }
+
+    /**
+     * @return null if the list is empty
+     */
+    public byte[] pollFirst() {
+        if (head == null) {
+            return null;
+        }
+        byte[] value = head.removeFirst();
+        if (head.count() == 0) {
+            unlink(head);
+        }
+        size--;
+        return value;
+    }
+
+    /**
+     * @return null if the list is empty
+     */
+    public byte[] pollLast() {
+        if (tail == null) {
+            return null;
+        }
+        byte[] value = tail.removeLast();
+        if (tail.count() == 0) {
+            unlink(tail);
+        }
+        size--;
+        return value;
+    }
+
+    /**
+     * @return null if index is out of range
+     */
+    public byte[] get(int index) {
+        if (index < 0 || index >= size) {
+            return null;
+        }
+        Position position = find(index);
+        return position.chunk.get(position.index);
+    }
+
+    /**
+     * @return false if index is out of range
+     */
+    public boolean set(int index, byte[] value) {
+        if (index < 0 || index >= size) {
+            return false;
+        }
+        Position position = find(index);
+        List<byte[]> elements = position.chunk.elements();
+        elements.set(position.index, value);
+        replace(position.chunk, elements);
+        return true;
+    }
+
+    /**
+     * Inserts value next to the first element equal to pivot.
+     *
+     * @return the new size or -1 if pivot isn't there
+     */
+    public int insert(byte[] pivot, byte[] value, boolean before) {
+        for (Chunk chunk = head; chunk != null; chunk = chunk.next) {
+            for (int i = 0; i < chunk.count(); i++) {
+                if (Arrays.equals(chunk.get(i), pivot)) {
+                    List<byte[]> elements = chunk.elements();
+                    elements.add(before ? i : i + 1, value);
+                    replace(chunk, elements);
+                    size++;
+                    return size;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes count elements equal to value from the head, from the tail if count is
+     * negative or all of them if it is 0.
+     *
+     * @return the number of elements removed
+     */
+    public int remove(byte[] value, int count) {
+        int limit = count == 0 ? Integer.MAX_VALUE : Math.abs(count);
+        int removed = 0;
+        Chunk chunk = count < 0 ? tail : head;
+        while (chunk != null && removed < limit) {
+            Chunk following = count < 0 ? chunk.previous : chunk.next;
+            List<byte[]> elements = chunk.elements();
+            int before = removed;
+            for (int i = count < 0 ? elements.size() - 1 : 0;
+                 i >= 0 && i < elements.size() && removed < limit;
+                 i += count < 0 ? -1 : 1) {
+                if (Arrays.equals(elements.get(i), value)) {
+                    elements.remove(i);
+                    removed++;
+                    if (count >= 0) {
+                        i--;
+                    }
+                }
+            }
+            if (removed != before) {
+                replace(chunk, elements);
+            }
+            chunk = following;
+        }
+        size -= removed;
+        return removed;
+    }
+
+    /**
+     * Only keeps the elements from index start to index end, both included.
+     */
+    public void trim(int start, int end) {
+        start = Math.max(start, 0);
+        end = Math.min(end, size - 1);
+        if (start > end) {
+            head = tail = null;
+            size = 0;
+            return;
+        }
+        // drop whole chunks, then the rest one by one
+        while (head.count() <= start) {
+            start -= head.count();
+            end -= head.count();
+            size -= head.count();
+            unlink(head);
+        }
+        for (; start > 0; start--, end--) {
+            pollFirst();
+        }
+        while (size - tail.count() > end) {
+            size -= tail.count();
+            unlink(tail);
+        }
+        while (size - 1 > end) {
+            pollLast();
+        }
+    }
+
+    /**
+     * @return the elements from index start to index end, both included and in range
+     */
+    public List<byte[]> range(int start, int end) {
+        List<byte[]> range = new ArrayList<byte[]>();
+        Iterator<byte[]> iterator = iterator(start);
+        for (int i = start; i <= end && iterator.hasNext(); i++) {
+            range.add(iterator.next());
+        }
+        return range;
+    }
+
+    @Override
+    public Iterator<byte[]> iterator() {
+        return iterator(0);
+    }
+
+    private Iterator<byte[]> iterator(int index) {
+        final Position position = index >= 0 && index < size ? find(index) : new Position(null, 0);
+        return new Iterator<byte[]>() {
+            Chunk chunk = position.chunk;
+            int i = position.index;
+
+            @Override
+            public boolean hasNext() {
+                return chunk != null;
+            }
+
+            @Override
+            public byte[] next() {
+                if (chunk == null) {
+                    throw new NoSuchElementException();
+                }
+                byte[] value = chunk.get(i++);
+                if (i == chunk.count()) {
+                    chunk = chunk.next;
+                    i = 0;
+                }
+                return value;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static class Position {
+        final Chunk chunk;
+        final int index;
+
+        Position(Chunk chunk, int index) {
+            this.chunk = chunk;
+            this.index = index;
+        }
+    }
+
+    // Skips whole chunks from the closest end
+    private Position find(int index) {
+        if (index < size / 2) {
+            Chunk chunk = head;
+            while (index >= chunk.count()) {
+                index -= chunk.count();
+                chunk = chunk.next;
+            }
+            return new Position(chunk, index);
+        }
+        int fromEnd = size - 1 - index;
+        Chunk chunk = tail;
+        while (fromEnd >= chunk.count()) {
+            fromEnd -= chunk.count();
+            chunk = chunk.previous;
+        }
+        return new Position(chunk, chunk.count() - 1 - fromEnd);
+    }
+
+    // Puts the elements in new chunks where chunk was
+    private void replace(Chunk chunk, List<byte[]> elements) {
+        Chunk previous = chunk.previous;
+        Chunk next = chunk.next;
+        unlink(chunk);
+        Chunk current = null;
+        for (byte[] element : elements) {
+            if (current == null || !current.addLast(element)) {
+                current = new Chunk(element, false);
+                current.addLast(element);
+                link(previous, current, next);
+                previous = current;
+            }
+        }
+    }
+
+    private void link(Chunk previous, Chunk chunk, Chunk next) {
+        chunk.previous = previous;
+        chunk.next = next;
+        if (previous == null) {
+            head = chunk;
+        } else {
+            previous.next = chunk;
+        }
+        if (next == null) {
+            tail = chunk;
+        } else {
+            next.previous = chunk;
+        }
+    }
+
+    private void unlink(Chunk chunk) {
+        if (chunk.previous == null) {
+            head = chunk.next;
+        } else {
+            chunk.previous.next = chunk.next;
+        }
+        if (chunk.next == null) {
+            tail = chunk.previous;
+        } else {
+            chunk.next.previous = chunk.previous;
+        }
+    }
+}
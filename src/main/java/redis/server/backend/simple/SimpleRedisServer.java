@@ -3,12 +3,16 @@ package redis.server.backend.simple;
 import io.netty.buffer.ByteBuf;
 import redis.server.RedisException;
 import redis.server.RedisServer;
+import redis.server.ScanArguments;
 import redis.server.reply.*;
 import redis.util.*;
 
-import java.lang.reflect.Field;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 import static java.lang.Double.parseDouble;
 import static java.lang.Integer.MAX_VALUE;
@@ -21,11 +25,22 @@ import static redis.util.Encoding.numToBytes;
 public class SimpleRedisServer implements RedisServer {
 
     private static final StatusReply PONG = new StatusReply("PONG");
+    private static final StatusReply BACKGROUND_SAVING = new StatusReply("Background saving started");
     private long started = now();
 
-    private BytesKeyObjectMap<Object> data = new BytesKeyObjectMap<Object>();
-    private BytesKeyObjectMap<Long> expires = new BytesKeyObjectMap<Long>();
+    private BytesKeyTable<Object> data = new BytesKeyTable<Object>();
+    private BytesKeyTable<Long> expires = new BytesKeyTable<Long>();
+    // Keys with an expiration looked at per round of active expiry
+    private static final int EXPIRE_SAMPLE = 20;
+    private final Random sampler = new Random();
     private static int[] mask = {128, 64, 32, 16, 8, 4, 2, 1};
+    // Where SAVE and BGSAVE write, null if they aren't supported
+    private File snapshotFile;
+    // Runs the steps of BGSAVE on the thread executing commands
+    private Executor commands;
+    // Being written by BGSAVE, or null
+    private Snapshot snapshot;
+    private long lastsave = -1;
 
     private static RedisException invalidValue() {
         return new RedisException("Operation against a key holding the wrong kind of value");
@@ -48,7 +63,7 @@ public class SimpleRedisServer implements RedisServer {
                 data.put(key0, o);
             }
         }
-        if (!(o instanceof HashMap)) {
+        if (!(o instanceof BytesKeyObjectMap)) {
             throw invalidValue();
         }
         return (BytesKeyObjectMap<byte[]>) o;
@@ -85,12 +100,17 @@ public class SimpleRedisServer implements RedisServer {
     }
 
     private Object _get(byte[] key0) {
+        if (snapshot != null) {
+            // before the value can change
+            snapshot.touch(key0);
+        }
         Object o = data.get(key0);
         if (o != null) {
             Long l = expires.get(key0);
             if (l != null) {
                 if (l < now()) {
                     data.remove(key0);
+                    expires.remove(key0);
                     return null;
                 }
             }
@@ -164,13 +184,13 @@ public class SimpleRedisServer implements RedisServer {
     }
 
     @SuppressWarnings("unchecked")
-    private List<BytesValue> _getlist(byte[] key0, boolean create) throws RedisException {
+    private QuickList _getlist(byte[] key0, boolean create) throws RedisException {
         Object o = _get(key0);
-        if (o instanceof List) {
-            return (List<BytesValue>) o;
+        if (o instanceof QuickList) {
+            return (QuickList) o;
         } else if (o == null) {
             if (create) {
-                ArrayList<BytesValue> list = new ArrayList<BytesValue>();
+                QuickList list = new QuickList();
                 _put(key0, list);
                 return list;
             } else {
@@ -191,43 +211,78 @@ public class SimpleRedisServer implements RedisServer {
         return data.put(key, value);
     }
 
-    private static boolean matches(byte[] key, byte[] pattern, int kp, int pp) {
-        if (kp == key.length) {
-            return pp == pattern.length || (pp == pattern.length - 1 && pattern[pp] == '*');
-        } else if (pp == pattern.length) {
-            return false;
+    /**
+     * Hands key over to another server along with its expiration. Used by
+     * {@link ConcurrentRedisServer} to gather the keys of a command in one stripe.
+     */
+    void _move(byte[] key, SimpleRedisServer to) {
+        Object o = data.remove(key);
+        Long expiration = expires.remove(key);
+        if (o != null) {
+            to.data.put(key, o);
+            if (expiration != null) {
+                to.expires.put(key, expiration);
+            }
         }
-        byte c = key[kp];
-        byte p = pattern[pp];
-        switch (p) {
-            case '?':
-                // Always matches, move to next character in key and pattern
-                return matches(key, pattern, kp + 1, pp + 1);
-            case '*':
-                // Matches this character than either matches end or try next character
-                return matches(key, pattern, kp + 1, pp + 1) || matches(key, pattern, kp + 1, pp);
-            case '\\':
-                // Matches the escaped character and the rest
-                return c == pattern[pp + 1] && matches(key, pattern, kp + 1, pp + 2);
-            case '[':
-                // Matches one of the characters and the rest
-                boolean found = false;
-                pp++;
-                do {
-                    byte b = pattern[pp++];
-                    if (b == ']') {
-                        break;
-                    } else {
-                        if (b == c) found = true;
-                    }
-                } while (true);
-                return found && matches(key, pattern, kp + 1, pp);
-            default:
-                // This matches and the rest
-                return c == p && matches(key, pattern, kp + 1, pp + 1);
+    }
+
+    /**
+     * Lets SAVE and BGSAVE write snapshots to file. BGSAVE serializes on
+     * commands, which must be the thread executing commands.
+     */
+    public void enableSnapshots(File file, Executor commands) {
+        this.snapshotFile = file;
+        this.commands = commands;
+    }
+
+    /**
+     * Loads a snapshot written by SAVE or BGSAVE, decoding it on threads. Must run
+     * before any command does.
+     *
+     * @return the number of keys loaded
+     */
+    public long load(File file, int threads) throws IOException {
+        long loaded = Snapshot.load(file, threads, this);
+        lastsave = file.lastModified() / 1000;
+        return loaded;
+    }
+
+    void _restore(byte[] key, Object value, Long expiration) {
+        data.put(key, value);
+        if (expiration != null) {
+            expires.put(key, expiration);
         }
     }
 
+    /**
+     * Active expiry like the redis cycle: samples keys with an expiration and
+     * deletes the expired ones, going on while more than a quarter of a sample had
+     * expired and the time budget lasts. Must run on the thread executing commands
+     * or under the same lock.
+     *
+     * @param budget in nanoseconds
+     * @return the number of keys deleted
+     */
+    public int activeExpireCycle(long budget) {
+        long deadline = System.nanoTime() + budget;
+        int total = 0;
+        int expired;
+        do {
+            expired = 0;
+            long now = now();
+            int samples = Math.min(EXPIRE_SAMPLE, expires.size());
+            for (int i = 0; i < samples; i++) {
+                byte[] key = expires.randomKey(sampler);
+                if (expires.get(key) < now || !data.containsKey(key)) {
+                    data.remove(key);
+                    expires.remove(key);
+                    expired++;
+                }
+            }
+            total += expired;
+        } while (expired * 4 > EXPIRE_SAMPLE && System.nanoTime() < deadline);
+        return total;
+    }
 
     private static int _toposint(byte[] offset1) throws RedisException {
         long offset = bytesToNum(offset1);
@@ -237,6 +292,15 @@ public class SimpleRedisServer implements RedisServer {
         return (int) offset;
     }
 
+    // An index counted from the end when negative
+    private static int _toindex(byte[] index1, int size) throws RedisException {
+        long index = bytesToNum(index1);
+        if (index < 0) {
+            index += size;
+        }
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(index, MAX_VALUE));
+    }
+
     private static int _toint(byte[] offset1) throws RedisException {
         long offset = bytesToNum(offset1);
         if (offset > MAX_VALUE) {
@@ -260,24 +324,6 @@ public class SimpleRedisServer implements RedisServer {
     }
 
     private static Random r = new SecureRandom();
-    private static Field tableField;
-    private static Field nextField;
-    private static Field mapField;
-
-    static {
-        try {
-            tableField = HashMap.class.getDeclaredField("table");
-            tableField.setAccessible(true);
-            nextField = Class.forName("java.util.HashMap$Entry").getDeclaredField("next");
-            nextField.setAccessible(true);
-            mapField = HashSet.class.getDeclaredField("map");
-            mapField.setAccessible(true);
-        } catch (Exception e) {
-            e.printStackTrace();
-            tableField = null;
-            nextField = null;
-        }
-    }
 
     private static RedisException noSuchKey() {
         return new RedisException("no such key");
@@ -670,26 +716,26 @@ public class SimpleRedisServer implements RedisServer {
             if (div + 1 > MAX_VALUE) throw notInteger();
 
             byte[] bytes = (byte[]) o;
+            int mod = (int) (offset % 8);
+            int i = bytes == null || bytes.length < div + 1 ? 0 : bytes[((int) div)] & mask[mod];
             if (bytes == null || bytes.length < div + 1) {
                 byte[] tmp = bytes;
                 bytes = new byte[(int) div + 1];
                 if (tmp != null) System.arraycopy(tmp, 0, bytes, 0, tmp.length);
                 _put(key0, bytes);
+            } else if ((i != 0) == (bit != 0)) {
+                return integer(bit);
+            } else {
+                // values are never changed in place, replies may still be writing them
+                bytes = bytes.clone();
+                data.put(key0, bytes);
             }
-            int mod = (int) (offset % 8);
-            int value = bytes[((int) div)] & 0xFF;
-            int i = value & mask[mod];
-            if (i == 0) {
-                if (bit != 0) {
-                    bytes[((int) div)] += mask[mod];
-                }
-                return integer(0);
+            if (bit != 0) {
+                bytes[((int) div)] |= mask[mod];
             } else {
-                if (bit == 0) {
-                    bytes[((int) div)] -= mask[mod];
-                }
-                return integer(1);
+                bytes[((int) div)] &= ~mask[mod];
             }
+            return integer(i != 0 ? 1 : 0);
         } else {
             throw invalidValue();
         }
@@ -746,6 +792,10 @@ public class SimpleRedisServer implements RedisServer {
             bytes = new byte[length];
             System.arraycopy(tmp, 0, bytes, 0, offset);
             _put(key0, bytes);
+        } else if (value2.length > 0) {
+            // values are never changed in place, replies may still be writing them
+            bytes = bytes.clone();
+            data.put(key0, bytes);
         }
         System.arraycopy(value2, 0, bytes, offset, value2.length);
         return integer(bytes.length);
@@ -839,7 +889,41 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public StatusReply bgsave() throws RedisException {
-        throw new RedisException("Not supported");
+        if (snapshotFile == null) {
+            throw new RedisException("Not supported");
+        }
+        if (snapshot != null) {
+            throw new RedisException("Background save already in progress");
+        }
+        final Snapshot taken = snapshot = new Snapshot(data, expires);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final boolean saved = _write(taken, commands);
+                commands.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        snapshot = null;
+                        if (saved) {
+                            lastsave = now() / 1000;
+                        }
+                    }
+                });
+            }
+        }, "bgsave");
+        thread.setDaemon(true);
+        thread.start();
+        return BACKGROUND_SAVING;
+    }
+
+    private boolean _write(Snapshot snapshot, Executor commands) {
+        try {
+            snapshot.write(snapshotFile, commands);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
     /**
@@ -1005,7 +1089,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply lastsave() throws RedisException {
-        return integer(-1);
+        return integer(lastsave);
     }
 
     /**
@@ -1028,7 +1112,17 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public Reply save() throws RedisException {
-        throw new RedisException("Not supported");
+        if (snapshotFile == null) {
+            throw new RedisException("Not supported");
+        }
+        if (snapshot != null) {
+            throw new RedisException("Background save already in progress");
+        }
+        if (!_write(new Snapshot(data, expires), null)) {
+            throw new RedisException("Failed to save " + snapshotFile);
+        }
+        lastsave = now() / 1000;
+        return OK;
     }
 
     /**
@@ -1152,13 +1246,12 @@ public class SimpleRedisServer implements RedisServer {
     @SuppressWarnings("unchecked")
     @Override
     public BulkReply lindex(byte[] key0, byte[] index1) throws RedisException {
-        int index = _toposint(index1);
-        List<BytesValue> list = _getlist(key0, true);
-        if (list == null || list.size() <= index) {
+        QuickList list = _getlist(key0, false);
+        if (list == null) {
             return BulkReply.NIL_REPLY;
-        } else {
-            return new BulkReply(list.get(index).getBytes());
         }
+        byte[] bytes = list.get(_toindex(index1, list.size()));
+        return bytes == null ? BulkReply.NIL_REPLY : new BulkReply(bytes);
     }
 
     /**
@@ -1174,14 +1267,11 @@ public class SimpleRedisServer implements RedisServer {
     @Override
     public IntegerReply linsert(byte[] key0, byte[] where1, byte[] pivot2, byte[] value3) throws RedisException {
         Where where = Where.valueOf(new String(where1).toUpperCase());
-        List<BytesValue> list = _getlist(key0, true);
-        BytesKey pivot = new BytesKey(pivot2);
-        int i = list.indexOf(pivot);
-        if (i == -1) {
-            return integer(-1);
+        QuickList list = _getlist(key0, false);
+        if (list == null) {
+            return integer(0);
         }
-        list.add(i + (where == Where.BEFORE ? 0 : 1), new BytesKey(value3));
-        return integer(list.size());
+        return integer(list.insert(pivot2, value3, where == Where.BEFORE));
     }
 
     enum Where {BEFORE, AFTER}
@@ -1195,7 +1285,7 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply llen(byte[] key0) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
+        QuickList list = _getlist(key0, false);
         return list == null ? integer(0) : integer(list.size());
     }
 
@@ -1208,11 +1298,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply lpop(byte[] key0) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
+        QuickList list = _getlist(key0, false);
         if (list == null || list.size() == 0) {
             return BulkReply.NIL_REPLY;
         } else {
-            return new BulkReply(list.remove(0).getBytes());
+            return new BulkReply(list.pollFirst());
         }
     }
 
@@ -1226,9 +1316,9 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply lpush(byte[] key0, byte[][] value1) throws RedisException {
-        List<BytesValue> list = _getlist(key0, true);
+        QuickList list = _getlist(key0, true);
         for (byte[] value : value1) {
-            list.add(0, new BytesKey(value));
+            list.addFirst(value);
         }
         return integer(list.size());
     }
@@ -1243,11 +1333,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply lpushx(byte[] key0, byte[] value1) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
+        QuickList list = _getlist(key0, false);
         if (list == null) {
             return integer(0);
         } else {
-            list.add(0, new BytesKey(value1));
+            list.addFirst(value1);
         }
         return integer(list.size());
     }
@@ -1263,18 +1353,20 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public MultiBulkReply lrange(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
+        QuickList list = _getlist(key0, false);
         if (list == null) {
             return MultiBulkReply.EMPTY;
         } else {
             int size = list.size();
-            int s = _torange(start1, size);
-            int e = _torange(stop2, size);
-            if (e < s) e = s;
-            int length = e - s + 1;
-            Reply[] replies = new Reply[length];
-            for (int i = s; i <= e; i++) {
-                replies[i - s] = new BulkReply(list.get(i).getBytes());
+            int s = Math.max(_toindex(start1, size), 0);
+            int e = Math.min(_toindex(stop2, size), size - 1);
+            if (e < s) {
+                return MultiBulkReply.EMPTY;
+            }
+            List<byte[]> range = list.range(s, e);
+            Reply[] replies = new Reply[range.size()];
+            for (int i = 0; i < replies.length; i++) {
+                replies[i] = new BulkReply(range.get(i));
             }
             return new MultiBulkReply(replies);
         }
@@ -1291,34 +1383,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply lrem(byte[] key0, byte[] count1, byte[] value2) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
+        QuickList list = _getlist(key0, false);
         if (list == null) {
             return integer(0);
         } else {
-            int count = _toint(count1);
-            BytesKey value = new BytesKey(value2);
-            int size = list.size();
-            int dir = 1;
-            int s = 0;
-            int e = size;
-            int rem = 0;
-            boolean all = count == 0;
-            if (count < 0) {
-                count = -count;
-                dir = -1;
-                s = e;
-                e = -1;
-            }
-            for (int i = s; (all || count != 0) && i != e; i += dir) {
-                if (list.get(i).equals(value)) {
-                    list.remove(i);
-                    e -= dir;
-                    i -= dir;
-                    rem++;
-                    count--;
-                }
-            }
-            return integer(rem);
+            return integer(list.remove(value2, _toint(count1)));
         }
     }
 
@@ -1333,14 +1402,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public StatusReply lset(byte[] key0, byte[] index1, byte[] value2) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
+        QuickList list = _getlist(key0, false);
         if (list == null) {
             throw noSuchKey();
         }
-        int size = list.size();
-        int index = _toposint(index1);
-        if (index < size) {
-            list.set(index, new BytesKey(value2));
+        if (list.set(_toindex(index1, list.size()), value2)) {
             return OK;
         } else {
             throw invalidValue();
@@ -1358,15 +1424,13 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public StatusReply ltrim(byte[] key0, byte[] start1, byte[] stop2) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
+        QuickList list = _getlist(key0, false);
         if (list == null) {
             return OK;
         } else {
             int l = list.size();
-            int s = _torange(start1, l);
-            int e = _torange(stop2, l);
-            // Doesn't change expiration
-            data.put(key0, list.subList(s, e + 1));
+            // Trimmed in place, so doesn't change expiration
+            list.trim(_toindex(start1, l), _toindex(stop2, l));
             return OK;
         }
     }
@@ -1380,14 +1444,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply rpop(byte[] key0) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
-        int l;
-        if (list == null || (l = list.size()) == 0) {
+        QuickList list = _getlist(key0, false);
+        if (list == null || list.size() == 0) {
             return BulkReply.NIL_REPLY;
         } else {
-            byte[] bytes = list.get(l - 1).getBytes();
-            list.remove(l - 1);
-            return new BulkReply(bytes);
+            return new BulkReply(list.pollLast());
         }
     }
 
@@ -1401,16 +1462,14 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply rpoplpush(byte[] source0, byte[] destination1) throws RedisException {
-        List<BytesValue> source = _getlist(source0, false);
-        int l;
-        if (source == null || (l = source.size()) == 0) {
+        QuickList source = _getlist(source0, false);
+        if (source == null || source.size() == 0) {
             return BulkReply.NIL_REPLY;
         } else {
-            List<BytesValue> dest = _getlist(destination1, true);
-            BytesValue popped = source.get(l - 1);
-            source.remove(l - 1);
-            dest.add(0, popped);
-            return new BulkReply(popped.getBytes());
+            QuickList dest = _getlist(destination1, true);
+            byte[] popped = source.pollLast();
+            dest.addFirst(popped);
+            return new BulkReply(popped);
         }
     }
 
@@ -1424,9 +1483,9 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply rpush(byte[] key0, byte[][] value1) throws RedisException {
-        List<BytesValue> list = _getlist(key0, true);
+        QuickList list = _getlist(key0, true);
         for (byte[] bytes : value1) {
-            list.add(new BytesKey(bytes));
+            list.addLast(bytes);
         }
         return integer(list.size());
     }
@@ -1441,11 +1500,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public IntegerReply rpushx(byte[] key0, byte[] value1) throws RedisException {
-        List<BytesValue> list = _getlist(key0, false);
+        QuickList list = _getlist(key0, false);
         if (list == null) {
             return integer(0);
         } else {
-            list.add(new BytesKey(value1));
+            list.addLast(value1);
             return integer(list.size());
         }
     }
@@ -1546,25 +1605,55 @@ public class SimpleRedisServer implements RedisServer {
             throw new RedisException("wrong number of arguments for KEYS");
         }
         List<Reply<ByteBuf>> replies = new ArrayList<Reply<ByteBuf>>();
-        Iterator<Object> it = data.keySet().iterator();
-        while (it.hasNext()) {
-            BytesKey key = (BytesKey) it.next();
-            byte[] bytes = key.getBytes();
-            boolean expired = false;
-            Long l = expires.get(key);
-            if (l != null) {
-                if (l < now()) {
-                    expired = true;
-                    it.remove();
-                }
-            }
-            if (matches(bytes, pattern0, 0, 0) && !expired) {
+        GlobPattern pattern = GlobPattern.compile(pattern0);
+        List<byte[]> expired = new ArrayList<byte[]>();
+        for (byte[] bytes : data) {
+            Long l = expires.get(bytes);
+            if (l != null && l < now()) {
+                expired.add(bytes);
+            } else if (pattern.matches(bytes)) {
                 replies.add(new BulkReply(bytes));
             }
         }
+        for (byte[] bytes : expired) {
+            data.remove(bytes);
+            expires.remove(bytes);
+        }
         return new MultiBulkReply(replies.toArray(new Reply[replies.size()]));
     }
 
+    /**
+     * Incrementally iterate the keys space
+     * Generic
+     *
+     * @param cursor0
+     * @param attributes1
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply scan(byte[] cursor0, byte[][] attributes1) throws RedisException {
+        List<Reply> replies = new ArrayList<Reply>();
+        long cursor = _scan(ScanArguments.cursor(cursor0), new ScanArguments(attributes1), replies);
+        return ScanArguments.reply(cursor, replies);
+    }
+
+    /**
+     * Adds the matching keys of the next few buckets to replies. Used by
+     * {@link ConcurrentRedisServer} to scan its stripes one after the other.
+     *
+     * @return the cursor to continue from, 0 when done
+     */
+    long _scan(long cursor, ScanArguments arguments, List<Reply> replies) {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        cursor = data.scan(cursor, arguments.count, keys);
+        for (byte[] key : keys) {
+            if (_get(key) != null && arguments.matches(key)) {
+                replies.add(new BulkReply(key));
+            }
+        }
+        return cursor;
+    }
+
     /**
      * Atomically transfer a key from a Redis instance to another one.
      * Generic
@@ -1697,39 +1786,8 @@ public class SimpleRedisServer implements RedisServer {
         // This implementation mirrors that of Redis. I'm not
         // sure I believe that this is a great algorithm but
         // it beats the alternatives that are very inefficient.
-        if (tableField != null) {
-            int size = data.size();
-            if (size == 0) {
-                return BulkReply.NIL_REPLY;
-            }
-            try {
-                BytesKey key = getRandomKey(data);
-                return new BulkReply(key.getBytes());
-            } catch (Exception e) {
-                throw new RedisException(e);
-            }
-        }
-        return null;
-    }
-
-    private BytesKey getRandomKey(Map data1) throws IllegalAccessException {
-        Map.Entry[] table = (Map.Entry[]) tableField.get(data1);
-        int length = table.length;
-        Map.Entry entry;
-        do {
-            entry = table[r.nextInt(length)];
-        } while (entry == null);
-
-        int entries = 0;
-        Map.Entry current = entry;
-        do {
-            entries++;
-            current = (Map.Entry) nextField.get(current);
-        } while (current != null);
-        int choose = r.nextInt(entries);
-        current = entry;
-        while (choose-- != 0) current = (Map.Entry) nextField.get(current);
-        return (BytesKey) current.getKey();
+        byte[] key = data.randomKey(r);
+        return key == null ? BulkReply.NIL_REPLY : new BulkReply(key);
     }
 
     /**
@@ -1850,7 +1908,7 @@ public class SimpleRedisServer implements RedisServer {
             return new StatusReply("string");
         } else if (o instanceof Map) {
             return new StatusReply("hash");
-        } else if (o instanceof List) {
+        } else if (o instanceof QuickList) {
             return new StatusReply("list");
         } else if (o instanceof SortedSet) {
             return new StatusReply("zset");
@@ -1860,31 +1918,6 @@ public class SimpleRedisServer implements RedisServer {
         return null;
     }
 
-    /**
-     * Forget about all watched keys
-     * Transactions
-     *
-     * @return StatusReply
-     */
-    @Override
-    public StatusReply unwatch() throws RedisException {
-        // TODO: Transactions
-        return null;
-    }
-
-    /**
-     * Watch the given keys to determine execution of the MULTI/EXEC block
-     * Transactions
-     *
-     * @param key0
-     * @return StatusReply
-     */
-    @Override
-    public StatusReply watch(byte[][] key0) throws RedisException {
-        // TODO: Transactions
-        return null;
-    }
-
     /**
      * Execute a Lua script server side
      * Scripting
@@ -2211,6 +2244,31 @@ public class SimpleRedisServer implements RedisServer {
         return new MultiBulkReply(replies);
     }
 
+    /**
+     * Incrementally iterate hash fields and associated values
+     * Hash
+     *
+     * @param key0
+     * @param cursor1
+     * @param attributes2
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply hscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException {
+        ScanArguments arguments = new ScanArguments(attributes2);
+        BytesKeyObjectMap<byte[]> hash = _gethash(key0, false);
+        List<byte[]> fields = new ArrayList<byte[]>();
+        long cursor = hash.scan(ScanArguments.cursor(cursor1), arguments.count, fields);
+        List<Reply> replies = new ArrayList<Reply>();
+        for (byte[] field : fields) {
+            if (arguments.matches(field)) {
+                replies.add(new BulkReply(field));
+                replies.add(new BulkReply(hash.get(field)));
+            }
+        }
+        return ScanArguments.reply(cursor, replies);
+    }
+
     /**
      * Post a message to a channel
      * Pubsub
@@ -2427,18 +2485,11 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public BulkReply spop(byte[] key0) throws RedisException {
-        if (mapField == null || tableField == null) {
-            throw new RedisException("Not supported");
-        }
         BytesKeySet set = _getset(key0, false);
         if (set.size() == 0) return BulkReply.NIL_REPLY;
-        try {
-            BytesKey key = getRandomKey((Map) mapField.get(set));
-            set.remove(key);
-            return new BulkReply(key.getBytes());
-        } catch (IllegalAccessException e) {
-            throw new RedisException("Not supported");
-        }
+        byte[] member = set.randomMember(r);
+        set.remove(member);
+        return new BulkReply(member);
     }
 
     /**
@@ -2450,39 +2501,32 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public Reply srandmember(byte[] key0, byte[] count1) throws RedisException {
-        if (mapField == null || tableField == null) {
-            throw new RedisException("Not supported");
-        }
         BytesKeySet set = _getset(key0, false);
         int size = set.size();
-        try {
-            if (count1 == null) {
-                if (size == 0) return BulkReply.NIL_REPLY;
-                BytesKey key = getRandomKey((Map) mapField.get(set));
-                return new BulkReply(key.getBytes());
+        if (count1 == null) {
+            if (size == 0) return BulkReply.NIL_REPLY;
+            return new BulkReply(set.randomMember(r));
+        } else {
+            int count = _toint(count1);
+            int distinct = count < 0 ? -1 : 1;
+            count *= distinct;
+            if (count > size && distinct > 0) count = size;
+            if (size == 0) count = 0;
+            Reply[] replies = new Reply[count];
+            Set<BytesKey> found;
+            if (distinct > 0) {
+                found = new HashSet<BytesKey>(count);
             } else {
-                int count = _toint(count1);
-                int distinct = count < 0 ? -1 : 1;
-                count *= distinct;
-                if (count > size && distinct > 0) count = size;
-                Reply[] replies = new Reply[count];
-                Set<BytesKey> found;
-                if (distinct > 0) {
-                    found = new HashSet<BytesKey>(count);
-                } else {
-                    found = null;
-                }
-                for (int i = 0; i < count; i++) {
-                    BytesKey key;
-                    do {
-                        key = getRandomKey((Map) mapField.get(set));
-                    } while (found != null && !found.add(key));
-                    replies[i] = new BulkReply(key.getBytes());
-                }
-                return new MultiBulkReply(replies);
+                found = null;
             }
-        } catch (IllegalAccessException e) {
-            throw new RedisException("Not supported");
+            for (int i = 0; i < count; i++) {
+                byte[] member;
+                do {
+                    member = set.randomMember(r);
+                } while (found != null && !found.add(new BytesKey(member)));
+                replies[i] = new BulkReply(member);
+            }
+            return new MultiBulkReply(replies);
         }
     }
 
@@ -2555,6 +2599,29 @@ public class SimpleRedisServer implements RedisServer {
         }
     }
 
+    /**
+     * Incrementally iterate Set elements
+     * Set
+     *
+     * @param key0
+     * @param cursor1
+     * @param attributes2
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply sscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException {
+        ScanArguments arguments = new ScanArguments(attributes2);
+        List<byte[]> members = new ArrayList<byte[]>();
+        long cursor = _getset(key0, false).scan(ScanArguments.cursor(cursor1), arguments.count, members);
+        List<Reply> replies = new ArrayList<Reply>();
+        for (byte[] member : members) {
+            if (arguments.matches(member)) {
+                replies.add(new BulkReply(member));
+            }
+        }
+        return ScanArguments.reply(cursor, replies);
+    }
+
     /**
      * Add one or more members to a sorted set, or update its score if it already exists
      * Sorted_set
@@ -2765,25 +2832,7 @@ public class SimpleRedisServer implements RedisServer {
         }
         boolean withscores = _checkcommand(withscores3, "withscores", true);
         ZSet zset = _getzset(key0, false);
-        int size = zset.size();
-        int start = _torange(start1, size);
-        int end = _torange(stop2, size);
-        Iterator<ZSetEntry> iterator = zset.iterator();
-        List<Reply<ByteBuf>> list = new ArrayList<Reply<ByteBuf>>();
-        for (int i = 0; i < size; i++) {
-            if (iterator.hasNext()) {
-                ZSetEntry next = iterator.next();
-                if (i >= start && i <= end) {
-                    list.add(new BulkReply(next.getKey().getBytes()));
-                    if (withscores) {
-                        list.add(new BulkReply(_tobytes(next.getScore())));
-                    }
-                } else if (i > end) {
-                    break;
-                }
-            }
-        }
-        return new MultiBulkReply(list.toArray(new Reply[list.size()]));
+        return _zrange(zset, start1, stop2, withscores, false);
     }
 
     private boolean _checkcommand(byte[] check, String command, boolean syntax) throws RedisException {
@@ -2893,8 +2942,8 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public Reply zrank(byte[] key0, byte[] member1) throws RedisException {
-        List<ZSetEntry> zset = _getzset(key0, false).list();
-        return _zrank(member1, zset);
+        int rank = _getzset(key0, false).rank(member1);
+        return rank == -1 ? BulkReply.NIL_REPLY : integer(rank);
     }
 
     /**
@@ -2932,19 +2981,11 @@ public class SimpleRedisServer implements RedisServer {
         ZSet zset = _getzset(key0, false);
         if (zset.isEmpty()) return integer(0);
         int size = zset.size();
-        int start = _torange(start1, size);
+        int start = Math.max(_torange(start1, size), 0);
         int end = _torange(stop2, size);
-        Iterator<ZSetEntry> iterator = zset.iterator();
         List<ZSetEntry> list = new ArrayList<ZSetEntry>();
-        for (int i = 0; i < size; i++) {
-            if (iterator.hasNext()) {
-                ZSetEntry next = iterator.next();
-                if (i >= start && i <= end) {
-                    list.add(next);
-                } else if (i > end) {
-                    break;
-                }
-            }
+        for (ZSetEntry next : zset.subSet(start, end)) {
+            list.add(next);
         }
         int total = 0;
         for (ZSetEntry zSetEntry : list) {
@@ -2997,22 +3038,20 @@ public class SimpleRedisServer implements RedisServer {
         }
         boolean withscores = _checkcommand(withscores3, "withscores", true);
         ZSet zset = _getzset(key0, false);
+        return _zrange(zset, start1, stop2, withscores, true);
+    }
+
+    private MultiBulkReply _zrange(ZSet zset, byte[] start1, byte[] stop2, boolean withscores, boolean reverse) throws RedisException {
         int size = zset.size();
-        int end = size - _torange(start1, size) - 1;
-        int start = size - _torange(stop2, size) - 1;
-        Iterator<ZSetEntry> iterator = zset.iterator();
+        int start = Math.max(_torange(start1, size), 0);
+        int end = _torange(stop2, size);
+        Iterator<ZSetEntry> iterator = zset.iterator(start, reverse);
         List<Reply<ByteBuf>> list = new ArrayList<Reply<ByteBuf>>();
-        for (int i = 0; i < size; i++) {
-            if (iterator.hasNext()) {
-                ZSetEntry next = iterator.next();
-                if (i >= start && i <= end) {
-                    list.add(0, new BulkReply(next.getKey().getBytes()));
-                    if (withscores) {
-                        list.add(1, new BulkReply(_tobytes(next.getScore())));
-                    }
-                } else if (i > end) {
-                    break;
-                }
+        for (int i = start; i <= end && iterator.hasNext(); i++) {
+            ZSetEntry next = iterator.next();
+            list.add(new BulkReply(next.getKey().getBytes()));
+            if (withscores) {
+                list.add(new BulkReply(_tobytes(next.getScore())));
             }
         }
         return new MultiBulkReply(list.toArray(new Reply[list.size()]));
@@ -3046,21 +3085,9 @@ public class SimpleRedisServer implements RedisServer {
      */
     @Override
     public Reply zrevrank(byte[] key0, byte[] member1) throws RedisException {
-        List<ZSetEntry> zset = _getzset(key0, false).list();
-        Collections.reverse(zset);
-        return _zrank(member1, zset);
-    }
-
-    private Reply _zrank(byte[] member1, List<ZSetEntry> zset) {
-        BytesKey member = new BytesKey(member1);
-        int position = 0;
-        for (ZSetEntry entry : zset) {
-            if (entry.getKey().equals(member)) {
-                return integer(position);
-            }
-            position++;
-        }
-        return BulkReply.NIL_REPLY;
+        ZSet zset = _getzset(key0, false);
+        int rank = zset.rank(member1);
+        return rank == -1 ? BulkReply.NIL_REPLY : integer(zset.size() - 1 - rank);
     }
 
     /**
@@ -3096,4 +3123,52 @@ public class SimpleRedisServer implements RedisServer {
     public IntegerReply zunionstore(byte[] destination0, byte[] numkeys1, byte[][] key2) throws RedisException {
         return _zstore(destination0, numkeys1, key2, "zunionstore", true);
     }
+
+    /**
+     * Incrementally iterate sorted sets elements and associated scores
+     * Sorted_set
+     *
+     * @param key0
+     * @param cursor1
+     * @param attributes2
+     * @return MultiBulkReply
+     */
+    @Override
+    public MultiBulkReply zscan(byte[] key0, byte[] cursor1, byte[][] attributes2) throws RedisException {
+        // the cursor is the score and member of the last entry returned, so
+        // changes to the set before it don't shift the scan
+        byte[] after = ScanArguments.resume(cursor1);
+        ScanArguments arguments = new ScanArguments(attributes2);
+        ZSet zset = _getzset(key0, false);
+        Iterator<ZSetEntry> iterator = after == null ? zset.iterator() : zset.iteratorAfter(_zsetentry(after));
+        List<Reply> replies = new ArrayList<Reply>();
+        ZSetEntry entry = null;
+        for (int i = 0; i < arguments.count && iterator.hasNext(); i++) {
+            entry = iterator.next();
+            byte[] member = entry.getKey().getBytes();
+            if (arguments.matches(member)) {
+                replies.add(new BulkReply(member));
+                replies.add(new BulkReply(_tobytes(entry.getScore())));
+            }
+        }
+        return ScanArguments.reply(iterator.hasNext() ? _zsetcursor(entry) : null, replies);
+    }
+
+    // The score's bits followed by the member
+    private static byte[] _zsetcursor(ZSetEntry entry) {
+        byte[] member = entry.getKey().getBytes();
+        return ByteBuffer.allocate(8 + member.length)
+                .putLong(Double.doubleToLongBits(entry.getScore()))
+                .put(member)
+                .array();
+    }
+
+    private static ZSetEntry _zsetentry(byte[] cursor) throws RedisException {
+        if (cursor.length < 8) {
+            throw new RedisException("invalid cursor");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(cursor);
+        double score = Double.longBitsToDouble(buffer.getLong());
+        return new ZSetEntry(new BytesKey(Arrays.copyOfRange(cursor, 8, cursor.length)), score);
+    }
 }
@@ -0,0 +1,565 @@
+package redis.server.backend.simple;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import redis.util.BytesKey;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * The keyspace of a {@link SimpleRedisServer} as it was when the snapshot was
+ * taken, written to a file while commands go on running.
+ * <p/>
+ * Taking it copies the slots of the key and expiration tables, not the values.
+ * The values are serialized a step at a time on the thread executing commands
+ * and only the file is written on another thread. The server lets the snapshot
+ * serialize a key before a command gets at its value, so a value changed later
+ * is always written as it was. Each value is serialized at most once. A large
+ * collection is written in parts over several steps, unless a command gets at it
+ * first, which writes what is left of it right away.
+ * <p/>
+ * The file is a header followed by blocks of whole entries, each with its length
+ * and a CRC32, so they can be checked and decoded in parallel when loading. The
+ * parts of a collection are entries of their own, after it but not always right
+ * after, merged back when restoring.
+ */
+class Snapshot {
+    private static final byte[] MAGIC = "REDISNAP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+
+    private static final int STRING = 0;
+    private static final int HASH = 1;
+    private static final int SET = 2;
+    private static final int ZSET = 3;
+    private static final int LIST = 4;
+    // flag on the type of an entry followed by its expiration
+    private static final int EXPIRES = 0x80;
+    // flag on the type of the first part of a collection that has more
+    private static final int SPLIT = 0x40;
+    // flag on the type of the next parts, which have neither flag above
+    private static final int PART = 0x20;
+
+    // entries are added to a block until it is at least this big
+    static final int BLOCK_SIZE = 64 * 1024;
+    // length and checksum in front of a block
+    private static final int BLOCK_HEADER = 8;
+    // bytes serialized per step on the command thread, bounding how long it is held up
+    private static final int STEP_SIZE = 256 * 1024;
+
+    private final BytesKeyTable<Object> pending;
+    private final BytesKeyTable<Long> expirations;
+    private final Iterator<byte[]> keys;
+    // the collection being written in parts, if any
+    private Part open;
+    // entries that expired before this are left out
+    private final long taken = System.currentTimeMillis();
+    private ByteBuf block = block();
+    private List<ByteBuf> sealed = new ArrayList<ByteBuf>();
+    private int serialized;
+    private long count;
+
+    Snapshot(BytesKeyTable<Object> data, BytesKeyTable<Long> expires) {
+        pending = data.copy();
+        expirations = expires.copy();
+        keys = pending.iterator();
+    }
+
+    /**
+     * Writes key now if it hasn't been yet. Called before a command gets at its
+     * value, on the thread executing commands.
+     */
+    void touch(byte[] key) {
+        if (open != null && Arrays.equals(open.key, key)) {
+            elements(open, true);
+            open = null;
+            return;
+        }
+        Object value = pending.take(key);
+        if (value != null) {
+            append(key, value, true);
+        }
+    }
+
+    /**
+     * Serializes the next entries, on the thread executing commands.
+     *
+     * @return the blocks filled since the last step, none once every entry was
+     */
+    List<ByteBuf> step() {
+        while (serialized < STEP_SIZE && (open != null || keys.hasNext())) {
+            if (open != null) {
+                if (elements(open, false)) {
+                    open = null;
+                }
+                continue;
+            }
+            byte[] key = keys.next();
+            Object value = pending.take(key);
+            if (value != null) {
+                open = append(key, value, false);
+            }
+        }
+        if (open == null && !keys.hasNext() && block.writerIndex() > BLOCK_HEADER) {
+            seal();
+        }
+        List<ByteBuf> filled = sealed;
+        sealed = new ArrayList<ByteBuf>();
+        serialized = 0;
+        return filled;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and renames it to file once it is
+     * complete. The steps are run on commands while the previous blocks are
+     * written, or right here if commands is null, which blocks them meanwhile.
+     */
+    void write(File file, Executor commands) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            ByteBuf header = Unpooled.buffer(MAGIC.length + 4);
+            header.writeBytes(MAGIC);
+            header.writeInt(VERSION);
+            write(out, header);
+            List<ByteBuf> blocks = step(commands);
+            while (!blocks.isEmpty()) {
+                Future<List<ByteBuf>> next = commands == null ? null : submit(commands);
+                for (ByteBuf block : blocks) {
+                    write(out, block);
+                }
+                blocks = next == null ? step() : get(next);
+            }
+            ByteBuf trailer = Unpooled.buffer(12);
+            trailer.writeInt(0);
+            trailer.writeLong(count);
+            write(out, trailer);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<ByteBuf> step(Executor commands) throws IOException {
+        return commands == null ? step() : get(submit(commands));
+    }
+
+    private Future<List<ByteBuf>> submit(Executor commands) {
+        FutureTask<List<ByteBuf>> task = new FutureTask<List<ByteBuf>>(new Callable<List<ByteBuf>>() {
+            @Override
+            public List<ByteBuf> call() {
+                return step();
+            }
+        });
+        commands.execute(task);
+        return task;
+    }
+
+    private static void write(FileOutputStream out, ByteBuf buf) throws IOException {
+        try {
+            buf.getBytes(0, out, buf.writerIndex());
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * Writes the entry of key, or only its first part if whole is false and the
+     * step is done before the rest.
+     *
+     * @return the collection left to write, or null
+     */
+    private Part append(byte[] key, Object value, boolean whole) {
+        int before = block.writerIndex();
+        int type = type(value);
+        Long expiration = expirations.get(key);
+        if (expiration != null) {
+            if (expiration < taken) {
+                return null;
+            }
+            block.writeByte(type | EXPIRES);
+            block.writeLong(expiration);
+        } else {
+            block.writeByte(type);
+        }
+        bytes(block, key);
+        count++;
+        if (type == STRING) {
+            bytes(block, (byte[]) value);
+            serialized += block.writerIndex() - before;
+            if (block.writerIndex() >= BLOCK_SIZE) {
+                seal();
+            }
+            return null;
+        }
+        serialized += block.writerIndex() - before;
+        Part part = new Part(key, type, value, before);
+        return elements(part, whole) ? null : part;
+    }
+
+    /**
+     * Writes the elements of part, starting a new part whenever a block is full,
+     * until there are no more or, unless whole is set, the step is done.
+     *
+     * @return whether every element was written
+     */
+    private boolean elements(Part part, boolean whole) {
+        while (whole || serialized < STEP_SIZE) {
+            int before = block.writerIndex();
+            if (part.header < 0) {
+                block.writeByte(part.type | PART);
+                bytes(block, part.key);
+                count++;
+            }
+            int counted = block.writerIndex();
+            block.writeInt(0);
+            int written = 0;
+            while (part.elements.hasNext() && block.writerIndex() < BLOCK_SIZE &&
+                    (whole || serialized + block.writerIndex() - before < STEP_SIZE)) {
+                element(part.type, part.elements.next());
+                written++;
+            }
+            block.setInt(counted, written);
+            boolean more = part.elements.hasNext();
+            if (more && part.header >= 0) {
+                block.setByte(part.header, block.getByte(part.header) | SPLIT);
+            }
+            part.header = -1;
+            serialized += block.writerIndex() - before;
+            if (block.writerIndex() >= BLOCK_SIZE) {
+                seal();
+            }
+            if (!more) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void element(int type, Object element) {
+        switch (type) {
+            case HASH: {
+                @SuppressWarnings("unchecked")
+                Map.Entry<Object, byte[]> entry = (Map.Entry<Object, byte[]>) element;
+                bytes(block, ((BytesKey) entry.getKey()).getBytes());
+                bytes(block, entry.getValue());
+                break;
+            }
+            case SET:
+                bytes(block, ((BytesKey) element).getBytes());
+                break;
+            case ZSET: {
+                ZSetEntry entry = (ZSetEntry) element;
+                bytes(block, entry.getKey().getBytes());
+                block.writeDouble(entry.getScore());
+                break;
+            }
+            default:
+                bytes(block, (byte[]) element);
+        }
+    }
+
+    private static int type(Object value) {
+        if (value instanceof byte[]) {
+            return STRING;
+        } else if (value instanceof BytesKeyObjectMap) {
+            return HASH;
+        } else if (value instanceof BytesKeySet) {
+            return SET;
+        } else if (value instanceof ZSet) {
+            return ZSET;
+        } else if (value instanceof QuickList) {
+            return LIST;
+        }
+        throw new IllegalStateException("Can't snapshot " + value.getClass());
+    }
+
+    private static ByteBuf block() {
+        ByteBuf block = Unpooled.buffer(BLOCK_SIZE + BLOCK_SIZE / 4);
+        block.writerIndex(BLOCK_HEADER);
+        return block;
+    }
+
+    private void seal() {
+        int length = block.writerIndex() - BLOCK_HEADER;
+        CRC32 crc = new CRC32();
+        crc.update(block.array(), block.arrayOffset() + BLOCK_HEADER, length);
+        block.setInt(0, length);
+        block.setInt(4, (int) crc.getValue());
+        sealed.add(block);
+        block = block();
+    }
+
+    private static void bytes(ByteBuf buf, byte[] bytes) {
+        varint(buf, bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    private static void varint(ByteBuf buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // A collection being written
+    private static class Part {
+        final byte[] key;
+        final int type;
+        final Iterator<?> elements;
+        // where the type of its first part is, until it is written
+        int header;
+
+        Part(byte[] key, int type, Object value, int header) {
+            this.key = key;
+            this.type = type;
+            this.header = header;
+            if (value instanceof BytesKeyObjectMap) {
+                elements = ((BytesKeyObjectMap<?>) value).entrySet().iterator();
+            } else {
+                elements = ((Iterable<?>) value).iterator();
+            }
+        }
+    }
+
+    // A decoded entry
+    private static class Entry {
+        final byte[] key;
+        final Object value;
+        final Long expiration;
+        final int flags;
+
+        Entry(byte[] key, Object value, Long expiration, int flags) {
+            this.key = key;
+            this.value = value;
+            this.expiration = expiration;
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * Loads file into server. The blocks are read here and decoded on threads,
+     * then restored here in the order they were read.
+     *
+     * @return the number of keys loaded, leaving out the ones expired since
+     */
+    static long load(File file, int threads, SimpleRedisServer server) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 4 * BLOCK_SIZE));
+        ExecutorService decoders = Executors.newFixedThreadPool(threads);
+        Deque<Future<List<Entry>>> decoding = new ArrayDeque<Future<List<Entry>>>();
+        Restore restore = new Restore(server);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unknown snapshot version " + version);
+            }
+            int length;
+            while ((length = in.readInt()) != 0) {
+                final int crc = in.readInt();
+                final byte[] block = new byte[length];
+                in.readFully(block);
+                // bounds the blocks in memory
+                if (decoding.size() == 2 * threads) {
+                    restore.add(get(decoding.removeFirst()));
+                }
+                decoding.add(decoders.submit(new Callable<List<Entry>>() {
+                    @Override
+                    public List<Entry> call() throws IOException {
+                        return decode(block, crc);
+                    }
+                }));
+            }
+            long count = in.readLong();
+            while (!decoding.isEmpty()) {
+                restore.add(get(decoding.removeFirst()));
+            }
+            if (restore.decoded != count) {
+                throw new IOException("Snapshot has " + restore.decoded + " entries instead of " + count);
+            }
+            return restore.restored;
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated", e);
+        } finally {
+            decoders.shutdownNow();
+            in.close();
+        }
+    }
+
+    // Restores decoded entries in order, merging the parts of collections
+    private static class Restore {
+        private final SimpleRedisServer server;
+        private final long now = System.currentTimeMillis();
+        // the collections with parts still to come, by key, null if they expired
+        private final Map<BytesKey, Object> split = new HashMap<BytesKey, Object>();
+        long decoded;
+        long restored;
+
+        Restore(SimpleRedisServer server) {
+            this.server = server;
+        }
+
+        void add(List<Entry> entries) throws IOException {
+            for (Entry entry : entries) {
+                decoded++;
+                boolean expired = entry.expiration != null && entry.expiration < now;
+                if ((entry.flags & PART) != 0) {
+                    BytesKey key = new BytesKey(entry.key);
+                    if (!split.containsKey(key)) {
+                        throw new IOException("Snapshot has a part without its collection");
+                    }
+                    Object value = split.get(key);
+                    if (value != null) {
+                        merge(value, entry.value);
+                    }
+                    continue;
+                }
+                if ((entry.flags & SPLIT) != 0) {
+                    split.put(new BytesKey(entry.key), expired ? null : entry.value);
+                }
+                if (!expired) {
+                    server._restore(entry.key, entry.value, entry.expiration);
+                    restored++;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void merge(Object value, Object part) {
+        if (value instanceof BytesKeyObjectMap) {
+            ((BytesKeyObjectMap<byte[]>) value).putAll((BytesKeyObjectMap<byte[]>) part);
+        } else if (value instanceof BytesKeySet) {
+            ((BytesKeySet) value).addAll((BytesKeySet) part);
+        } else if (value instanceof ZSet) {
+            for (ZSetEntry entry : (ZSet) part) {
+                ((ZSet) value).add(entry.getKey(), entry.getScore());
+            }
+        } else {
+            for (byte[] element : (QuickList) part) {
+                ((QuickList) value).addLast(element);
+            }
+        }
+    }
+
+    private static List<Entry> decode(byte[] block, int crc) throws IOException {
+        CRC32 actual = new CRC32();
+        actual.update(block);
+        if ((int) actual.getValue() != crc) {
+            throw new IOException("Snapshot block is corrupt");
+        }
+        ByteBuf buf = Unpooled.wrappedBuffer(block);
+        List<Entry> entries = new ArrayList<Entry>();
+        try {
+            while (buf.isReadable()) {
+                int type = buf.readUnsignedByte();
+                Long expiration = (type & EXPIRES) != 0 ? buf.readLong() : null;
+                byte[] key = bytes(buf);
+                int flags = type & (EXPIRES | SPLIT | PART);
+                entries.add(new Entry(key, value(buf, type & ~flags), expiration, flags));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Snapshot block is corrupt", e);
+        }
+        return entries;
+    }
+
+    private static Object value(ByteBuf buf, int type) throws IOException {
+        switch (type) {
+            case STRING:
+                return bytes(buf);
+            case HASH: {
+                BytesKeyObjectMap<byte[]> hash = new BytesKeyObjectMap<byte[]>();
+                for (int i = buf.readInt(); i > 0; i--) {
+                    hash.put(bytes(buf), bytes(buf));
+                }
+                return hash;
+            }
+            case SET: {
+                BytesKeySet set = new BytesKeySet();
+                for (int i = buf.readInt(); i > 0; i--) {
+                    set.add(bytes(buf));
+                }
+                return set;
+            }
+            case ZSET: {
+                ZSet zset = new ZSet();
+                for (int i = buf.readInt(); i > 0; i--) {
+                    zset.add(new BytesKey(bytes(buf)), buf.readDouble());
+                }
+                return zset;
+            }
+            case LIST: {
+                QuickList list = new QuickList();
+                for (int i = buf.readInt(); i > 0; i--) {
+                    list.addLast(bytes(buf));
+                }
+                return list;
+            }
+            default:
+                throw new IOException("Unknown snapshot entry type " + type);
+        }
+    }
+
+    private static byte[] bytes(ByteBuf buf) {
+        byte[] bytes = new byte[varint(buf)];
+        buf.readBytes(bytes);
+        return bytes;
+    }
+
+    private static int varint(ByteBuf buf) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
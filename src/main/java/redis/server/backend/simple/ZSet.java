@@ -1,6 +1,7 @@
 package redis.server.backend.simple;
 
 import redis.util.BytesKey;
+import redis.util.SkipList;
 
 import java.util.*;
 
@@ -14,14 +15,22 @@ import java.util.*;
 public class ZSet implements Iterable<ZSetEntry> {
 
     private static final BytesKey EMPTY = new BytesKey(new byte[0]);
+    private static final Comparator<ZSetEntry> ORDER = new Comparator<ZSetEntry>() {
+        @Override
+        public int compare(ZSetEntry o1, ZSetEntry o2) {
+            return o1.compareTo(o2);
+        }
+    };
     // A way to find an entry by key
     private BytesKeyObjectMap<ZSetEntry> map = new BytesKeyObjectMap<ZSetEntry>();
-    // A list that we keep sorted by score
-    private List<ZSetEntry> list = new ArrayList<ZSetEntry>();
+    // Sorted by score then key, and counted so ranks are O(log n)
+    private SkipList<ZSetEntry> list = new SkipList<ZSetEntry>(ORDER);
 
     public ZSet(ZSet destination) {
         map.putAll(destination.map);
-        list.addAll(destination.list);
+        for (ZSetEntry entry : destination.list) {
+            list.add(entry);
+        }
     }
 
     public ZSet() {
@@ -44,20 +53,31 @@ public class ZSet implements Iterable<ZSetEntry> {
         return list.iterator();
     }
 
-    public ZSetEntry get(BytesKey key) {
-        return map.get(key);
+    /**
+     * Iterates from rank, counted from the highest score when descending.
+     */
+    public Iterator<ZSetEntry> iterator(int rank, boolean descending) {
+        return list.iterator(rank, descending);
     }
 
-    public List<ZSetEntry> list() {
-        return list;
+    /**
+     * Iterates upwards from the first entry after the given one, which needn't be
+     * in the set.
+     */
+    public Iterator<ZSetEntry> iteratorAfter(ZSetEntry entry) {
+        return list.iterator(entry, false);
     }
 
-    private static class ScoreComparator implements Comparator<ZSetEntry> {
-        @Override
-        public int compare(ZSetEntry o1, ZSetEntry o2) {
-            double value = o1.getScore() - o2.getScore();
-            return value < 0 ? -1 : value == (o1.getKey().compareTo(o2.getKey())) ? 0 : 1;
-        }
+    public ZSetEntry get(BytesKey key) {
+        return map.get(key);
+    }
+
+    /**
+     * @return the rank of member by ascending score or -1 if it isn't there
+     */
+    public int rank(byte[] member) {
+        ZSetEntry entry = map.get(member);
+        return entry == null ? -1 : list.rank(entry);
     }
 
     public void addAll(ZSet other) {
@@ -67,46 +87,49 @@ public class ZSet implements Iterable<ZSetEntry> {
         }
     }
 
+    /**
+     * @return true if key was there
+     */
     public boolean remove(BytesKey key) {
-        ZSetEntry current = map.get(key);
+        ZSetEntry current = map.remove(key);
         if (current != null) {
-            map.remove(key);
-            int index = Collections.binarySearch(list, current);
-            list.remove(index);
+            list.remove(current);
         }
-        return current == null;
+        return current != null;
     }
 
+    /**
+     * @return true if key wasn't there yet
+     */
     public boolean add(BytesKey key, double score) {
         ZSetEntry current = map.get(key);
         if (current != null) {
-            map.remove(key);
-            int index = Collections.binarySearch(list, current);
-            list.remove(index);
+            list.remove(current);
         }
         ZSetEntry entry = new ZSetEntry(key, score);
         map.put(key, entry);
-        int index = find(Collections.binarySearch(list, entry));
-        list.add(index, entry);
+        list.add(entry);
         return current == null;
     }
 
     public Iterable<ZSetEntry> subSet(final int minIndex, int maxIndex) {
-        final int finalMaxIndex = Math.min(maxIndex, list.size() - 1);
+        final int count = Math.min(maxIndex, list.size() - 1) - minIndex + 1;
         return new Iterable<ZSetEntry>() {
             @Override
             public Iterator<ZSetEntry> iterator() {
+                final Iterator<ZSetEntry> iterator = list.iterator(minIndex, false);
                 return new Iterator<ZSetEntry>() {
-                    int min = minIndex;
+                    int remaining = count;
 
                     @Override
                     public boolean hasNext() {
-                        return min <= finalMaxIndex;
+                        return remaining > 0 && iterator.hasNext();
                     }
 
                     @Override
                     public ZSetEntry next() {
-                        return list.get(min++);
+                        remaining--;
+                        return iterator.next();
                     }
 
                     @Override
@@ -121,16 +144,19 @@ public class ZSet implements Iterable<ZSetEntry> {
         return list.size() == 0;
     }
 
+    /**
+     * @return a copy of the entries with a score from min to max, both included
+     */
     public List<ZSetEntry> subSet(double min, double max) {
-        int minIndex = find(Collections.binarySearch(list, new ZSetEntry(EMPTY, min)));
-        int maxIndex = find(Collections.binarySearch(list, new ZSetEntry(EMPTY, max)));
-        if (list.get(maxIndex).getScore() > max) {
-            maxIndex = maxIndex - 1;
+        List<ZSetEntry> entries = new ArrayList<ZSetEntry>();
+        Iterator<ZSetEntry> iterator = list.iterator(new ZSetEntry(EMPTY, min));
+        while (iterator.hasNext()) {
+            ZSetEntry entry = iterator.next();
+            if (entry.getScore() > max) {
+                break;
+            }
+            entries.add(entry);
         }
-        return list.subList(minIndex, maxIndex + 1);
-    }
-
-    private int find(int minIndex) {
-        return minIndex < 0 ? -(minIndex + 1) : minIndex;
+        return entries;
     }
 }
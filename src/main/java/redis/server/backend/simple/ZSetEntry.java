@@ -28,10 +28,14 @@ public class ZSetEntry implements Comparable<ZSetEntry> {
         this.score = score;
     }
 
+    /**
+     * By score, then by key for equal scores.
+     */
     @Override
     public int compareTo(ZSetEntry o) {
-        double diff = score - o.score;
-        return diff < 0 ? -1 : diff == 0 ? 0 : 1;
+        // not by subtracting, which is NaN for two infinite scores of the same sign
+        int order = Double.compare(score, o.score);
+        return order != 0 ? order : key.compareTo(o.key);
     }
 
     public BytesKey getKey() {
@@ -7,6 +7,7 @@ import io.netty.buffer.Unpooled;
 import java.io.IOException;
 import java.nio.charset.Charset;
 
+import static redis.util.Encoding.numLength;
 import static redis.util.Encoding.numToBytes;
 
 public class BulkReply implements Reply<ByteBuf> {
@@ -56,11 +57,17 @@ public class BulkReply implements Reply<ByteBuf> {
         os.writeByte(MARKER);
         os.writeBytes(numToBytes(capacity, true));
         if (capacity > 0) {
-            os.writeBytes(bytes);
+            // Don't consume the data, the same reply may be written more than once
+            os.writeBytes(bytes, bytes.readerIndex(), capacity);
             os.writeBytes(CRLF);
         }
     }
 
+    @Override
+    public int encodedLength() {
+        return 1 + numLength(capacity, true) + (capacity > 0 ? capacity + 2 : 0);
+    }
+
     public String toString() {
         return asUTF8String();
     }
@@ -0,0 +1,60 @@
+package redis.server.reply;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.io.IOException;
+
+import static redis.util.Encoding.numToBytes;
+
+/**
+ * Nested replies encoded while they are written, so a huge hash or set is never
+ * held in memory encoded all at once.
+ * <p/>
+ * The replies are all taken when the command runs, so the reply holds what the
+ * collection held then whatever happens to it before it is written. They stay
+ * in memory until written: only the encoding is chunked, not the reading. Written
+ * through a {@link io.netty.handler.stream.ChunkedWriteHandler}, which pulls about
+ * CHUNK_SIZE bytes at a time and only while the channel is writable. The reply
+ * can only be streamed once.
+ */
+public class ChunkedMultiBulkReply extends MultiBulkReply implements ChunkedInput<ByteBuf> {
+    public static final int CHUNK_SIZE = 8 * 1024;
+
+    // elements written so far, -1 until the count is
+    private int written = -1;
+
+    public ChunkedMultiBulkReply(Reply[] replies) {
+        super(replies);
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return written == data().length;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws IOException {
+        Reply[] replies = data();
+        ByteBuf buf = ctx.alloc().buffer(CHUNK_SIZE);
+        try {
+            if (written == -1) {
+                buf.writeByte(MARKER);
+                buf.writeBytes(numToBytes(replies.length, true));
+                written = 0;
+            }
+            while (written < replies.length && buf.writerIndex() < CHUNK_SIZE) {
+                replies[written++].write(buf);
+            }
+            return buf;
+        } catch (IOException | RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+}
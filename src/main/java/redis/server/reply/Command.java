@@ -68,6 +68,13 @@ public class Command {
         return getBytes(objects[0]);
     }
 
+    /**
+     * The name as it was given (byte[], ByteBuf, String...), without copying it.
+     */
+    public Object getNameObject() {
+        return name != null ? name : objects[0];
+    }
+
     public boolean isInline() {
         return inline;
     }
@@ -79,7 +86,14 @@ public class Command {
         } else if (object instanceof byte[]) {
             argument = (byte[]) object;
         } else if (object instanceof ByteBuf) {
-            argument = ((ByteBuf) object).array();
+            ByteBuf buf = (ByteBuf) object;
+            int length = buf.readableBytes();
+            if (buf.hasArray() && buf.arrayOffset() + buf.readerIndex() == 0 && buf.array().length == length) {
+                argument = buf.array();
+            } else {
+                argument = new byte[length];
+                buf.getBytes(buf.readerIndex(), argument);
+            }
         } else if (object instanceof String) {
             argument = ((String) object).getBytes(Charsets.UTF_8);
         } else {
@@ -88,6 +102,32 @@ public class Command {
         return argument;
     }
 
+    /**
+     * Number of arguments, including the command name.
+     */
+    public int argc() {
+        return objects.length;
+    }
+
+    /**
+     * @return argument index (the name is 0) or null if it wasn't sent
+     */
+    public byte[] getArgument(int index) {
+        return index < objects.length ? getBytes(objects[index]) : null;
+    }
+
+    /**
+     * @return every argument from index on
+     */
+    public byte[][] getArguments(int index) {
+        int left = Math.max(objects.length - index, 0);
+        byte[][] arguments = new byte[left][];
+        for (int i = 0; i < left; i++) {
+            arguments[i] = getBytes(objects[index + i]);
+        }
+        return arguments;
+    }
+
     public void toArguments(Object[] arguments, Class<?>[] types) {
         int position = 0;
         for (Class<?> type : types) {
@@ -96,13 +136,13 @@ public class Command {
                     throw new IllegalArgumentException("wrong number of arguments for '" + new String(getName()) + "' command");
                 }
                 if (objects.length - 1 > position) {
-                    arguments[position] = objects[1 + position];
+                    arguments[position] = getBytes(objects[1 + position]);
                 }
             } else {
                 int left = objects.length - position - 1;
                 byte[][] lastArgument = new byte[left][];
                 for (int i = 0; i < left; i++) {
-                    lastArgument[i] = (byte[]) objects[i + position + 1];
+                    lastArgument[i] = getBytes(objects[i + position + 1]);
                 }
                 arguments[position] = lastArgument;
             }
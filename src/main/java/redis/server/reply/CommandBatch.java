@@ -0,0 +1,11 @@
+package redis.server.reply;
+
+import java.util.ArrayList;
+
+/**
+ * All the commands decoded from a single read, executed together so a pipeline
+ * costs one executor hand-off instead of one per command.
+ */
+public class CommandBatch extends ArrayList<Command> {
+    private static final long serialVersionUID = 1L;
+}
@@ -10,9 +10,11 @@ public class ErrorReply implements Reply<String> {
     public static final char MARKER = '-';
     public static final ErrorReply NYI_REPLY = new ErrorReply("Not yet implemented");
     private final String error;
+    private final byte[] errorBytes;
 
     public ErrorReply(String error) {
         this.error = error;
+        this.errorBytes = error.getBytes(Charsets.UTF_8);
     }
 
     @Override
@@ -23,10 +25,15 @@ public class ErrorReply implements Reply<String> {
     @Override
     public void write(ByteBuf os) throws IOException {
         os.writeByte(MARKER);
-        os.writeBytes(error.getBytes(Charsets.UTF_8));
+        os.writeBytes(errorBytes);
         os.writeBytes(CRLF);
     }
 
+    @Override
+    public int encodedLength() {
+        return 1 + errorBytes.length + 2;
+    }
+
     public String toString() {
         return error;
     }
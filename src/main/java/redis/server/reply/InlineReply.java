@@ -5,12 +5,14 @@ import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
 
+import static redis.util.Encoding.numLength;
 import static redis.util.Encoding.numToBytes;
 
 /**
  * Return the reply inline when you get an inline message.
  */
 public class InlineReply implements Reply<Object> {
+    private static final byte[] INVALID = "ERR invalid inline response".getBytes(Charsets.US_ASCII);
 
     private final Object o;
 
@@ -29,11 +31,12 @@ public class InlineReply implements Reply<Object> {
             os.writeBytes(CRLF);
         } else if (o instanceof String) {
             os.writeByte('+');
-            os.writeBytes(((String) o).getBytes(Charsets.US_ASCII));
+            os.writeBytes(((String) o).getBytes(Charsets.UTF_8));
             os.writeBytes(CRLF);
         } else if (o instanceof ByteBuf) {
             os.writeByte('+');
-            os.writeBytes(((ByteBuf) o).array());
+            ByteBuf buf = (ByteBuf) o;
+            os.writeBytes(buf, buf.readerIndex(), buf.readableBytes());
             os.writeBytes(CRLF);
         } else if (o instanceof byte[]) {
             os.writeByte('+');
@@ -43,8 +46,47 @@ public class InlineReply implements Reply<Object> {
             os.writeByte(':');
             os.writeBytes(numToBytes((Long) o, true));
         } else {
-            os.writeBytes("ERR invalid inline response".getBytes(Charsets.US_ASCII));
+            os.writeBytes(INVALID);
             os.writeBytes(CRLF);
         }
     }
+
+    @Override
+    public int encodedLength() {
+        if (o == null) {
+            return 2;
+        } else if (o instanceof String) {
+            return 1 + utf8Length((String) o) + 2;
+        } else if (o instanceof ByteBuf) {
+            return 1 + ((ByteBuf) o).readableBytes() + 2;
+        } else if (o instanceof byte[]) {
+            return 1 + ((byte[]) o).length + 2;
+        } else if (o instanceof Long) {
+            return 1 + numLength((Long) o, true);
+        } else {
+            return INVALID.length + 2;
+        }
+    }
+
+    // What getBytes(UTF_8) would return the length of, without encoding
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // encoded as ?
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
 }
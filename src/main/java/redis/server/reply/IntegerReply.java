@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import io.netty.buffer.ByteBuf;
 
+import static redis.util.Encoding.numLength;
 import static redis.util.Encoding.numToBytes;
 
 /**
@@ -48,6 +49,11 @@ public class IntegerReply implements Reply<Long> {
         os.writeBytes(numToBytes(integer, true));
     }
 
+    @Override
+    public int encodedLength() {
+        return 1 + numLength(integer, true);
+    }
+
     public String toString() {
         return data().toString();
     }
@@ -9,6 +9,7 @@ import java.util.*;
 
 import static redis.server.reply.RedisReplyDecoder.readLong;
 import static redis.util.Encoding.NEG_ONE_WITH_CRLF;
+import static redis.util.Encoding.numLength;
 import static redis.util.Encoding.numToBytes;
 
 /**
@@ -17,6 +18,7 @@ import static redis.util.Encoding.numToBytes;
 public class MultiBulkReply implements Reply<Reply[]> {
     public static final char MARKER = '*';
     public static final MultiBulkReply EMPTY = new MultiBulkReply(new Reply[0]);
+    public static final MultiBulkReply NIL_REPLY = new MultiBulkReply();
 
     private Reply[] replies;
     private int size = -2;
@@ -61,6 +63,7 @@ public class MultiBulkReply implements Reply<Reply[]> {
 
     @Override
     public void write(ByteBuf os) throws IOException {
+        Reply[] replies = data();
         os.writeByte(MARKER);
         if (replies == null) {
             os.writeBytes(NEG_ONE_WITH_CRLF);
@@ -72,7 +75,21 @@ public class MultiBulkReply implements Reply<Reply[]> {
         }
     }
 
+    @Override
+    public int encodedLength() {
+        Reply[] replies = data();
+        if (replies == null) {
+            return 1 + NEG_ONE_WITH_CRLF.length;
+        }
+        int length = 1 + numLength(replies.length, true);
+        for (Reply reply : replies) {
+            length += reply.encodedLength();
+        }
+        return length;
+    }
+
     public List<String> asStringList(Charset charset) {
+        Reply[] replies = data();
         if (replies == null) return null;
         List<String> strings = new ArrayList<String>(replies.length);
         for (Reply reply : replies) {
@@ -86,6 +103,7 @@ public class MultiBulkReply implements Reply<Reply[]> {
     }
 
     public Set<String> asStringSet(Charset charset) {
+        Reply[] replies = data();
         if (replies == null) return null;
         Set<String> strings = new HashSet<String>(replies.length);
         for (Reply reply : replies) {
@@ -99,6 +117,7 @@ public class MultiBulkReply implements Reply<Reply[]> {
     }
 
     public Map<String, String> asStringMap(Charset charset) {
+        Reply[] replies = data();
         if (replies == null) return null;
         int length = replies.length;
         Map<String, String> map = new HashMap<String, String>(length);
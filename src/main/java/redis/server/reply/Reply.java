@@ -10,4 +10,10 @@ public interface Reply<T> {
     T data();
 
     void write(ByteBuf os) throws IOException;
+
+    /**
+     * Number of bytes {@link #write(ByteBuf)} will produce, used to size
+     * the output buffer up front.
+     */
+    int encodedLength();
 }
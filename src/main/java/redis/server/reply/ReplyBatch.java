@@ -0,0 +1,39 @@
+package redis.server.reply;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The replies to a {@link CommandBatch}, written back to back into one buffer.
+ */
+public class ReplyBatch extends ArrayList<Reply> implements Reply<List<Reply>> {
+    private static final long serialVersionUID = 1L;
+
+    public ReplyBatch(int size) {
+        super(size);
+    }
+
+    @Override
+    public List<Reply> data() {
+        return this;
+    }
+
+    @Override
+    public void write(ByteBuf os) throws IOException {
+        for (Reply reply : this) {
+            reply.write(os);
+        }
+    }
+
+    @Override
+    public int encodedLength() {
+        int length = 0;
+        for (Reply reply : this) {
+            length += reply.encodedLength();
+        }
+        return length;
+    }
+}
@@ -9,6 +9,7 @@ public class StatusReply implements Reply<String> {
     public static final char MARKER = '+';
     public static final StatusReply OK = new StatusReply("OK");
     public static final StatusReply QUIT = new StatusReply("OK");
+    public static final StatusReply QUEUED = new StatusReply("QUEUED");
     private final String status;
     private final byte[] statusBytes;
 
@@ -29,6 +30,11 @@ public class StatusReply implements Reply<String> {
         os.writeBytes(CRLF);
     }
 
+    @Override
+    public int encodedLength() {
+        return 1 + statusBytes.length + 2;
+    }
+
     public String toString() {
         return status;
     }
@@ -29,7 +29,7 @@ public class BytesKey extends BytesValue implements Comparable<BytesKey> {
     super(bytes);
     int hashCode = 0;
     for (byte aByte : this.bytes) {
-      hashCode += 43 * aByte;
+      hashCode = 31 * hashCode + aByte;
     }
     this.hashCode = hashCode;
   }
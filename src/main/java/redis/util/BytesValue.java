@@ -18,7 +18,7 @@ public class BytesValue {
   public int hashCode() {
     int hashCode = 0;
     for (byte aByte : this.bytes) {
-      hashCode += 43 * aByte;
+      hashCode = 31 * hashCode + aByte;
     }
     return hashCode;
   }
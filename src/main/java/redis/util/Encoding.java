@@ -48,7 +48,27 @@ public class Encoding {
     return convert(value, withCRLF);
   }
 
+  /**
+   * Number of bytes numToBytes will produce, without producing them.
+   */
+  public static int numLength(long value, boolean withCRLF) {
+    if (value >= 0 && value < NUM_MAP_LENGTH) {
+      return withCRLF ? numMapWithCRLF[(int) value].length : numMap[(int) value].length;
+    }
+    int length = value < 0 ? 2 : 1;
+    // on the signed value, as Long.MIN_VALUE has no positive counterpart
+    long rest = value;
+    while ((rest /= 10) != 0) {
+      length++;
+    }
+    return withCRLF ? length + 2 : length;
+  }
+
   private static byte[] convert(long value, boolean withCRLF) {
+    if (value == Long.MIN_VALUE) {
+      byte[] digits = Long.toString(value).getBytes();
+      return withCRLF ? withCRLF(digits) : digits;
+    }
     boolean negative = value < 0;
     // Checked javadoc: If the argument is equal to 10^n for integer n, then the result is n.
     // Also, if negative, leave another slot for the sign.
@@ -71,6 +91,14 @@ public class Encoding {
     return bytes;
   }
 
+  private static byte[] withCRLF(byte[] digits) {
+    byte[] bytes = new byte[digits.length + 2];
+    System.arraycopy(digits, 0, bytes, 0, digits.length);
+    bytes[digits.length] = CR;
+    bytes[digits.length + 1] = LF;
+    return bytes;
+  }
+
   /**
    * Reads a number from a byte array.
    * @param bytes
@@ -0,0 +1,169 @@
+package redis.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A glob style pattern as used by KEYS and the MATCH option of SCAN, compiled
+ * once so that matching doesn't parse it again for every key.
+ * <p/>
+ * Supports * (any bytes), ? (any byte), [abc], [a-z] and [^abc] classes and \
+ * escapes. Every element other than * matches exactly one byte, so matching
+ * only ever has to go back to the last * it passed and takes at most
+ * O(key * pattern) steps instead of backtracking over every *.
+ */
+public class GlobPattern {
+  // one 256 bit set of matching bytes per element, null for *
+  private final long[][] elements;
+  // the literal bytes every match starts with
+  private final byte[] prefix;
+  // just *
+  private final boolean any;
+
+  private GlobPattern(long[][] elements, byte[] prefix) {
+    this.elements = elements;
+    this.prefix = prefix;
+    this.any = elements.length == 1 && elements[0] == null;
+  }
+
+  public static GlobPattern compile(byte[] pattern) {
+    List<long[]> elements = new ArrayList<long[]>();
+    for (int pp = 0; pp < pattern.length; pp++) {
+      byte p = pattern[pp];
+      switch (p) {
+        case '*':
+          if (elements.isEmpty() || elements.get(elements.size() - 1) != null) {
+            elements.add(null);
+          }
+          break;
+        case '?':
+          elements.add(new long[]{-1, -1, -1, -1});
+          break;
+        case '[':
+          long[] set = new long[4];
+          boolean not = pp + 1 < pattern.length && pattern[pp + 1] == '^';
+          if (not) pp++;
+          // an unterminated class ends with the pattern, like redis
+          for (pp++; pp < pattern.length && pattern[pp] != ']'; pp++) {
+            if (pattern[pp] == '\\' && pp + 1 < pattern.length) {
+              add(set, pattern[++pp]);
+            } else if (pp + 2 < pattern.length && pattern[pp + 1] == '-') {
+              int start = pattern[pp] & 0xFF;
+              int end = pattern[pp + 2] & 0xFF;
+              for (int b = Math.min(start, end); b <= Math.max(start, end); b++) {
+                add(set, (byte) b);
+              }
+              pp += 2;
+            } else {
+              add(set, pattern[pp]);
+            }
+          }
+          if (not) {
+            for (int i = 0; i < set.length; i++) {
+              set[i] = ~set[i];
+            }
+          }
+          elements.add(set);
+          break;
+        case '\\':
+          // a trailing \ is itself
+          elements.add(literal(pp + 1 < pattern.length ? pattern[++pp] : p));
+          break;
+        default:
+          elements.add(literal(p));
+      }
+    }
+    long[][] compiled = elements.toArray(new long[elements.size()][]);
+    return new GlobPattern(compiled, prefix(compiled));
+  }
+
+  /**
+   * @return the bytes every matching key starts with, possibly none
+   */
+  public byte[] prefix() {
+    return prefix;
+  }
+
+  public boolean matches(byte[] key) {
+    if (any) {
+      return true;
+    }
+    if (key.length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (key[i] != prefix[i]) {
+        return false;
+      }
+    }
+    int kp = prefix.length;
+    int pp = prefix.length;
+    // where to carry on from if what follows the last * doesn't match
+    int star = -1;
+    int resume = 0;
+    while (kp < key.length) {
+      if (pp < elements.length && elements[pp] == null) {
+        star = ++pp;
+        resume = kp;
+      } else if (pp < elements.length && contains(elements[pp], key[kp])) {
+        pp++;
+        kp++;
+      } else if (star != -1) {
+        // let the * take one more byte
+        pp = star;
+        kp = ++resume;
+      } else {
+        return false;
+      }
+    }
+    while (pp < elements.length && elements[pp] == null) {
+      pp++;
+    }
+    return pp == elements.length;
+  }
+
+  private static byte[] prefix(long[][] elements) {
+    byte[] prefix = new byte[elements.length];
+    int length = 0;
+    for (long[] element : elements) {
+      int b = single(element);
+      if (b == -1) {
+        break;
+      }
+      prefix[length++] = (byte) b;
+    }
+    return Arrays.copyOf(prefix, length);
+  }
+
+  // The one byte in the set, or -1
+  private static int single(long[] set) {
+    if (set == null) {
+      return -1;
+    }
+    int found = -1;
+    for (int i = 0; i < set.length; i++) {
+      if (set[i] != 0) {
+        if (found != -1 || Long.bitCount(set[i]) != 1) {
+          return -1;
+        }
+        found = i * 64 + Long.numberOfTrailingZeros(set[i]);
+      }
+    }
+    return found;
+  }
+
+  private static long[] literal(byte b) {
+    long[] set = new long[4];
+    add(set, b);
+    return set;
+  }
+
+  private static void add(long[] set, byte b) {
+    set[(b & 0xFF) >>> 6] |= 1L << (b & 63);
+  }
+
+  private static boolean contains(long[] set, byte b) {
+    return (set[(b & 0xFF) >>> 6] & 1L << (b & 63)) != 0;
+  }
+}
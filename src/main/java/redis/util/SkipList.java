@@ -0,0 +1,260 @@
+package redis.util;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A sorted set kept in a skip list whose links know how many elements they
+ * skip, like the one behind redis sorted sets. Adding, removing, finding the rank
+ * of an element and seeking to a rank are all O(log n); iterating from there is
+ * O(1) per element in either direction.
+ * <p/>
+ * Not thread safe.
+ */
+public class SkipList<E> implements Iterable<E> {
+  private static final int MAX_LEVEL = 32;
+
+  private final Comparator<? super E> comparator;
+  private final Random random = new Random();
+  private final Node<E> head = new Node<E>(null, MAX_LEVEL);
+  private Node<E> tail;
+  private int level = 1;
+  private int size;
+
+  private static class Node<E> {
+    final E value;
+    final Node<E>[] next;
+    // number of elements moved over when following next
+    final int[] span;
+    Node<E> previous;
+
+    @SuppressWarnings("unchecked")
+    Node(E value, int level) {
+      this.value = value;
+      this.next = new Node[level];
+      this.span = new int[level];
+    }
+  }
+
+  public SkipList(Comparator<? super E> comparator) {
+    this.comparator = comparator;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return false if an equal element is already there
+   */
+  @SuppressWarnings("unchecked")
+  public boolean add(E e) {
+    Node<E>[] update = new Node[MAX_LEVEL];
+    int[] rank = new int[MAX_LEVEL];
+    Node<E> x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      rank[i] = i == level - 1 ? 0 : rank[i + 1];
+      while (x.next[i] != null && comparator.compare(x.next[i].value, e) < 0) {
+        rank[i] += x.span[i];
+        x = x.next[i];
+      }
+      update[i] = x;
+    }
+    if (x.next[0] != null && comparator.compare(x.next[0].value, e) == 0) {
+      return false;
+    }
+    int newLevel = randomLevel();
+    if (newLevel > level) {
+      for (int i = level; i < newLevel; i++) {
+        rank[i] = 0;
+        update[i] = head;
+        head.span[i] = size;
+      }
+      level = newLevel;
+    }
+    x = new Node<E>(e, newLevel);
+    for (int i = 0; i < newLevel; i++) {
+      x.next[i] = update[i].next[i];
+      update[i].next[i] = x;
+      x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+      update[i].span[i] = rank[0] - rank[i] + 1;
+    }
+    for (int i = newLevel; i < level; i++) {
+      update[i].span[i]++;
+    }
+    x.previous = update[0] == head ? null : update[0];
+    if (x.next[0] != null) {
+      x.next[0].previous = x;
+    } else {
+      tail = x;
+    }
+    size++;
+    return true;
+  }
+
+  /**
+   * @return false if there was no equal element
+   */
+  @SuppressWarnings("unchecked")
+  public boolean remove(E e) {
+    Node<E>[] update = new Node[MAX_LEVEL];
+    Node<E> x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && comparator.compare(x.next[i].value, e) < 0) {
+        x = x.next[i];
+      }
+      update[i] = x;
+    }
+    x = x.next[0];
+    if (x == null || comparator.compare(x.value, e) != 0) {
+      return false;
+    }
+    for (int i = 0; i < level; i++) {
+      if (update[i].next[i] == x) {
+        update[i].span[i] += x.span[i] - 1;
+        update[i].next[i] = x.next[i];
+      } else {
+        update[i].span[i]--;
+      }
+    }
+    if (x.next[0] != null) {
+      x.next[0].previous = x.previous;
+    } else {
+      tail = x.previous;
+    }
+    while (level > 1 && head.next[level - 1] == null) {
+      level--;
+    }
+    size--;
+    return true;
+  }
+
+  /**
+   * @return the 0 based position of e or -1 if it isn't there
+   */
+  public int rank(E e) {
+    int rank = 0;
+    Node<E> x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && comparator.compare(x.next[i].value, e) <= 0) {
+        rank += x.span[i];
+        x = x.next[i];
+      }
+      if (x != head && comparator.compare(x.value, e) == 0) {
+        return rank - 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the element at the 0 based position rank
+   */
+  public E get(int rank) {
+    return node(rank).value;
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return iterator(0, false);
+  }
+
+  /**
+   * Iterates from the element at the 0 based position rank, counted from the end
+   * when descending.
+   */
+  public Iterator<E> iterator(int rank, boolean descending) {
+    return iterator(rank >= size ? null : node(descending ? size - 1 - rank : rank), descending);
+  }
+
+  private Iterator<E> iterator(final Node<E> first, final boolean descending) {
+    return new Iterator<E>() {
+      Node<E> next = first;
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public E next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        E value = next.value;
+        next = descending ? next.previous : next.next[0];
+        return value;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Iterates upwards from the first element that isn't less than from.
+   */
+  public Iterator<E> iterator(E from) {
+    return iterator(from, true);
+  }
+
+  /**
+   * Iterates upwards from the first element greater than from, or equal to it if
+   * inclusive. from needn't be in the list.
+   */
+  public Iterator<E> iterator(E from, boolean inclusive) {
+    int skipped = inclusive ? 0 : 1;
+    Node<E> x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && comparator.compare(x.next[i].value, from) < skipped) {
+        x = x.next[i];
+      }
+    }
+    return iterator(x.next[0], false);
+  }
+
+  public void clear() {
+    for (int i = 0; i < MAX_LEVEL; i++) {
+      head.next[i] = null;
+      head.span[i] = 0;
+    }
+    tail = null;
+    level = 1;
+    size = 0;
+  }
+
+  private Node<E> node(int rank) {
+    if (rank < 0 || rank >= size) {
+      throw new IndexOutOfBoundsException("Rank: " + rank + ", size: " + size);
+    }
+    int traversed = 0;
+    Node<E> x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && traversed + x.span[i] <= rank + 1) {
+        traversed += x.span[i];
+        x = x.next[i];
+      }
+      if (traversed == rank + 1) {
+        return x;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private int randomLevel() {
+    int level = 1;
+    // each level holds a quarter of the one below
+    while (level < MAX_LEVEL && (random.nextInt() & 3) == 0) {
+      level++;
+    }
+    return level;
+  }
+}
@@ -0,0 +1,75 @@
+package redis.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import org.junit.Test;
+import redis.server.reply.Command;
+import redis.server.reply.CommandBatch;
+
+import static org.junit.Assert.*;
+
+public class RedisCommandDecoderTest {
+
+    private static ByteBuf buf(String s) {
+        return Unpooled.copiedBuffer(s.getBytes());
+    }
+
+    private static String argument(Command command, int i) {
+        return new String(command.getArgument(i));
+    }
+
+    @Test
+    public void testPipelineIsOneBatch() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder());
+        channel.writeInbound(buf("*1\r\n$4\r\nPING\r\n*2\r\n$3\r\nGET\r\n$1\r\nk\r\n"));
+        CommandBatch batch = (CommandBatch) channel.readInbound();
+        assertEquals(2, batch.size());
+        assertEquals("PING", argument(batch.get(0), 0));
+        assertEquals("k", argument(batch.get(1), 1));
+        assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void testResumesInTheMiddleOfAnArgument() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder());
+        String command = "*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n$10\r\n0123456789\r\n";
+        for (int i = 0; i < command.length() - 1; i++) {
+            channel.writeInbound(buf(command.substring(i, i + 1)));
+            assertNull(channel.readInbound());
+        }
+        channel.writeInbound(buf(command.substring(command.length() - 1)));
+        CommandBatch batch = (CommandBatch) channel.readInbound();
+        assertEquals(1, batch.size());
+        assertEquals(3, batch.get(0).argc());
+        assertEquals("0123456789", argument(batch.get(0), 2));
+    }
+
+    @Test
+    public void testInline() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder());
+        channel.writeInbound(buf("PING\r\n"));
+        CommandBatch batch = (CommandBatch) channel.readInbound();
+        assertTrue(batch.get(0).isInline());
+        assertEquals("PING", argument(batch.get(0), 0));
+    }
+
+    @Test(expected = DecoderException.class)
+    public void testBulkLengthAboveMax() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder(16, 100));
+        channel.writeInbound(buf("*1\r\n$101\r\n"));
+    }
+
+    @Test(expected = DecoderException.class)
+    public void testBulkLengthOverflowingLong() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder());
+        channel.writeInbound(buf("*1\r\n$99999999999999999999\r\n"));
+    }
+
+    @Test(expected = DecoderException.class)
+    public void testMultiBulkLengthAboveMax() {
+        EmbeddedChannel channel = new EmbeddedChannel(new RedisCommandDecoder(16, 100));
+        channel.writeInbound(buf("*17\r\n"));
+    }
+}
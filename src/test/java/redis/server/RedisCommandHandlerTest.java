@@ -0,0 +1,192 @@
+package redis.server;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Before;
+import org.junit.Test;
+import redis.server.backend.simple.SimpleRedisServer;
+import redis.server.reply.BulkReply;
+import redis.server.reply.ErrorReply;
+import redis.server.reply.IntegerReply;
+import redis.server.reply.MultiBulkReply;
+import redis.server.reply.Reply;
+import redis.server.reply.ReplyBatch;
+import redis.server.reply.StatusReply;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RedisCommandHandlerTest {
+
+    private RedisCommandHandler handler;
+
+    @Before
+    public void setUp() {
+        handler = new RedisCommandHandler(new SimpleRedisServer());
+    }
+
+    private EmbeddedChannel connect() {
+        return new EmbeddedChannel(new RedisCommandDecoder(), handler);
+    }
+
+    private static Reply send(EmbeddedChannel channel, String command) {
+        String[] arguments = command.split(" ");
+        StringBuilder sb = new StringBuilder("*").append(arguments.length).append("\r\n");
+        for (String argument : arguments) {
+            sb.append("$").append(argument.length()).append("\r\n").append(argument).append("\r\n");
+        }
+        channel.writeInbound(Unpooled.copiedBuffer(sb.toString().getBytes()));
+        Reply reply = (Reply) channel.readOutbound();
+        assertNull(channel.readOutbound());
+        return reply instanceof ReplyBatch ? ((ReplyBatch) reply).get(0) : reply;
+    }
+
+    private static void assertStatus(String expected, Reply reply) {
+        assertEquals(expected, ((StatusReply) reply).data());
+    }
+
+    private static void assertError(String prefix, Reply reply) {
+        assertTrue(reply.toString(), ((ErrorReply) reply).data().startsWith(prefix));
+    }
+
+    @Test
+    public void testMultiExec() {
+        EmbeddedChannel channel = connect();
+        assertStatus("OK", send(channel, "MULTI"));
+        assertStatus("QUEUED", send(channel, "SET k 1"));
+        assertStatus("QUEUED", send(channel, "INCR k"));
+        Reply[] replies = ((MultiBulkReply) send(channel, "EXEC")).data();
+        assertEquals(2, replies.length);
+        assertStatus("OK", replies[0]);
+        assertEquals(2L, ((IntegerReply) replies[1]).data().longValue());
+        assertEquals("2", ((BulkReply) send(channel, "GET k")).asAsciiString());
+    }
+
+    @Test
+    public void testDiscard() {
+        EmbeddedChannel channel = connect();
+        assertError("ERR", send(channel, "DISCARD"));
+        assertStatus("OK", send(channel, "MULTI"));
+        assertError("ERR", send(channel, "MULTI"));
+        assertStatus("QUEUED", send(channel, "SET k 1"));
+        assertStatus("OK", send(channel, "DISCARD"));
+        assertNull(((BulkReply) send(channel, "GET k")).data());
+        assertError("ERR", send(channel, "EXEC"));
+    }
+
+    @Test
+    public void testExecAbortsAfterQueuingError() {
+        EmbeddedChannel channel = connect();
+        assertStatus("OK", send(channel, "MULTI"));
+        assertStatus("QUEUED", send(channel, "SET k 1"));
+        assertError("unknown command", send(channel, "NOSUCHCOMMAND"));
+        assertError("EXECABORT", send(channel, "EXEC"));
+        assertNull(((BulkReply) send(channel, "GET k")).data());
+    }
+
+    @Test
+    public void testWatchedKeyChanged() {
+        EmbeddedChannel channel = connect();
+        EmbeddedChannel other = connect();
+        assertStatus("OK", send(channel, "WATCH k"));
+        assertStatus("OK", send(other, "SET k 2"));
+        assertStatus("OK", send(channel, "MULTI"));
+        assertStatus("QUEUED", send(channel, "SET k 1"));
+        assertSame(MultiBulkReply.NIL_REPLY, send(channel, "EXEC"));
+        assertEquals("2", ((BulkReply) send(channel, "GET k")).asAsciiString());
+
+        // EXEC unwatched the key
+        assertStatus("OK", send(channel, "MULTI"));
+        assertStatus("QUEUED", send(channel, "SET k 1"));
+        assertEquals(1, ((MultiBulkReply) send(channel, "EXEC")).data().length);
+    }
+
+    @Test
+    public void testUnwatch() {
+        EmbeddedChannel channel = connect();
+        EmbeddedChannel other = connect();
+        assertStatus("OK", send(channel, "WATCH k"));
+        assertStatus("OK", send(channel, "UNWATCH"));
+        assertStatus("OK", send(other, "SET k 2"));
+        assertStatus("OK", send(channel, "MULTI"));
+        assertStatus("QUEUED", send(channel, "SET k 1"));
+        assertEquals(1, ((MultiBulkReply) send(channel, "EXEC")).data().length);
+    }
+
+    @Test
+    public void testUnwatchInsideMultiIsQueued() {
+        EmbeddedChannel channel = connect();
+        EmbeddedChannel other = connect();
+        assertStatus("OK", send(channel, "WATCH k"));
+        assertStatus("OK", send(channel, "MULTI"));
+        assertStatus("QUEUED", send(channel, "UNWATCH"));
+        assertStatus("OK", send(other, "SET k 2"));
+        assertSame(MultiBulkReply.NIL_REPLY, send(channel, "EXEC"));
+
+        assertStatus("OK", send(channel, "MULTI"));
+        assertStatus("QUEUED", send(channel, "UNWATCH"));
+        assertStatus("QUEUED", send(channel, "SET k 1"));
+        Reply[] replies = ((MultiBulkReply) send(channel, "EXEC")).data();
+        assertStatus("OK", replies[0]);
+        assertStatus("OK", replies[1]);
+    }
+
+    @Test
+    public void testExecWaitsForUnlockedBatches() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        Thread batch = new Thread(handler.gated(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        batch.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final EmbeddedChannel channel = connect();
+        assertStatus("OK", send(channel, "MULTI"));
+        assertStatus("QUEUED", send(channel, "SET k 1"));
+        final AtomicReference<Reply> executed = new AtomicReference<Reply>();
+        Thread exec = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executed.set(send(channel, "EXEC"));
+            }
+        });
+        exec.start();
+        exec.join(200);
+        assertNull(executed.get());
+        finish.countDown();
+        exec.join(5000);
+        batch.join(5000);
+        assertEquals(1, ((MultiBulkReply) executed.get()).data().length);
+    }
+
+    @Test
+    public void testGatedRunsWithAndWithoutTransactions() {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = handler.gated(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        task.run();
+        EmbeddedChannel channel = connect();
+        assertStatus("OK", send(channel, "MULTI"));
+        task.run();
+        channel.close();
+        task.run();
+        assertEquals(3, runs.get());
+    }
+}
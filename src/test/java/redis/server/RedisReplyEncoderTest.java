@@ -0,0 +1,72 @@
+package redis.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.EncoderException;
+import org.junit.Test;
+import redis.server.reply.BulkReply;
+import redis.server.reply.IntegerReply;
+import redis.server.reply.MultiBulkReply;
+import redis.server.reply.Reply;
+import redis.server.reply.StatusReply;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RedisReplyEncoderTest {
+
+    private static byte[] encode(RedisReplyEncoder encoder, Reply reply) {
+        EmbeddedChannel channel = new EmbeddedChannel(encoder);
+        channel.writeOutbound(reply);
+        ByteBuf buf = (ByteBuf) channel.readOutbound();
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        buf.release();
+        return bytes;
+    }
+
+    private static Reply sample(ByteBuf large) {
+        return new MultiBulkReply(new Reply[]{
+                new BulkReply("small".getBytes()),
+                new BulkReply(large),
+                IntegerReply.integer(7),
+                new BulkReply(large.duplicate()),
+                StatusReply.OK
+        });
+    }
+
+    @Test
+    public void testPooledMatchesCopied() {
+        byte[] value = new byte[20000];
+        Arrays.fill(value, (byte) 'x');
+        ByteBuf large = Unpooled.wrappedBuffer(value);
+        byte[] copied = encode(new RedisReplyEncoder(), sample(large));
+        byte[] pooled = encode(new RedisReplyEncoder(true, 1024), sample(large));
+        assertArrayEquals(copied, pooled);
+        assertEquals(1, large.refCnt());
+    }
+
+    @Test
+    public void testNothingLeaksWhenAReplyFails() {
+        ByteBuf large = Unpooled.wrappedBuffer(new byte[4096]);
+        Reply failing = new StatusReply("never") {
+            @Override
+            public void write(ByteBuf os) throws IOException {
+                throw new IllegalStateException();
+            }
+        };
+        EmbeddedChannel channel = new EmbeddedChannel(new RedisReplyEncoder(true, 1024));
+        try {
+            channel.writeOutbound(new MultiBulkReply(new Reply[]{new BulkReply(large), failing}));
+            fail();
+        } catch (EncoderException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // the slice of large added to the composite was released with it
+        assertEquals(1, large.refCnt());
+    }
+}
@@ -0,0 +1,46 @@
+package redis.server;
+
+import org.junit.Test;
+import redis.server.reply.BulkReply;
+import redis.server.reply.Reply;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class ScanArgumentsTest {
+
+    private static String cursor(byte[] after) {
+        Reply[] reply = ScanArguments.reply(after, new ArrayList<Reply>()).data();
+        return ((BulkReply) reply[0]).asAsciiString();
+    }
+
+    @Test
+    public void testKeyCursorRoundTrips() throws RedisException {
+        byte[][] keys = {new byte[0], {0}, {0, 0, 1}, {(byte) 0xFF, (byte) 0x80}, "user:1000".getBytes()};
+        for (byte[] key : keys) {
+            String cursor = cursor(key);
+            // a decimal number clients can parse
+            assertTrue(cursor.matches("[1-9][0-9]*"));
+            assertArrayEquals(key, ScanArguments.resume(cursor.getBytes()));
+        }
+    }
+
+    @Test
+    public void testDone() throws RedisException {
+        assertEquals("0", cursor(null));
+        assertNull(ScanArguments.resume("0".getBytes()));
+    }
+
+    @Test
+    public void testInvalidCursors() {
+        for (String cursor : new String[]{"-1", "abc", "2", "200", ""}) {
+            try {
+                ScanArguments.resume(cursor.getBytes());
+                fail(cursor);
+            } catch (RedisException e) {
+                assertEquals("invalid cursor", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package redis.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WatchedKeysTest {
+
+    private static byte[][] keys(String... keys) {
+        byte[][] bytes = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            bytes[i] = keys[i].getBytes();
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testLateWatchRegistersKeys() {
+        WatchedKeys watchedKeys = new WatchedKeys();
+        Transaction transaction = new Transaction();
+        int generation = watchedKeys.generation(transaction);
+        watchedKeys.watch(transaction, keys("a", "b"), generation);
+        assertEquals(2, transaction.watched.size());
+    }
+
+    @Test
+    public void testLateWatchAfterUnwatchIsDropped() {
+        WatchedKeys watchedKeys = new WatchedKeys();
+        Transaction transaction = new Transaction();
+        int generation = watchedKeys.generation(transaction);
+        watchedKeys.unwatch(transaction);
+        watchedKeys.watch(transaction, keys("a"), generation);
+        assertTrue(transaction.watched.isEmpty());
+
+        // a WATCH sent after the UNWATCH still counts
+        watchedKeys.watch(transaction, keys("a"), watchedKeys.generation(transaction));
+        assertEquals(1, transaction.watched.size());
+    }
+}
@@ -0,0 +1,159 @@
+package redis.server.backend.mapdb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DB;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MapDBListTest {
+
+    private DB db;
+
+    @Before
+    public void setUp() {
+        db = MapDBRedisBuilder.generateDB(null, true, false);
+    }
+
+    private static byte[] b(String s) {
+        return s.getBytes();
+    }
+
+    private MapDBList open() {
+        return MapDBList.get(db, b("list"), true);
+    }
+
+    private static void assertSame(List<byte[]> expected, MapDBList list) {
+        assertEquals(expected.size(), list.size());
+        assertEquals(expected.isEmpty(), list.isEmpty());
+        if (!expected.isEmpty()) {
+            List<byte[]> range = list.range(0, expected.size() - 1);
+            assertEquals(expected.size(), range.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(expected.get(i), range.get(i));
+                assertArrayEquals(expected.get(i), list.get(i));
+            }
+        }
+        assertNull(list.get(expected.size()));
+        assertNull(list.get(-1));
+    }
+
+    @Test
+    public void testPushAndPopAtBothEnds() {
+        MapDBList list = open();
+        assertNull(list.pop(true));
+        assertNull(list.pop(false));
+        list.push(b("b"), true);
+        list.push(b("a"), true);
+        list.push(b("c"), false);
+        assertSame(Arrays.asList(b("a"), b("b"), b("c")), list);
+        assertArrayEquals(b("a"), list.pop(true));
+        assertArrayEquals(b("c"), list.pop(false));
+        assertArrayEquals(b("b"), list.pop(false));
+        assertTrue(list.isEmpty());
+        assertNull(list.pop(true));
+
+        // positions carry on from where the ends were
+        list.push(b("x"), false);
+        assertSame(Arrays.asList(b("x")), list);
+    }
+
+    @Test
+    public void testInsertMovesTheShorterSide() {
+        MapDBList list = open();
+        for (String element : new String[]{"a", "b", "c", "d", "e"}) {
+            list.push(b(element), false);
+        }
+        assertEquals(6, list.insert(b("b"), b("x"), true));
+        assertEquals(7, list.insert(b("d"), b("y"), false));
+        assertEquals(-1, list.insert(b("missing"), b("z"), true));
+        assertSame(Arrays.asList(b("a"), b("x"), b("b"), b("c"), b("d"), b("y"), b("e")), list);
+    }
+
+    @Test
+    public void testTrim() {
+        MapDBList list = open();
+        for (int i = 0; i < 10; i++) {
+            list.push(b(String.valueOf(i)), false);
+        }
+        list.trim(2, 100);
+        list.trim(-5, 5);
+        assertSame(Arrays.asList(b("2"), b("3"), b("4"), b("5"), b("6"), b("7")), list);
+        list.trim(4, 2);
+        assertSame(new ArrayList<byte[]>(), list);
+        list.push(b("again"), true);
+        assertSame(Arrays.asList(b("again")), list);
+    }
+
+    @Test
+    public void testAgainstLinkedList() {
+        MapDBList list = open();
+        LinkedList<byte[]> expected = new LinkedList<byte[]>();
+        Random random = new Random(1);
+        for (int i = 0; i < 3000; i++) {
+            byte[] value = b(String.valueOf(random.nextInt(50)));
+            switch (random.nextInt(7)) {
+                case 0:
+                    list.push(value, true);
+                    expected.addFirst(value);
+                    break;
+                case 1:
+                    list.push(value, false);
+                    expected.addLast(value);
+                    break;
+                case 2:
+                    assertArrayEquals(expected.pollFirst(), list.pop(true));
+                    break;
+                case 3:
+                    assertArrayEquals(expected.pollLast(), list.pop(false));
+                    break;
+                case 4:
+                    boolean before = random.nextBoolean();
+                    int found = indexOf(expected, value);
+                    assertEquals(found == -1 ? -1 : expected.size() + 1, list.insert(value, b("inserted"), before));
+                    if (found != -1) {
+                        expected.add(before ? found : found + 1, b("inserted"));
+                    }
+                    break;
+                case 5:
+                    int removed = 0;
+                    for (Iterator<byte[]> iterator = expected.iterator(); iterator.hasNext(); ) {
+                        if (Arrays.equals(iterator.next(), value)) {
+                            iterator.remove();
+                            removed++;
+                        }
+                    }
+                    assertEquals(removed, list.remove(value, 0));
+                    break;
+                default:
+                    if (expected.size() > 20) {
+                        list.trim(1, expected.size() - 2);
+                        expected.removeFirst();
+                        expected.removeLast();
+                    }
+            }
+            if (i % 100 == 0) {
+                assertSame(expected, list);
+                // another handle finds the same ends in the database
+                assertSame(expected, open());
+            }
+        }
+        assertSame(expected, list);
+    }
+
+    private static int indexOf(List<byte[]> list, byte[] value) {
+        for (int i = 0; i < list.size(); i++) {
+            if (Arrays.equals(list.get(i), value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,257 @@
+package redis.server.backend.mapdb;
+
+import io.netty.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import redis.server.RedisException;
+import redis.server.reply.BulkReply;
+import redis.server.reply.IntegerReply;
+
+import static org.junit.Assert.*;
+
+public class MapDBRedisServerTest {
+
+    private MapDBRedisServer server;
+
+    @Before
+    public void setUp() {
+        server = new MapDBRedisServer(MapDBRedisBuilder.generateDB(null, true, false), false);
+    }
+
+    private static byte[] b(String s) {
+        return s.getBytes();
+    }
+
+    private static byte[][] bs(String... strings) {
+        byte[][] bytes = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            bytes[i] = b(strings[i]);
+        }
+        return bytes;
+    }
+
+    private static long n(IntegerReply reply) {
+        return reply.data().longValue();
+    }
+
+    private static String s(BulkReply reply) {
+        return reply.asAsciiString();
+    }
+
+    // Counts its commits
+    private static class CountingDB extends DB {
+        volatile int commits;
+
+        CountingDB() {
+            super(DBMaker.newMemoryDB().transactionDisable().makeEngine());
+        }
+
+        @Override
+        public synchronized void commit() {
+            commits++;
+            super.commit();
+        }
+    }
+
+    private static void waitFor(MapDBRedisServer server) throws InterruptedException {
+        for (int i = 0; i < 500 && !server.drained; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testFlushdbDropsEveryType() throws RedisException {
+        server.set(b("string"), b("value"));
+        server.hset(b("hash"), b("field"), b("value"));
+        server.sadd(b("set"), bs("member"));
+        server.zadd(bs("zset", "1", "member"));
+        server.rpush(b("list"), bs("element"));
+        server.pexpire(b("string"), b("100000"));
+        assertEquals(5, n(server.dbsize()));
+
+        server.flushdb();
+        assertEquals(0, n(server.dbsize()));
+        assertNull(server.get(b("string")).data());
+        assertEquals(0, n(server.hlen(b("hash"))));
+        assertEquals(0, n(server.scard(b("set"))));
+        assertEquals(0, n(server.zcard(b("zset"))));
+        assertEquals(0, n(server.llen(b("list"))));
+        assertEquals(0, server.keys(b("*")).data().length);
+
+        // the same keys can be used again, for other types too
+        server.sadd(b("hash"), bs("member"));
+        server.set(b("list"), b("value"));
+        assertEquals(1, n(server.scard(b("hash"))));
+        assertEquals("value", s(server.get(b("list"))));
+        assertEquals(-1, n(server.pttl(b("list"))));
+    }
+
+    @Test
+    public void testGroupCommitWaitsForCommandsInFlight() throws Exception {
+        MapDBGroupCommit groupCommit = new MapDBGroupCommit(server.db, 1, 1);
+        server = new MapDBRedisServer(server.db, false, groupCommit);
+        try {
+            Future<?> durable;
+            // a command halfway through, its first write made
+            server.enter();
+            try {
+                server.set(b("first"), b("value"));
+                durable = server.durable();
+                Thread.sleep(100);
+                assertFalse(durable.isDone());
+                server.set(b("second"), b("value"));
+            } finally {
+                server.leave();
+            }
+            // its promise completes on the commit thread, so await would refuse
+            for (int i = 0; i < 500 && !durable.isDone(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(durable.isSuccess());
+        } finally {
+            groupCommit.close();
+        }
+    }
+
+    @Test
+    public void testDeleteIsCommittedWithTheValues() throws Exception {
+        CountingDB db = new CountingDB();
+        server = new MapDBRedisServer(db, true);
+        server.enableWriteBehind(1000, 1024);
+        int commits = db.commits;
+        server.set(b("string"), b("value"));
+        server.hset(b("hash"), b("field"), b("value"));
+        server.del(bs("string", "hash"));
+        // not before the write-behind thread applied the deleted value
+        assertEquals(commits, db.commits);
+        for (int i = 0; i < 500 && db.commits == commits; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(db.commits > commits);
+        assertEquals(0, n(server.dbsize()));
+    }
+
+    @Test
+    public void testDrainedWritesWaitForTransaction() throws Exception {
+        CountingDB db = new CountingDB();
+        server = new MapDBRedisServer(db, true);
+        server.enableWriteBehind(1, 1024);
+        int commits = db.commits;
+        server.begin();
+        try {
+            server.set(b("first"), b("value"));
+            waitFor(server);
+            Thread.sleep(50);
+            assertEquals(commits, db.commits);
+            server.set(b("second"), b("value"));
+        } finally {
+            server.end();
+        }
+        assertTrue(db.commits > commits);
+    }
+
+    @Test
+    public void testExpiryCommands() throws Exception {
+        server.set(b("key"), b("value"));
+        assertEquals(-1, n(server.pttl(b("key"))));
+        assertEquals(1, n(server.pexpire(b("key"), b("100000"))));
+        assertTrue(n(server.pttl(b("key"))) > 99000);
+        assertTrue(n(server.ttl(b("key"))) >= 99);
+        assertEquals(1, n(server.persist(b("key"))));
+        assertEquals(0, n(server.persist(b("key"))));
+        assertEquals(-1, n(server.ttl(b("key"))));
+        assertEquals(0, n(server.pexpire(b("missing"), b("100000"))));
+        assertEquals(-1, n(server.pttl(b("missing"))));
+
+        server.setex(b("setex"), b("100"), b("value"));
+        assertTrue(n(server.ttl(b("setex"))) > 90);
+        // a deadline already past deletes the key
+        assertEquals(1, n(server.pexpire(b("setex"), b("-1"))));
+        assertEquals(0, n(server.exists(b("setex"))));
+
+        // a key past its deadline is gone to whatever reads it
+        server.hset(b("hash"), b("field"), b("value"));
+        server.pexpire(b("hash"), b("20"));
+        assertEquals(2, n(server.dbsize()));
+        Thread.sleep(50);
+        assertEquals(0, n(server.exists(b("hash"))));
+        assertEquals("none", server.type(b("hash")).data());
+        assertEquals(1, n(server.dbsize()));
+        assertEquals(0, n(server.hlen(b("hash"))));
+    }
+
+    @Test
+    public void testActiveExpiryDeletesDueKeysOfEveryType() throws Exception {
+        server.set(b("string"), b("value"));
+        server.hset(b("hash"), b("field"), b("value"));
+        server.sadd(b("set"), bs("member"));
+        server.zadd(bs("zset", "1", "member"));
+        server.rpush(b("list"), bs("element"));
+        for (String key : new String[]{"string", "hash", "set", "zset", "list"}) {
+            server.pexpire(b(key), b("20"));
+        }
+        int due = 2 * MapDBRedisServer.REAP_BATCH;
+        for (int i = 0; i < due; i++) {
+            server.set(b("short" + i), b("value"));
+            server.pexpire(b("short" + i), b("20"));
+        }
+        server.set(b("long"), b("value"));
+        server.pexpire(b("long"), b("100000"));
+        server.set(b("persistent"), b("value"));
+        // given another deadline after its first one was indexed
+        server.set(b("moved"), b("value"));
+        server.pexpire(b("moved"), b("100000"));
+        server.pexpire(b("moved"), b("200000"));
+        Thread.sleep(50);
+
+        assertEquals(10, server.reap(10));
+        assertEquals(due + 5 - 10, server.activeExpireCycle(1000000000L));
+        assertEquals(0, server.activeExpireCycle(1000000000L));
+        assertEquals(3, n(server.dbsize()));
+        assertEquals(3, server.keys(b("*")).data().length);
+        assertTrue(n(server.pttl(b("moved"))) > 100000);
+        assertTrue(n(server.pttl(b("long"))) > 0);
+        assertEquals(-1, n(server.pttl(b("persistent"))));
+        assertEquals(0, n(server.hlen(b("hash"))));
+        assertEquals(0, n(server.zcard(b("zset"))));
+        assertEquals(0, n(server.llen(b("list"))));
+    }
+
+    @Test
+    public void testExpiryAndKeyspaceSurviveReopening() throws Exception {
+        server.set(b("long"), b("value"));
+        server.pexpire(b("long"), b("100000"));
+        server.sadd(b("short"), bs("member"));
+        server.pexpire(b("short"), b("50"));
+        server.zadd(bs("zset", "1", "member"));
+
+        MapDBRedisServer reopened = new MapDBRedisServer(server.db, false);
+        assertEquals(3, n(reopened.dbsize()));
+        assertEquals("set", reopened.type(b("short")).data());
+        assertEquals("zset", reopened.type(b("zset")).data());
+        assertTrue(n(reopened.pttl(b("long"))) > 99000);
+        Thread.sleep(100);
+        assertEquals(1, reopened.reap(MapDBRedisServer.REAP_BATCH));
+        assertEquals(2, n(reopened.dbsize()));
+    }
+
+    @Test
+    public void testKeyspaceIsRebuiltFromTheData() throws RedisException {
+        server.set(b("string"), b("value"));
+        server.hset(b("hash"), b("field"), b("value"));
+        server.sadd(b("set"), bs("member"));
+        server.zadd(bs("zset", "1", "member"));
+        server.rpush(b("list"), bs("element"));
+        // like data written before there was a keyspace
+        server.db.getTreeMap(MapDBKeyspace.NAME).clear();
+
+        MapDBRedisServer rebuilt = new MapDBRedisServer(server.db, false);
+        assertEquals(5, n(rebuilt.dbsize()));
+        for (String key : new String[]{"string", "hash", "set", "zset", "list"}) {
+            assertEquals(key, rebuilt.type(b(key)).data());
+        }
+        assertEquals(5, rebuilt.keys(b("*")).data().length);
+    }
+}
@@ -0,0 +1,56 @@
+package redis.server.backend.mapdb;
+
+import org.mapdb.DB;
+
+/**
+ * Ranks in a sorted set of millions of members, too slow to fill for a test:
+ * java redis.server.backend.mapdb.MapDBSortedSetBenchmark [members]
+ */
+public class MapDBSortedSetBenchmark {
+    private static final int RANKS = 10000;
+
+    public static void main(String[] args) {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        DB db = MapDBRedisBuilder.generateDB(null, true, false);
+        byte[] key = "zset".getBytes();
+        MapDBSortedSet zset = MapDBSortedSet.get(db, key, true);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < members; i++) {
+            zset.add(("member" + i).getBytes(), i);
+        }
+        report("ZADD", members, start);
+
+        // each from a handle of its own, like one evicted from the server's cache
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            check(MapDBSortedSet.get(db, key, false), (int) ((long) i * members / 100));
+        }
+        report("open and ZRANK", 100, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < RANKS; i++) {
+            check(zset, (int) (i * 7919L % members));
+        }
+        report("ZRANK", RANKS, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < RANKS; i++) {
+            int rank = (int) (i * 7919L % members);
+            zset.getRange(rank, rank + 9, false);
+        }
+        report("ZRANGE of 10", RANKS, start);
+        System.out.println(zset.weigh() + " rank index buckets");
+    }
+
+    private static void check(MapDBSortedSet zset, int rank) {
+        if (zset.getRank(("member" + rank).getBytes(), false) != rank) {
+            throw new AssertionError("wrong rank for member" + rank);
+        }
+    }
+
+    private static void report(String what, int times, long start) {
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%s: %d in %d ms, %.1f us each%n", what, times, elapsed / 1000000, elapsed / 1000.0 / times);
+    }
+}
@@ -0,0 +1,101 @@
+package redis.server.backend.mapdb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DB;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class MapDBSortedSetTest {
+
+    private DB db;
+
+    @Before
+    public void setUp() {
+        db = MapDBRedisBuilder.generateDB(null, true, false);
+    }
+
+    private static byte[] b(String s) {
+        return s.getBytes();
+    }
+
+    private MapDBSortedSet open() {
+        return MapDBSortedSet.get(db, b("zset"), true);
+    }
+
+    private static void check(MapDBSortedSet zset, List<Object[]> expected) {
+        assertEquals(expected.size(), zset.size());
+        for (int i = 0; i < expected.size(); i += Math.max(expected.size() / 500, 1)) {
+            Object[] entry = expected.get(i);
+            assertEquals(i, zset.getRank((byte[]) entry[1], false));
+            assertEquals(expected.size() - 1 - i, zset.getRank((byte[]) entry[1], true));
+            assertArrayEquals((byte[]) entry[1], (byte[]) zset.getRange(i, i, false).get(0)[1]);
+        }
+    }
+
+    @Test
+    public void testRanksFollowWrites() {
+        MapDBSortedSet zset = open();
+        TreeSet<Object[]> model = new TreeSet<Object[]>(new MapDBSortedSet.ScoreComparator());
+        Map<String, Double> scores = new HashMap<String, Double>();
+        Random random = new Random(1);
+        for (int round = 0; round < 20; round++) {
+            // grows the set for a while, then shrinks it so buckets split and merge
+            boolean growing = round % 4 != 3;
+            for (int i = 0; i < 2000; i++) {
+                String member = "member" + random.nextInt(growing ? 20000 : 5000);
+                Double old = scores.get(member);
+                if (old != null) {
+                    model.remove(new Object[]{old, b(member)});
+                }
+                if (growing || old == null) {
+                    double score = random.nextInt(1000);
+                    zset.add(b(member), score);
+                    model.add(new Object[]{score, b(member)});
+                    scores.put(member, score);
+                } else {
+                    assertEquals(1, zset.removeMembers(new byte[][]{b(member)}));
+                    scores.remove(member);
+                }
+            }
+            check(zset, new ArrayList<Object[]>(model));
+        }
+        zset.removeRange(100, model.size() - 101);
+        List<Object[]> left = new ArrayList<Object[]>(model);
+        left.subList(100, left.size() - 100).clear();
+        check(zset, left);
+    }
+
+    @Test
+    public void testCountsAreKeptInTheDatabase() {
+        MapDBSortedSet zset = open();
+        List<Object[]> expected = new ArrayList<Object[]>();
+        for (int i = 0; i < 10000; i++) {
+            zset.add(b("member" + i), i);
+            expected.add(new Object[]{(double) i, b("member" + i)});
+        }
+        int buckets = zset.weigh();
+        assertTrue(buckets > 1);
+
+        // another handle reads the counts
+        MapDBSortedSet reopened = open();
+        check(reopened, expected);
+        assertEquals(buckets, reopened.weigh());
+
+        // a set written before there were counts gets them
+        MapDBRankIndex.delete(db, b("zset"));
+        MapDBSortedSet rebuilt = open();
+        check(rebuilt, expected);
+        assertTrue(rebuilt.weigh() > 1);
+
+        zset.delete();
+        assertEquals(0, open().size());
+    }
+}
@@ -0,0 +1,202 @@
+package redis.server.backend.simple;
+
+import org.junit.Test;
+import redis.util.BytesKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class BytesKeyTableTest {
+
+    private static byte[] b(String s) {
+        return s.getBytes();
+    }
+
+    private static Set<BytesKey> keys(Iterable<byte[]> keys) {
+        Set<BytesKey> set = new HashSet<BytesKey>();
+        for (byte[] key : keys) {
+            assertTrue(set.add(new BytesKey(key)));
+        }
+        return set;
+    }
+
+    @Test
+    public void testMatchesHashMapThroughResizes() {
+        Random random = new Random(1);
+        BytesKeyTable<String> table = new BytesKeyTable<String>();
+        Map<BytesKey, String> expected = new HashMap<BytesKey, String>();
+        for (int i = 0; i < 200000; i++) {
+            // grows to a few thousand keys, then shrinks back down
+            int range = i < 100000 ? 5000 : 50;
+            String key = "k" + random.nextInt(range);
+            if (random.nextInt(3) == 0 || i >= 100000) {
+                assertEquals(expected.remove(new BytesKey(b(key))), table.remove(b(key)));
+            } else {
+                String value = "v" + i;
+                assertEquals(expected.put(new BytesKey(b(key)), value), table.put(b(key), value));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        for (int i = 0; i < 5000; i++) {
+            String key = "k" + i;
+            assertEquals(expected.get(new BytesKey(b(key))), table.get(b(key)));
+        }
+        assertEquals(expected.keySet(), keys(table));
+    }
+
+    @Test
+    public void testHashTellsAnagramsAndShiftsApart() {
+        assertNotEquals(BytesKeyTable.hash(b("ab")), BytesKeyTable.hash(b("ba")));
+        assertNotEquals(BytesKeyTable.hash(b("abc")), BytesKeyTable.hash(b("bca")));
+        assertNotEquals(BytesKeyTable.hash(b("a")), BytesKeyTable.hash(b("a\0")));
+        assertNotEquals(BytesKeyTable.hash(b("\0a")), BytesKeyTable.hash(b("a\0")));
+        assertNotEquals(BytesKeyTable.hash(b("user:12345678")), BytesKeyTable.hash(b("user:87654321")));
+
+        // sequential keys spread over the low bits the table indexes by
+        int[] buckets = new int[1024];
+        for (int i = 0; i < 100000; i++) {
+            buckets[BytesKeyTable.hash(b("key:" + i)) & 1023]++;
+        }
+        for (int count : buckets) {
+            assertTrue(String.valueOf(count), count > 50 && count < 150);
+        }
+    }
+
+    @Test
+    public void testEveryOperationWhileResizing() {
+        BytesKeyTable<String> table = new BytesKeyTable<String>();
+        Map<BytesKey, String> expected = new HashMap<BytesKey, String>();
+        for (int i = 0; i < 5000; i++) {
+            table.put(b("k" + i), "v" + i);
+            expected.put(new BytesKey(b("k" + i)), "v" + i);
+            // right after a resize started, most keys are still in the old table
+            if (Integer.bitCount(i) == 1 || i % 997 == 0) {
+                assertEquals(expected.keySet(), keys(table));
+                BytesKeyTable<String> copy = table.copy();
+                for (int j = 0; j <= i; j += 7) {
+                    assertEquals("v" + j, copy.take(b("k" + j)));
+                    assertNull(copy.take(b("k" + j)));
+                }
+                assertEquals(i + 1 - (i / 7 + 1), copy.size());
+                for (int j = 0; j <= i; j++) {
+                    assertEquals("v" + j, table.get(b("k" + j)));
+                }
+                assertEquals(i + 1, table.size());
+            }
+        }
+        // and while shrinking
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("v" + i, table.remove(b("k" + i)));
+            assertNull(table.get(b("k" + i)));
+            assertEquals(4999 - i, table.size());
+            if (i % 499 == 0) {
+                expected.keySet().retainAll(keys(table));
+                assertEquals(4999 - i, expected.size());
+            }
+        }
+        assertTrue(table.isEmpty());
+    }
+
+    @Test
+    public void testEntries() {
+        BytesKeyTable<String> table = new BytesKeyTable<String>();
+        for (int i = 0; i < 1000; i++) {
+            table.put(b("k" + i), "v" + i);
+        }
+        int count = 0;
+        Iterator<Map.Entry<byte[], String>> entries = table.entries();
+        while (entries.hasNext()) {
+            Map.Entry<byte[], String> entry = entries.next();
+            assertEquals("v" + new String(entry.getKey()).substring(1), entry.getValue());
+            count++;
+        }
+        assertEquals(1000, count);
+    }
+
+    @Test
+    public void testScanReturnsEveryKeyOnce() {
+        BytesKeyTable<String> table = new BytesKeyTable<String>();
+        for (int i = 0; i < 10000; i++) {
+            table.put(b("k" + i), "v");
+        }
+        List<byte[]> scanned = new ArrayList<byte[]>();
+        long cursor = 0;
+        do {
+            cursor = table.scan(cursor, 10, scanned);
+        } while (cursor != 0);
+        // no resize meanwhile, so no duplicates either
+        assertEquals(keys(table), keys(scanned));
+    }
+
+    @Test
+    public void testScanSurvivesResizing() {
+        BytesKeyTable<String> table = new BytesKeyTable<String>();
+        for (int i = 0; i < 1000; i++) {
+            table.put(b("k" + i), "v");
+        }
+        Set<BytesKey> scanned = new HashSet<BytesKey>();
+        long cursor = 0;
+        int calls = 0;
+        do {
+            List<byte[]> keys = new ArrayList<byte[]>();
+            cursor = table.scan(cursor, 10, keys);
+            for (byte[] key : keys) {
+                scanned.add(new BytesKey(key));
+            }
+            // grow the table well past a resize, then shrink it again
+            calls++;
+            if (calls < 20) {
+                for (int i = 0; i < 500; i++) {
+                    table.put(b("grow" + calls + "-" + i), "v");
+                }
+            } else if (calls < 40) {
+                for (int i = 0; i < 500; i++) {
+                    table.remove(b("grow" + (calls - 20) + "-" + i));
+                }
+            }
+        } while (cursor != 0);
+        // every key there for the whole scan was returned
+        for (int i = 0; i < 1000; i++) {
+            assertTrue("k" + i, scanned.contains(new BytesKey(b("k" + i))));
+        }
+    }
+
+    @Test
+    public void testCopyAndTake() {
+        BytesKeyTable<String> table = new BytesKeyTable<String>();
+        for (int i = 0; i < 100; i++) {
+            table.put(b("k" + i), "v" + i);
+        }
+        BytesKeyTable<String> copy = table.copy();
+        table.put(b("k0"), "changed");
+        table.remove(b("k1"));
+        assertEquals("v0", copy.get(b("k0")));
+        assertEquals("v1", copy.take(b("k1")));
+        assertNull(copy.take(b("k1")));
+        assertEquals(99, copy.size());
+        assertEquals(99, table.size());
+    }
+
+    @Test
+    public void testRandomKey() {
+        BytesKeyTable<String> table = new BytesKeyTable<String>();
+        Random random = new Random(1);
+        assertNull(table.randomKey(random));
+        for (int i = 0; i < 10; i++) {
+            table.put(b("k" + i), "v");
+        }
+        Set<BytesKey> picked = new HashSet<BytesKey>();
+        for (int i = 0; i < 1000; i++) {
+            picked.add(new BytesKey(table.randomKey(random)));
+        }
+        assertEquals(keys(table), picked);
+    }
+}
@@ -0,0 +1,183 @@
+package redis.server.backend.simple;
+
+import org.junit.Before;
+import org.junit.Test;
+import redis.server.RedisException;
+import redis.server.reply.BulkReply;
+import redis.server.reply.IntegerReply;
+import redis.server.reply.Reply;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentRedisServerTest {
+
+    // keys per test, enough that they always span several stripes
+    private static final int KEYS = 50;
+
+    private ConcurrentRedisServer server;
+
+    @Before
+    public void setUp() {
+        server = new ConcurrentRedisServer(16);
+    }
+
+    private static byte[] b(String s) {
+        return s.getBytes();
+    }
+
+    private static byte[][] keys(String prefix, int count) {
+        byte[][] keys = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            keys[i] = b(prefix + i);
+        }
+        return keys;
+    }
+
+    private static long n(IntegerReply reply) {
+        return reply.data().longValue();
+    }
+
+    private static String s(BulkReply reply) {
+        return reply.asAsciiString();
+    }
+
+    @Test
+    public void testRenameAcrossStripes() throws RedisException {
+        for (int i = 0; i < KEYS; i++) {
+            server.set(b("key" + i), b("value" + i));
+            server.pexpire(b("key" + i), b("100000"));
+            server.rename(b("key" + i), b("renamed" + i));
+        }
+        for (int i = 0; i < KEYS; i++) {
+            assertNull(server.get(b("key" + i)).data());
+            assertEquals("value" + i, s(server.get(b("renamed" + i))));
+            assertTrue(n(server.pttl(b("renamed" + i))) > 0);
+        }
+        assertEquals(KEYS, n(server.dbsize()));
+    }
+
+    @Test
+    public void testStoresAcrossStripes() throws RedisException {
+        byte[][] sets = keys("set", KEYS);
+        byte[][] zsets = keys("zset", KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            server.sadd(sets[i], new byte[][]{b("common"), b("member" + i)});
+            server.zadd(new byte[][]{zsets[i], b("1"), b("common"), b("1"), b("member" + i)});
+        }
+        assertEquals(KEYS + 1, n(server.sunionstore(b("union"), sets)));
+        assertEquals(1, n(server.sinterstore(b("inter"), sets)));
+        byte[][] arguments = new byte[KEYS + 2][];
+        System.arraycopy(zsets, 0, arguments, 0, KEYS);
+        arguments[KEYS] = b("AGGREGATE");
+        arguments[KEYS + 1] = b("SUM");
+        assertEquals(KEYS + 1, n(server.zunionstore(b("zunion"), b(String.valueOf(KEYS)), arguments)));
+        assertEquals(KEYS, Double.parseDouble(s(server.zscore(b("zunion"), b("common")))), 0);
+
+        // the sources went back to their stripes as they were
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(2, n(server.scard(sets[i])));
+            assertEquals(2, n(server.zcard(zsets[i])));
+        }
+        assertEquals(2 * KEYS + 3, n(server.dbsize()));
+
+        Reply[] values = server.mget(keys("missing", KEYS)).data();
+        assertEquals(KEYS, values.length);
+        assertEquals(KEYS, n(server.del(sets)));
+        assertEquals(KEYS + 3, n(server.dbsize()));
+    }
+
+    @Test
+    public void testKeysGoBackWhenTheCommandFails() throws RedisException {
+        byte[][] sets = keys("set", KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            server.sadd(sets[i], new byte[][]{b("member" + i)});
+        }
+        server.set(b("string"), b("value"));
+        byte[][] wrong = new byte[KEYS + 1][];
+        System.arraycopy(sets, 0, wrong, 0, KEYS);
+        wrong[KEYS] = b("string");
+        try {
+            server.sunionstore(b("union"), wrong);
+            fail("a string isn't a set");
+        } catch (RedisException e) {
+            // expected
+        }
+        assertEquals("value", s(server.get(b("string"))));
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(1, n(server.scard(sets[i])));
+        }
+        assertEquals(KEYS + 1, n(server.dbsize()));
+    }
+
+    @Test
+    public void testConcurrentMovesKeepEveryMember() throws Exception {
+        final byte[][] sets = keys("set", 8);
+        final int members = 100;
+        for (int i = 0; i < members; i++) {
+            server.sadd(sets[i % sets.length], new byte[][]{b("member" + i)});
+        }
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> moved = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 4; t++) {
+                final int seed = t;
+                moved.add(threads.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws RedisException {
+                        for (int i = 0; i < 5000; i++) {
+                            int from = (i + seed) % sets.length;
+                            int to = (i * 3 + seed * 5 + 1) % sets.length;
+                            server.smove(sets[from], sets[to], b("member" + (i * 7 + seed) % members));
+                            server.sunionstore(b("union" + seed), sets);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : moved) {
+                future.get();
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        long total = 0;
+        for (byte[] set : sets) {
+            total += n(server.scard(set));
+        }
+        assertEquals(members, total);
+        for (int t = 0; t < 4; t++) {
+            assertEquals(members, n(server.scard(b("union" + t))));
+        }
+    }
+
+    @Test
+    public void testActiveExpiryOnEveryStripe() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            server.set(b("short" + i), b("value"));
+            server.pexpire(b("short" + i), b("1"));
+        }
+        for (int i = 0; i < KEYS; i++) {
+            server.set(b("long" + i), b("value"));
+            server.pexpire(b("long" + i), b("100000"));
+            server.set(b("persistent" + i), b("value"));
+        }
+        Thread.sleep(10);
+        int total = 0;
+        for (int i = 0; i < 1000 && n(server.dbsize()) > 2 * KEYS; i++) {
+            total += server.activeExpireCycle(1000000000L);
+        }
+        assertEquals(1000, total);
+        assertEquals(2 * KEYS, n(server.dbsize()));
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(n(server.pttl(b("long" + i))) > 0);
+            assertEquals("value", s(server.get(b("persistent" + i))));
+        }
+    }
+}
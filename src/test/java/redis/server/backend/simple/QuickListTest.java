@@ -0,0 +1,139 @@
+package redis.server.backend.simple;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QuickListTest {
+
+    private static byte[] b(String s) {
+        return s.getBytes();
+    }
+
+    private static void assertSame(List<byte[]> expected, QuickList list) {
+        assertEquals(expected.size(), list.size());
+        Iterator<byte[]> iterator = list.iterator();
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), iterator.next());
+            assertArrayEquals(expected.get(i), list.get(i));
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testChunkIsSizedToItsContent() {
+        QuickList.Chunk chunk = new QuickList.Chunk(b("abc"), false);
+        assertEquals(3, chunk.data.length);
+        assertEquals(1, chunk.offsets.length);
+        assertTrue(chunk.addLast(b("abc")));
+        assertTrue(chunk.addLast(b("de")));
+        assertEquals(6, chunk.data.length);
+        assertEquals(2, chunk.offsets.length);
+        assertTrue(chunk.addFirst(b("x")));
+        assertArrayEquals(b("x"), chunk.get(0));
+        assertArrayEquals(b("abc"), chunk.get(1));
+        assertArrayEquals(b("de"), chunk.get(2));
+    }
+
+    @Test
+    public void testChunkGrowsUpToTheCap() {
+        QuickList.Chunk chunk = new QuickList.Chunk(new byte[100], false);
+        int added = 0;
+        while (chunk.addLast(new byte[100])) {
+            added++;
+        }
+        assertEquals(QuickList.CHUNK_BYTES / 100, added);
+        assertEquals(QuickList.CHUNK_BYTES, chunk.data.length);
+
+        chunk = new QuickList.Chunk(new byte[0], true);
+        added = 0;
+        while (chunk.addFirst(new byte[0])) {
+            added++;
+        }
+        assertEquals(QuickList.MAX_ENTRIES, added);
+        assertEquals(QuickList.MAX_ENTRIES, chunk.offsets.length);
+    }
+
+    @Test
+    public void testLargeElementGetsItsOwnChunk() {
+        byte[] large = new byte[QuickList.CHUNK_BYTES * 2];
+        QuickList.Chunk chunk = new QuickList.Chunk(large, false);
+        assertTrue(chunk.addLast(large));
+        assertFalse(chunk.addLast(b("a")));
+        assertFalse(chunk.addFirst(b("a")));
+    }
+
+    @Test
+    public void testMatchesLinkedList() {
+        Random random = new Random(1);
+        QuickList list = new QuickList();
+        LinkedList<byte[]> expected = new LinkedList<byte[]>();
+        for (int i = 0; i < 20000; i++) {
+            byte[] value = new byte[random.nextInt(300)];
+            random.nextBytes(value);
+            switch (random.nextInt(6)) {
+                case 0:
+                    list.addFirst(value);
+                    expected.addFirst(value);
+                    break;
+                case 1:
+                case 2:
+                    list.addLast(value);
+                    expected.addLast(value);
+                    break;
+                case 3:
+                    assertArrayEquals(expected.pollFirst(), list.pollFirst());
+                    break;
+                case 4:
+                    assertArrayEquals(expected.pollLast(), list.pollLast());
+                    break;
+                default:
+                    if (!expected.isEmpty()) {
+                        int index = random.nextInt(expected.size());
+                        assertTrue(list.set(index, value));
+                        expected.set(index, value);
+                    }
+            }
+        }
+        assertSame(expected, list);
+    }
+
+    @Test
+    public void testInsertRemoveAndTrim() {
+        QuickList list = new QuickList();
+        List<byte[]> expected = new ArrayList<byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            list.addLast(b("v" + i % 10));
+            expected.add(b("v" + i % 10));
+        }
+        assertEquals(1001, list.insert(b("v5"), b("new"), true));
+        expected.add(5, b("new"));
+        assertSame(expected, list);
+
+        assertEquals(3, list.remove(b("v1"), -3));
+        int removed = 0;
+        for (int i = expected.size() - 1; removed < 3; i--) {
+            if (Arrays.equals(expected.get(i), b("v1"))) {
+                expected.remove(i);
+                removed++;
+            }
+        }
+        assertSame(expected, list);
+
+        list.trim(200, 799);
+        expected = new ArrayList<byte[]>(expected.subList(200, 800));
+        assertSame(expected, list);
+        assertEquals(10, list.range(590, 1000).size());
+
+        list.trim(5, 1);
+        assertTrue(list.isEmpty());
+        assertNull(list.pollFirst());
+    }
+}
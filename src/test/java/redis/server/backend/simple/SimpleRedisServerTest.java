@@ -0,0 +1,73 @@
+package redis.server.backend.simple;
+
+import org.junit.Test;
+import redis.server.RedisException;
+import redis.server.reply.BulkReply;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleRedisServerTest {
+
+    private static byte[] b(String s) {
+        return s.getBytes();
+    }
+
+    private static String s(BulkReply reply) {
+        return reply.asAsciiString();
+    }
+
+    @Test
+    public void testSetrangeLeavesEarlierRepliesAlone() throws RedisException {
+        SimpleRedisServer server = new SimpleRedisServer();
+        server.set(b("k"), b("hello world"));
+        BulkReply before = server.get(b("k"));
+        server.setrange(b("k"), b("0"), b("HELLO"));
+        assertEquals("hello world", s(before));
+        assertEquals("HELLO world", s(server.get(b("k"))));
+    }
+
+    @Test
+    public void testSetbitLeavesEarlierRepliesAlone() throws RedisException {
+        SimpleRedisServer server = new SimpleRedisServer();
+        server.set(b("k"), b("a"));
+        BulkReply before = server.get(b("k"));
+        assertEquals(0, server.setbit(b("k"), b("6"), b("1")).data().intValue());
+        assertEquals("a", s(before));
+        assertEquals("c", s(server.get(b("k"))));
+        assertEquals(1, server.setbit(b("k"), b("6"), b("0")).data().intValue());
+        assertEquals("a", s(server.get(b("k"))));
+    }
+
+    @Test
+    public void testActiveExpiryReclaimsKeysNobodyReads() throws Exception {
+        SimpleRedisServer server = new SimpleRedisServer();
+        for (int i = 0; i < 1000; i++) {
+            server.set(b("short" + i), b("value"));
+            server.pexpire(b("short" + i), b("1"));
+        }
+        for (int i = 0; i < 100; i++) {
+            server.set(b("long" + i), b("value"));
+            server.pexpire(b("long" + i), b("100000"));
+            server.set(b("persistent" + i), b("value"));
+        }
+        assertEquals(1200, server.dbsize().data().intValue());
+        Thread.sleep(10);
+
+        // one cycle goes on while most of what it samples has expired
+        int total = server.activeExpireCycle(1000000000L);
+        assertTrue(String.valueOf(total), total > 500);
+        // and the stragglers go over the next ones
+        for (int i = 0; i < 1000 && server.dbsize().data().intValue() > 200; i++) {
+            total += server.activeExpireCycle(1000000000L);
+        }
+        assertEquals(1000, total);
+        assertEquals(200, server.dbsize().data().intValue());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value", s(server.get(b("long" + i))));
+            assertTrue(server.pttl(b("long" + i)).data().longValue() > 0);
+            assertEquals("value", s(server.get(b("persistent" + i))));
+        }
+        assertEquals(0, server.activeExpireCycle(1000000000L));
+    }
+}
@@ -0,0 +1,183 @@
+package redis.server.backend.simple;
+
+import io.netty.buffer.ByteBuf;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.server.RedisException;
+import redis.server.reply.BulkReply;
+import redis.util.BytesKey;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SnapshotTest {
+
+    // enough elements for a collection to span several blocks and steps
+    private static final int LARGE = 100000;
+
+    private BytesKeyTable<Object> data;
+    private BytesKeyTable<Long> expires;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new BytesKeyTable<Object>();
+        expires = new BytesKeyTable<Long>();
+        file = File.createTempFile("snapshot", ".rdb");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static byte[] b(String s) {
+        return s.getBytes();
+    }
+
+    private static String s(BulkReply reply) {
+        return reply.asAsciiString();
+    }
+
+    private SimpleRedisServer load(long keys) throws IOException {
+        SimpleRedisServer server = new SimpleRedisServer();
+        assertEquals(keys, Snapshot.load(file, 2, server));
+        return server;
+    }
+
+    private void fill(int elements) {
+        BytesKeyObjectMap<byte[]> hash = new BytesKeyObjectMap<byte[]>();
+        BytesKeySet set = new BytesKeySet();
+        ZSet zset = new ZSet();
+        QuickList list = new QuickList();
+        for (int i = 0; i < elements; i++) {
+            hash.put(b("field" + i), b("value" + i));
+            set.add(b("member" + i));
+            zset.add(new BytesKey(b("member" + i)), i * 0.5);
+            list.addLast(b("element" + i));
+        }
+        data.put(b("hash"), hash);
+        data.put(b("set"), set);
+        data.put(b("zset"), zset);
+        data.put(b("list"), list);
+    }
+
+    private static void check(SimpleRedisServer server, int elements) throws RedisException {
+        assertEquals(elements, server.hlen(b("hash")).data().intValue());
+        assertEquals(elements, server.scard(b("set")).data().intValue());
+        assertEquals(elements, server.zcard(b("zset")).data().intValue());
+        assertEquals(elements, server.llen(b("list")).data().intValue());
+        for (int i = 0; i < elements; i += Math.max(elements / 100, 1)) {
+            assertEquals("value" + i, s(server.hget(b("hash"), b("field" + i))));
+            assertEquals(1, server.sismember(b("set"), b("member" + i)).data().intValue());
+            assertEquals(i * 0.5, Double.parseDouble(s(server.zscore(b("zset"), b("member" + i)))), 0);
+            assertEquals("element" + i, s(server.lindex(b("list"), b(String.valueOf(i)))));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException, RedisException {
+        fill(10);
+        data.put(b("string"), b("value"));
+        data.put(b("expiring"), b("value"));
+        expires.put(b("expiring"), System.currentTimeMillis() + 100000);
+        data.put(b("expired"), b("value"));
+        expires.put(b("expired"), System.currentTimeMillis() - 1);
+        new Snapshot(data, expires).write(file, null);
+
+        SimpleRedisServer server = load(6);
+        check(server, 10);
+        assertEquals("value", s(server.get(b("string"))));
+        assertTrue(server.ttl(b("expiring")).data().longValue() > 0);
+        assertNull(server.get(b("expired")).data());
+    }
+
+    @Test
+    public void testLargeCollectionsAreSplit() throws IOException, RedisException {
+        fill(LARGE);
+        Snapshot snapshot = new Snapshot(data, expires);
+        List<ByteBuf> blocks = snapshot.step();
+        int length = 0;
+        for (ByteBuf block : blocks) {
+            length += block.writerIndex();
+            block.release();
+        }
+        // each collection alone is bigger than that
+        assertTrue(length < 2 * Snapshot.BLOCK_SIZE + 256 * 1024);
+
+        new Snapshot(data, expires).write(file, null);
+        check(load(4), LARGE);
+    }
+
+    @Test
+    public void testTouchWritesCollectionAsItWas() throws Exception {
+        fill(LARGE);
+        final Snapshot snapshot = new Snapshot(data, expires);
+        final BlockingQueue<Runnable> steps = new LinkedBlockingQueue<Runnable>();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            Future<Void> written = writer.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    snapshot.write(file, new Executor() {
+                        @Override
+                        public void execute(Runnable task) {
+                            steps.add(task);
+                        }
+                    });
+                    return null;
+                }
+            });
+            boolean touched = false;
+            while (!written.isDone()) {
+                Runnable step = steps.poll(10, TimeUnit.MILLISECONDS);
+                if (step != null) {
+                    step.run();
+                    if (!touched) {
+                        // like a command changing every collection after the first step
+                        for (String key : new String[]{"hash", "set", "zset", "list"}) {
+                            snapshot.touch(b(key));
+                        }
+                        ((QuickList) data.get(b("list"))).addLast(b("later"));
+                        ((BytesKeySet) data.get(b("set"))).add(b("later"));
+                        touched = true;
+                    }
+                }
+            }
+            written.get();
+        } finally {
+            writer.shutdownNow();
+        }
+        SimpleRedisServer server = load(4);
+        check(server, LARGE);
+        assertEquals(0, server.sismember(b("set"), b("later")).data().intValue());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptBlock() throws IOException {
+        fill(10);
+        new Snapshot(data, expires).write(file, null);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // past the header and the first block's length and checksum
+            raf.seek(20);
+            raf.write(raf.read() ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+        load(4);
+    }
+}
@@ -0,0 +1,66 @@
+package redis.server.backend.simple;
+
+import org.junit.Test;
+import redis.util.BytesKey;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class ZSetTest {
+
+    private static BytesKey k(String s) {
+        return new BytesKey(s.getBytes());
+    }
+
+    @Test
+    public void testEqualScoresOrderByMember() {
+        ZSet zset = new ZSet();
+        zset.add(k("c"), 1);
+        zset.add(k("a"), 1);
+        zset.add(k("b"), 1);
+        assertEquals(0, zset.rank("a".getBytes()));
+        assertEquals(1, zset.rank("b".getBytes()));
+        assertEquals(2, zset.rank("c".getBytes()));
+    }
+
+    @Test
+    public void testInfiniteScores() {
+        ZSet zset = new ZSet();
+        assertTrue(zset.add(k("a"), Double.POSITIVE_INFINITY));
+        assertTrue(zset.add(k("b"), Double.POSITIVE_INFINITY));
+        assertTrue(zset.add(k("x"), Double.NEGATIVE_INFINITY));
+        assertTrue(zset.add(k("y"), Double.NEGATIVE_INFINITY));
+        assertTrue(zset.add(k("m"), 0));
+        assertEquals(0, zset.rank("x".getBytes()));
+        assertEquals(1, zset.rank("y".getBytes()));
+        assertEquals(2, zset.rank("m".getBytes()));
+        assertEquals(3, zset.rank("a".getBytes()));
+        assertEquals(4, zset.rank("b".getBytes()));
+
+        // re-adding replaces the entry instead of duplicating it
+        assertFalse(zset.add(k("a"), Double.POSITIVE_INFINITY));
+        assertEquals(5, zset.size());
+        assertTrue(zset.remove(k("a")));
+        assertTrue(zset.remove(k("x")));
+        assertEquals(3, zset.size());
+        Iterator<ZSetEntry> entries = zset.iterator();
+        assertEquals(k("y"), entries.next().getKey());
+        assertEquals(k("m"), entries.next().getKey());
+        assertEquals(k("b"), entries.next().getKey());
+        assertFalse(entries.hasNext());
+    }
+
+    @Test
+    public void testIncrementToInfinity() {
+        ZSet zset = new ZSet();
+        zset.add(k("a"), Double.MAX_VALUE);
+        zset.add(k("b"), Double.POSITIVE_INFINITY);
+        ZSetEntry a = zset.get(k("a"));
+        zset.add(k("a"), a.getScore() * 2);
+        assertEquals(Double.POSITIVE_INFINITY, zset.get(k("a")).getScore(), 0);
+        assertEquals(0, zset.rank("a".getBytes()));
+        assertEquals(1, zset.rank("b".getBytes()));
+        assertEquals(0, zset.get(k("a")).compareTo(zset.get(k("a"))));
+    }
+}
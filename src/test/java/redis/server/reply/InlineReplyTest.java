@@ -0,0 +1,33 @@
+package redis.server.reply;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class InlineReplyTest {
+
+    private static void assertLength(Object o) throws IOException {
+        InlineReply reply = new InlineReply(o);
+        ByteBuf buf = Unpooled.buffer();
+        reply.write(buf);
+        assertEquals(buf.readableBytes(), reply.encodedLength());
+    }
+
+    @Test
+    public void testEncodedLength() throws IOException {
+        assertLength(null);
+        assertLength("OK");
+        assertLength("caf\u00e9");
+        assertLength("\u20ac 5");
+        assertLength("\ud83d\ude00");
+        // a lone surrogate becomes a single ?
+        assertLength("a\ud83db");
+        assertLength(new byte[]{1, 2, 3});
+        assertLength(42L);
+        assertLength(new Object());
+    }
+}
@@ -0,0 +1,29 @@
+package redis.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EncodingTest {
+
+  private static final long[] VALUES = {
+      0, 1, 9, 10, 255, 256, 999, 1000, -1, -9, -10, -256, 1234567890123L,
+      Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1
+  };
+
+  @Test
+  public void testNumToBytesMatchesToString() {
+    for (long value : VALUES) {
+      assertEquals(Long.toString(value), new String(Encoding.numToBytes(value)));
+      assertEquals(Long.toString(value) + "\r\n", new String(Encoding.numToBytes(value, true)));
+    }
+  }
+
+  @Test
+  public void testNumLengthMatchesNumToBytes() {
+    for (long value : VALUES) {
+      assertEquals(Long.toString(value), Encoding.numToBytes(value, false).length, Encoding.numLength(value, false));
+      assertEquals(Long.toString(value), Encoding.numToBytes(value, true).length, Encoding.numLength(value, true));
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package redis.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GlobPatternTest {
+
+  private static boolean matches(String pattern, String key) {
+    return GlobPattern.compile(pattern.getBytes()).matches(key.getBytes());
+  }
+
+  @Test
+  public void testStarAndQuestionMark() {
+    assertTrue(matches("*", ""));
+    assertTrue(matches("*", "anything"));
+    assertTrue(matches("h?llo", "hello"));
+    assertFalse(matches("h?llo", "hllo"));
+    assertTrue(matches("h*llo", "hllo"));
+    assertTrue(matches("h*llo", "heeeello"));
+    assertTrue(matches("a*b*c", "aXbYbZc"));
+    assertFalse(matches("a*b*c", "aXbYbZ"));
+    assertTrue(matches("**a", "ba"));
+  }
+
+  @Test
+  public void testClasses() {
+    assertTrue(matches("h[ae]llo", "hallo"));
+    assertFalse(matches("h[ae]llo", "hillo"));
+    assertTrue(matches("h[^e]llo", "hallo"));
+    assertFalse(matches("h[^e]llo", "hello"));
+    assertTrue(matches("h[a-c]llo", "hbllo"));
+    assertTrue(matches("h[c-a]llo", "hbllo"));
+    assertFalse(matches("h[a-c]llo", "hdllo"));
+    assertTrue(matches("[\\]]", "]"));
+    // unterminated
+    assertTrue(matches("a[bc", "ab"));
+  }
+
+  @Test
+  public void testEscapes() {
+    assertTrue(matches("a\\*", "a*"));
+    assertFalse(matches("a\\*", "ab"));
+    assertTrue(matches("a\\?", "a?"));
+    assertTrue(matches("a\\", "a\\"));
+  }
+
+  @Test
+  public void testPrefix() {
+    assertEquals("user:", new String(GlobPattern.compile("user:*".getBytes()).prefix()));
+    assertEquals("ab", new String(GlobPattern.compile("a\\b?".getBytes()).prefix()));
+    assertEquals(0, GlobPattern.compile("*a".getBytes()).prefix().length);
+  }
+
+  @Test
+  public void testMatchesBytesAbove127() {
+    byte[] key = {'k', (byte) 0xE9};
+    assertTrue(GlobPattern.compile(new byte[]{'k', '?'}).matches(key));
+    assertTrue(GlobPattern.compile(new byte[]{'k', '[', (byte) 0xE0, '-', (byte) 0xF0, ']'}).matches(key));
+    assertFalse(GlobPattern.compile(new byte[]{'k', '[', '^', (byte) 0xE9, ']'}).matches(key));
+  }
+}
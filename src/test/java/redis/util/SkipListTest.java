@@ -0,0 +1,109 @@
+package redis.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class SkipListTest {
+
+  private static final Comparator<Integer> NATURAL = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer a, Integer b) {
+      return a.compareTo(b);
+    }
+  };
+
+  private static void assertSame(TreeSet<Integer> expected, SkipList<Integer> list) {
+    assertEquals(expected.size(), list.size());
+    List<Integer> sorted = new ArrayList<Integer>(expected);
+    int rank = 0;
+    for (Integer e : list) {
+      assertEquals(sorted.get(rank), e);
+      assertEquals(rank, list.rank(e));
+      assertEquals(e, list.get(rank));
+      rank++;
+    }
+    assertEquals(sorted.size(), rank);
+  }
+
+  @Test
+  public void testMatchesTreeSet() {
+    Random random = new Random(1);
+    SkipList<Integer> list = new SkipList<Integer>(NATURAL);
+    TreeSet<Integer> expected = new TreeSet<Integer>();
+    for (int i = 0; i < 20000; i++) {
+      Integer e = random.nextInt(2000);
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(e), list.remove(e));
+      } else {
+        assertEquals(expected.add(e), list.add(e));
+      }
+    }
+    assertSame(expected, list);
+  }
+
+  @Test
+  public void testRankOfMissingElement() {
+    SkipList<Integer> list = new SkipList<Integer>(NATURAL);
+    assertEquals(-1, list.rank(1));
+    list.add(2);
+    list.add(4);
+    assertEquals(-1, list.rank(3));
+    assertEquals(-1, list.rank(5));
+    assertEquals(1, list.rank(4));
+  }
+
+  @Test
+  public void testIterators() {
+    SkipList<Integer> list = new SkipList<Integer>(NATURAL);
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 100; i++) {
+      list.add(i * 2);
+      expected.add(i * 2);
+    }
+    Iterator<Integer> ascending = list.iterator(10, false);
+    for (int i = 10; i < 100; i++) {
+      assertEquals(expected.get(i), ascending.next());
+    }
+    assertFalse(ascending.hasNext());
+
+    Collections.reverse(expected);
+    Iterator<Integer> descending = list.iterator(10, true);
+    for (int i = 10; i < 100; i++) {
+      assertEquals(expected.get(i), descending.next());
+    }
+    assertFalse(descending.hasNext());
+
+    assertFalse(list.iterator(100, false).hasNext());
+    assertEquals(Integer.valueOf(52), list.iterator(51).next());
+    assertFalse(list.iterator(199).hasNext());
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testGetOutOfRange() {
+    SkipList<Integer> list = new SkipList<Integer>(NATURAL);
+    list.add(1);
+    list.get(1);
+  }
+
+  @Test
+  public void testClear() {
+    SkipList<Integer> list = new SkipList<Integer>(NATURAL);
+    for (int i = 0; i < 1000; i++) {
+      list.add(i);
+    }
+    list.clear();
+    assertTrue(list.isEmpty());
+    assertFalse(list.iterator().hasNext());
+    list.add(7);
+    assertEquals(0, list.rank(7));
+  }
+}